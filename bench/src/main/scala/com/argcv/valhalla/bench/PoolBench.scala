@@ -0,0 +1,54 @@
+package com.argcv.valhalla.bench
+
+import java.util.concurrent.TimeUnit
+
+import com.argcv.valhalla.client.SSDBClient.SSDBPool
+import com.udpwork.ssdb.EmbeddedSSDB
+import org.apache.commons.pool.impl.GenericObjectPool.WHEN_EXHAUSTED_BLOCK
+import org.openjdk.jmh.annotations._
+
+/**
+ * borrow and return of a client of SSDBPool, without a request
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Array(Mode.AverageTime))
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+class PoolBench {
+  private var server: EmbeddedSSDB = _
+  private var pool: SSDBPool = _
+
+  @Setup
+  def setup(): Unit = {
+    server = new EmbeddedSSDB
+    pool = SSDBPool(server.getHost, server.getPort, maxActive = 8, whenExhaustedAction = WHEN_EXHAUSTED_BLOCK, minIdle = 8)
+  }
+
+  @TearDown
+  def tearDown(): Unit = {
+    pool.close()
+    server.close()
+  }
+
+  @Benchmark
+  def borrowRelease(): Boolean =
+    pool.withClient(_ != null)
+
+  /**
+   * as many threads as clients
+   */
+  @Benchmark
+  @Threads(8)
+  def borrowReleaseContended(): Boolean =
+    pool.withClient(_ != null)
+
+  /**
+   * twice as many threads as clients, half of them wait
+   */
+  @Benchmark
+  @Threads(16)
+  def borrowReleaseExhausted(): Boolean =
+    pool.withClient(_ != null)
+}
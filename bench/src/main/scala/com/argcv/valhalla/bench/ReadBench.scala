@@ -0,0 +1,63 @@
+package com.argcv.valhalla.bench
+
+import java.util.concurrent.TimeUnit
+
+import com.argcv.valhalla.client.SSDBClient._
+import com.udpwork.ssdb.EmbeddedSSDB
+import org.openjdk.jmh.annotations._
+import org.openjdk.jmh.infra.Blackhole
+
+/**
+ * reading a batch of keys by single gets or by one multi_get, on a server with and without latency
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Array(Mode.AverageTime))
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+class ReadBench {
+  /**
+   * latency in us the server adds to each round trip
+   */
+  @Param(Array("0", "200"))
+  var latency: Int = _
+
+  /**
+   * keys per batch
+   */
+  @Param(Array("10", "100"))
+  var batch: Int = _
+
+  private var server: EmbeddedSSDB = _
+  private var pool: SSDBPool = _
+  private var keys: Array[String] = _
+
+  @Setup
+  def setup(): Unit = {
+    server = new EmbeddedSSDB
+    pool = SSDBPool(server.getHost, server.getPort)
+    keys = Array.tabulate(batch)(i => f"bench:read:$i%06d")
+    multi_set(keys.map(k => k -> ("v" * 100)), pool)
+    server.setLatency(latency.toLong, TimeUnit.MICROSECONDS)
+  }
+
+  @TearDown
+  def tearDown(): Unit = {
+    pool.close()
+    server.close()
+  }
+
+  @Benchmark
+  def singleGets(bh: Blackhole): Unit = {
+    var i = 0
+    while (i < keys.length) {
+      bh.consume(get(keys(i), pool))
+      i += 1
+    }
+  }
+
+  @Benchmark
+  def multiGet(bh: Blackhole): Unit =
+    bh.consume(multi_get(keys, pool))
+}
@@ -0,0 +1,50 @@
+package com.argcv.valhalla.bench
+
+import java.util.concurrent.TimeUnit
+
+import com.argcv.valhalla.client.SSDBClient._
+import com.udpwork.ssdb.EmbeddedSSDB
+import org.openjdk.jmh.annotations._
+
+/**
+ * scanning all pairs under a prefix, by batch size
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Array(Mode.AverageTime))
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+class ScanBench {
+  /**
+   * pairs per scan request
+   */
+  @Param(Array("10", "100", "1000"))
+  var batchSize: Int = _
+
+  private val size = 10000
+  private var server: EmbeddedSSDB = _
+  private var pool: SSDBPool = _
+
+  @Setup
+  def setup(): Unit = {
+    server = new EmbeddedSSDB
+    pool = SSDBPool(server.getHost, server.getPort)
+    (0 until size).grouped(1000).foreach { is =>
+      multi_set(is.map(i => f"bench:scan:$i%06d" -> ("v" * 100)), pool)
+    }
+  }
+
+  @TearDown
+  def tearDown(): Unit = {
+    pool.close()
+    server.close()
+  }
+
+  @Benchmark
+  def scanAll(): Int = {
+    val n = scanIterator("bench:scan:", batchSize, pool).size
+    require(n == size, s"scanned $n of $size")
+    n
+  }
+}
@@ -0,0 +1,80 @@
+package com.udpwork.ssdb
+
+import java.util.concurrent.TimeUnit
+
+import org.openjdk.jmh.annotations._
+import org.openjdk.jmh.infra.Blackhole
+
+/**
+ * encoding of requests and parsing of responses, without network
+ * (in this package for the package private CommandEncoder and ResponseParser)
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Array(Mode.AverageTime))
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+class CodecBench {
+  /**
+   * bytes of each value
+   */
+  @Param(Array("16", "1024"))
+  var valueSize: Int = _
+
+  private val encoder = new CommandEncoder
+  private val parser = new ResponseParser
+  private var value: Array[Byte] = _
+  private var keys: Array[String] = _
+  private var pairs: Array[Object] = _
+  private var getResponse: Array[Byte] = _
+  private var scanResponse: Array[Byte] = _
+  private val input = new MemoryStream(1 << 20)
+
+  @Setup
+  def setup(): Unit = {
+    value = Array.fill[Byte](valueSize)('v')
+    keys = Array.tabulate(100)(i => f"bench:key:$i%06d")
+    pairs = keys.flatMap(k => Array[Object](k, value))
+    val e = new CommandEncoder
+    e.encode("ok", value)
+    getResponse = e.buffer().toArray
+    e.clear()
+    e.encode("ok", pairs: _*)
+    scanResponse = e.buffer().toArray
+  }
+
+  @Benchmark
+  def encodeGet(): Int = {
+    encoder.clear()
+    encoder.encode("get", keys(0))
+    encoder.buffer().size
+  }
+
+  @Benchmark
+  def encodeMultiSet100(): Int = {
+    encoder.clear()
+    encoder.encode("multi_set", pairs: _*)
+    encoder.buffer().size
+  }
+
+  @Benchmark
+  def parseGet(bh: Blackhole): Unit = {
+    input.clear()
+    input.write(getResponse)
+    bh.consume(parser.parse(input).get(0))
+  }
+
+  @Benchmark
+  def parseScan100(bh: Blackhole): Unit = {
+    input.clear()
+    input.write(scanResponse)
+    val resp = parser.parse(input)
+    var i = 0
+    while (i < resp.pairCount()) {
+      bh.consume(resp.keyString(i))
+      bh.consume(resp.valueBuffer(i))
+      i += 1
+    }
+  }
+}
@@ -1,3 +1,4 @@
+import pl.project13.scala.sbt.JmhPlugin
 import sbt.Keys._
 import sbt.{ ModuleID, _ }
 import sbtassembly.AssemblyKeys._
@@ -90,5 +91,16 @@ object BuildValhalla extends Build {
     .settings(assemblySettings: _*)
     .settings(dependenciesSettings: _*)
 
+  // JMH benchmarks of the client stack against an embedded server: sbt "valhalla-bench/jmh:run -i 5 -wi 5 -f 1"
+  lazy val bench = Project(id = s"$id-bench", base = file("bench"))
+    // EmbeddedSSDB is in the test sources of root
+    .dependsOn(root % "compile->compile;compile->test;test->test")
+    .enablePlugins(JmhPlugin)
+    .settings(commonSettings: _*)
+    .settings(
+      name := s"$id-bench",
+      publishArtifact := false
+    )
+
 }
 
@@ -0,0 +1,698 @@
+package com.udpwork.ssdb;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.SocketTimeoutException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Consumer;
+
+/**
+ * Non-blocking SSDB client. Example:
+ * <p>
+ * <pre>
+ * AsyncSSDB ssdb = new AsyncSSDB(&quot;127.0.0.1&quot;, 8888);
+ * ssdb.set(&quot;a&quot;, &quot;123&quot;).join();
+ * ssdb.get(&quot;a&quot;).thenAccept(val -&gt; System.out.println(new String(val)));
+ * ssdb.close();
+ * </pre>
+ * <p>
+ * Requests are written to a {@link SocketChannel} by an {@link EventLoop} thread, and since SSDB
+ * answers strictly in order on one connection, responses are matched to the pending futures in
+ * FIFO order. Any number of threads may issue requests on one instance concurrently, and one
+ * {@link EventLoop} may drive many connections.
+ * <p>
+ * Futures are completed on the event loop thread, so heavy work should be chained with the
+ * <code>*Async</code> variants of {@link CompletableFuture}.
+ */
+public class AsyncSSDB {
+    private final String host;
+    private final int port;
+    private final int timeout_ms;
+    private final EventLoop loop;
+    private volatile Connection conn;
+
+    public AsyncSSDB(String host, int port) throws Exception {
+        this(host, port, 0);
+    }
+
+    public AsyncSSDB(String host, int port, int timeout_ms) throws Exception {
+        this(host, port, timeout_ms, EventLoop.shared());
+    }
+
+    /**
+     * @param host       host of ssdb server
+     * @param port       port of ssdb server
+     * @param timeout_ms connect timeout, and the longest time a request may wait for its response, 0 for never
+     * @param loop       event loop which drives this connection
+     * @throws Exception connect failed
+     */
+    public AsyncSSDB(String host, int port, int timeout_ms, EventLoop loop) throws Exception {
+        this.host = host;
+        this.port = port;
+        this.timeout_ms = timeout_ms;
+        this.loop = loop;
+        this.conn = connect();
+    }
+
+    private Connection connect() throws Exception {
+        SocketChannel ch = UnixSocket.isUnix(host)
+                ? UnixSocket.openChannel(host.substring(UnixSocket.SCHEME.length()))
+                : SocketChannel.open();
+        try {
+            if (!UnixSocket.isUnix(host)) {
+                ch.socket().setTcpNoDelay(true);
+                ch.socket().connect(new InetSocketAddress(host, port), timeout_ms);
+            }
+            ch.configureBlocking(false);
+        } catch (Exception e) {
+            ch.close();
+            throw e;
+        }
+        Connection c = new Connection(ch);
+        loop.register(c);
+        return c;
+    }
+
+    /**
+     * Reconnect, all pending requests on the old connection are failed.
+     *
+     * @throws Exception connect failed
+     */
+    public void relink() throws Exception {
+        conn.fail(new IOException("relink"));
+        conn = connect();
+    }
+
+    /**
+     * Close the connection, all pending requests are failed.
+     */
+    public void close() {
+        conn.fail(new ClosedChannelException());
+    }
+
+    public boolean isActive() {
+        return conn.isActive();
+    }
+
+    /**
+     * @return number of requests waiting for their response
+     */
+    public int pendingCount() {
+        return conn.pendingCount();
+    }
+
+    public CompletableFuture<Response> request(String cmd, byte[]... params) {
+        return conn.submit(enc -> enc.encode(cmd, params), deadline());
+    }
+
+    public CompletableFuture<Response> request(String cmd, String... params) {
+        return conn.submit(enc -> enc.encode(cmd, params), deadline());
+    }
+
+    public CompletableFuture<Response> request(String cmd, List<byte[]> params) {
+        return conn.submit(enc -> enc.encode(cmd, params), deadline());
+    }
+
+    /**
+     * @param cmd    command name
+     * @param params parameters of byte[], CharSequence (encoded as UTF-8) or Number (encoded in decimal)
+     * @return future of response
+     */
+    public CompletableFuture<Response> request(String cmd, Object... params) {
+        return conn.submit(enc -> enc.encode(cmd, params), deadline());
+    }
+
+    /**
+     * Send many encoded requests together, see {@link Pipeline}.
+     *
+     * @param buf   encoded requests
+     * @param count number of requests in buf
+     * @return future of the responses, in the same order as the requests
+     */
+    CompletableFuture<List<Response>> request(MemoryStream buf, int count) {
+        List<CompletableFuture<Response>> futures = conn.submit(enc -> enc.append(buf), count, deadline());
+        return CompletableFuture.allOf(futures.toArray(new CompletableFuture<?>[count])).thenApply(v -> {
+            List<Response> ret = new ArrayList<>(count);
+            for (CompletableFuture<Response> f : futures) {
+                ret.add(f.join());
+            }
+            return ret;
+        });
+    }
+
+    private long deadline() {
+        return timeout_ms > 0 ? System.nanoTime() + timeout_ms * 1000000L : 0;
+    }
+
+    /* kv */
+
+    public CompletableFuture<Void> set(byte[] key, byte[] val) {
+        return request("set", key, val).thenApply(AsyncSSDB::ok);
+    }
+
+    public CompletableFuture<Void> set(String key, String val) {
+        return request("set", key, val).thenApply(AsyncSSDB::ok);
+    }
+
+    public CompletableFuture<Void> setx(byte[] key, byte[] val, long ttl) {
+        return request("setx", key, val, ttl).thenApply(AsyncSSDB::ok);
+    }
+
+    public CompletableFuture<Void> setx(String key, String val, long ttl) {
+        return request("setx", key, val, ttl).thenApply(AsyncSSDB::ok);
+    }
+
+    public CompletableFuture<Void> del(byte[] key) {
+        return request("del", key).thenApply(AsyncSSDB::ok);
+    }
+
+    public CompletableFuture<Void> del(String key) {
+        return request("del", key).thenApply(AsyncSSDB::ok);
+    }
+
+    /**
+     * @param key key
+     * @return future of value, null if not found
+     */
+    public CompletableFuture<byte[]> get(byte[] key) {
+        return request("get", key).thenApply(AsyncSSDB::bytes);
+    }
+
+    public CompletableFuture<byte[]> get(String key) {
+        return request("get", key).thenApply(AsyncSSDB::bytes);
+    }
+
+    public CompletableFuture<Long> incr(String key, long by) {
+        return request("incr", key, by).thenApply(AsyncSSDB::number);
+    }
+
+    public CompletableFuture<Response> scan(String key_start, String key_end, int limit) {
+        return request("scan", nn(key_start), nn(key_end), limit).thenApply(AsyncSSDB::map);
+    }
+
+    public CompletableFuture<Response> rscan(String key_start, String key_end, int limit) {
+        return request("rscan", nn(key_start), nn(key_end), limit).thenApply(AsyncSSDB::map);
+    }
+
+    /* hashmap */
+
+    public CompletableFuture<Void> hset(String name, byte[] key, byte[] val) {
+        return request("hset", name, key, val).thenApply(AsyncSSDB::ok);
+    }
+
+    public CompletableFuture<Void> hset(String name, String key, String val) {
+        return request("hset", name, key, val).thenApply(AsyncSSDB::ok);
+    }
+
+    public CompletableFuture<Void> hdel(String name, byte[] key) {
+        return request("hdel", name, key).thenApply(AsyncSSDB::ok);
+    }
+
+    public CompletableFuture<Void> hdel(String name, String key) {
+        return request("hdel", name, key).thenApply(AsyncSSDB::ok);
+    }
+
+    /**
+     * @param name name
+     * @param key  key
+     * @return future of value, null if not found
+     */
+    public CompletableFuture<byte[]> hget(String name, byte[] key) {
+        return request("hget", name, key).thenApply(AsyncSSDB::bytes);
+    }
+
+    public CompletableFuture<byte[]> hget(String name, String key) {
+        return request("hget", name, key).thenApply(AsyncSSDB::bytes);
+    }
+
+    public CompletableFuture<Response> hscan(String name, String key_start, String key_end, int limit) {
+        return request("hscan", name, nn(key_start), nn(key_end), limit).thenApply(AsyncSSDB::map);
+    }
+
+    /* zset */
+
+    public CompletableFuture<Void> zset(String name, byte[] key, long score) {
+        return request("zset", name, key, score).thenApply(AsyncSSDB::ok);
+    }
+
+    public CompletableFuture<Void> zset(String name, String key, long score) {
+        return request("zset", name, key, score).thenApply(AsyncSSDB::ok);
+    }
+
+    public CompletableFuture<Void> zdel(String name, byte[] key) {
+        return request("zdel", name, key).thenApply(AsyncSSDB::ok);
+    }
+
+    public CompletableFuture<Void> zdel(String name, String key) {
+        return request("zdel", name, key).thenApply(AsyncSSDB::ok);
+    }
+
+    /**
+     * @param name name
+     * @param key  key
+     * @return future of score, null if not found
+     */
+    public CompletableFuture<Long> zget(String name, byte[] key) {
+        return request("zget", name, key).thenApply(AsyncSSDB::score);
+    }
+
+    public CompletableFuture<Long> zget(String name, String key) {
+        return request("zget", name, key).thenApply(AsyncSSDB::score);
+    }
+
+    public CompletableFuture<Response> zrange(String name, int offset, int limit) {
+        return request("zrange", name, offset, limit).thenApply(AsyncSSDB::map);
+    }
+
+    public CompletableFuture<Response> zscan(String name, String key, Long score_start, Long score_end, int limit) {
+        return request("zscan", name, nn(key),
+                score_start == null ? "" : score_start,
+                score_end == null ? "" : score_end,
+                limit).thenApply(AsyncSSDB::map);
+    }
+
+    /* multi */
+
+    public CompletableFuture<Response> multi_get(String... keys) {
+        return request("multi_get", keys).thenApply(AsyncSSDB::map);
+    }
+
+    public CompletableFuture<Response> multi_get(byte[]... keys) {
+        return request("multi_get", keys).thenApply(AsyncSSDB::map);
+    }
+
+    public CompletableFuture<Void> multi_set(String... kvs) {
+        if (kvs.length % 2 != 0) {
+            return failed(new Exception("Invalid arguments count"));
+        }
+        return request("multi_set", kvs).thenApply(AsyncSSDB::ok);
+    }
+
+    public CompletableFuture<Void> multi_set(byte[]... kvs) {
+        if (kvs.length % 2 != 0) {
+            return failed(new Exception("Invalid arguments count"));
+        }
+        return request("multi_set", kvs).thenApply(AsyncSSDB::ok);
+    }
+
+    public CompletableFuture<Void> multi_del(String... keys) {
+        return request("multi_del", keys).thenApply(AsyncSSDB::ok);
+    }
+
+    public CompletableFuture<Void> multi_del(byte[]... keys) {
+        return request("multi_del", keys).thenApply(AsyncSSDB::ok);
+    }
+
+    /* response decoders, the same rules as SSDB */
+
+    private static String nn(String s) {
+        return s == null ? "" : s;
+    }
+
+    private static <T> CompletableFuture<T> failed(Throwable t) {
+        CompletableFuture<T> future = new CompletableFuture<>();
+        future.completeExceptionally(t);
+        return future;
+    }
+
+    private static void check(Response resp) {
+        if (!resp.ok()) {
+            try {
+                resp.exception();
+            } catch (Exception e) {
+                throw new CompletionException(e);
+            }
+        }
+    }
+
+    private static Void ok(Response resp) {
+        check(resp);
+        return null;
+    }
+
+    private static byte[] bytes(Response resp) {
+        if (resp.not_found()) {
+            return null;
+        }
+        check(resp);
+        if (resp.raw.size() != 2) {
+            throw new CompletionException(new Exception("Invalid response"));
+        }
+        return resp.raw.get(1);
+    }
+
+    private static Long number(Response resp) {
+        check(resp);
+        if (resp.size() != 1) {
+            throw new CompletionException(new Exception("Invalid response"));
+        }
+        return resp.getLong(0);
+    }
+
+    private static Long score(Response resp) {
+        return resp.not_found() ? null : number(resp);
+    }
+
+    private static Response map(Response resp) {
+        check(resp);
+        resp.buildMap();
+        return resp;
+    }
+
+    /**
+     * One socket and the requests in flight on it.
+     */
+    private final class Connection {
+        private final SocketChannel channel;
+        private SelectionKey key = null;
+        private volatile boolean closed = false;
+        /**
+         * requests encoded but not written yet, guarded by this
+         */
+        private final CommandEncoder out = new CommandEncoder();
+        /**
+         * requests sent (or to be sent) and waiting for response, guarded by this
+         */
+        private final ArrayDeque<Pending> pending = new ArrayDeque<>();
+        private final AtomicBoolean flushScheduled = new AtomicBoolean(false);
+        /**
+         * only touched by event loop thread
+         */
+        private final MemoryStream input = new MemoryStream();
+        private final ResponseParser parser = new ResponseParser();
+
+        Connection(SocketChannel channel) {
+            this.channel = channel;
+        }
+
+        synchronized boolean isActive() {
+            return !closed && channel.isConnected();
+        }
+
+        synchronized int pendingCount() {
+            return pending.size();
+        }
+
+        /**
+         * encode a request straight into the outgoing buffer, requests submitted before the next
+         * flush are written together
+         */
+        CompletableFuture<Response> submit(Consumer<CommandEncoder> encode, long deadline) {
+            CompletableFuture<Response> future = new CompletableFuture<>();
+            synchronized (this) {
+                if (closed) {
+                    future.completeExceptionally(new ClosedChannelException());
+                    return future;
+                }
+                encode.accept(out);
+                pending.add(new Pending(future, deadline));
+            }
+            if (flushScheduled.compareAndSet(false, true)) {
+                loop.flush(this);
+            }
+            return future;
+        }
+
+        /**
+         * encode count requests at once, they are written back to back
+         */
+        List<CompletableFuture<Response>> submit(Consumer<CommandEncoder> encode, int count, long deadline) {
+            List<CompletableFuture<Response>> futures = new ArrayList<>(count);
+            for (int i = 0; i < count; i++) {
+                futures.add(new CompletableFuture<>());
+            }
+            synchronized (this) {
+                if (closed) {
+                    for (CompletableFuture<Response> f : futures) {
+                        f.completeExceptionally(new ClosedChannelException());
+                    }
+                    return futures;
+                }
+                encode.accept(out);
+                for (CompletableFuture<Response> f : futures) {
+                    pending.add(new Pending(f, deadline));
+                }
+            }
+            if (flushScheduled.compareAndSet(false, true)) {
+                loop.flush(this);
+            }
+            return futures;
+        }
+
+        void onRegistered(SelectionKey key) {
+            boolean dirty;
+            synchronized (this) {
+                if (closed) {
+                    key.cancel();
+                    return;
+                }
+                this.key = key;
+                dirty = out.buffer().size > 0;
+            }
+            if (dirty) {
+                onFlush();
+            }
+        }
+
+        /**
+         * write as many queued requests as the socket accepts
+         */
+        void onFlush() {
+            flushScheduled.set(false);
+            synchronized (this) {
+                if (closed || key == null || !key.isValid()) {
+                    return;
+                }
+                try {
+                    MemoryStream buf = out.buffer();
+                    while (buf.size > 0) {
+                        int len = channel.write(ByteBuffer.wrap(buf.buf, buf.data, buf.size));
+                        if (len <= 0) {
+                            break; // socket buffer is full, wait for OP_WRITE
+                        }
+                        buf.decr(len);
+                    }
+                    if (buf.size == 0) {
+                        out.clear();
+                    } else {
+                        buf.nice();
+                    }
+                    if (buf.size == 0) {
+                        key.interestOps(SelectionKey.OP_READ);
+                    } else {
+                        key.interestOps(SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+                    }
+                } catch (IOException e) {
+                    loop.execute(() -> fail(e));
+                }
+            }
+        }
+
+        void onRead(ByteBuffer buf) {
+            try {
+                while (true) {
+                    buf.clear();
+                    int len = channel.read(buf);
+                    if (len < 0) {
+                        throw new EOFException("connection closed by server");
+                    }
+                    if (len == 0) {
+                        break;
+                    }
+                    input.write(buf.array(), 0, len);
+                }
+                while (true) {
+                    Response resp = parser.parse(input);
+                    if (resp == null) {
+                        break;
+                    }
+                    Pending p;
+                    synchronized (this) {
+                        p = pending.pollFirst();
+                    }
+                    if (p == null) {
+                        throw new IOException("unexpected response");
+                    }
+                    p.future.complete(resp);
+                }
+            } catch (IOException e) {
+                fail(e);
+                return;
+            }
+            input.nice();
+        }
+
+        void onTick(long now) {
+            Pending head;
+            synchronized (this) {
+                head = pending.peekFirst();
+            }
+            if (head != null && head.deadline != 0 && now - head.deadline > 0) {
+                // the stream is out of sync once a response is given up, so drop the connection
+                fail(new SocketTimeoutException("Read timed out"));
+            }
+        }
+
+        void fail(Throwable t) {
+            List<Pending> failed;
+            synchronized (this) {
+                closed = true;
+                failed = new ArrayList<>(pending);
+                pending.clear();
+                out.clear();
+                if (key != null) {
+                    key.cancel();
+                }
+                try {
+                    channel.close();
+                } catch (IOException e) {
+                    e.printStackTrace();
+                }
+            }
+            for (Pending p : failed) {
+                p.future.completeExceptionally(t);
+            }
+        }
+    }
+
+    private static final class Pending {
+        final CompletableFuture<Response> future;
+        final long deadline;
+
+        Pending(CompletableFuture<Response> future, long deadline) {
+            this.future = future;
+            this.deadline = deadline;
+        }
+    }
+
+    /**
+     * A selector thread which drives the io of many {@link AsyncSSDB} connections.
+     */
+    public static class EventLoop implements Runnable {
+        private static final AtomicInteger counter = new AtomicInteger();
+        private static volatile EventLoop shared = null;
+
+        private final Selector selector;
+        private final Thread thread;
+        private final ConcurrentLinkedQueue<Runnable> tasks = new ConcurrentLinkedQueue<>();
+        private final Set<Connection> conns = Collections.newSetFromMap(new ConcurrentHashMap<Connection, Boolean>());
+        private final ByteBuffer readBuf = ByteBuffer.allocate(8192);
+        private volatile boolean running = true;
+
+        public EventLoop() throws IOException {
+            this("ssdb-event-loop-" + counter.incrementAndGet());
+        }
+
+        public EventLoop(String name) throws IOException {
+            selector = Selector.open();
+            thread = new Thread(this, name);
+            thread.setDaemon(true);
+            thread.start();
+        }
+
+        /**
+         * @return a daemon event loop shared by connections created without an explicit loop
+         * @throws IOException failed to open selector
+         */
+        public static EventLoop shared() throws IOException {
+            if (shared == null) {
+                synchronized (EventLoop.class) {
+                    if (shared == null) {
+                        shared = new EventLoop("ssdb-event-loop-shared");
+                    }
+                }
+            }
+            return shared;
+        }
+
+        public void execute(Runnable task) {
+            tasks.add(task);
+            selector.wakeup();
+        }
+
+        void register(Connection conn) {
+            execute(() -> {
+                try {
+                    conns.add(conn);
+                    conn.onRegistered(conn.channel.register(selector, SelectionKey.OP_READ, conn));
+                } catch (IOException e) {
+                    conn.fail(e);
+                }
+            });
+        }
+
+        void flush(Connection conn) {
+            execute(conn::onFlush);
+        }
+
+        /**
+         * Stop the loop and close all connections it drives.
+         */
+        public void shutdown() {
+            running = false;
+            selector.wakeup();
+        }
+
+        @Override
+        public void run() {
+            while (running) {
+                try {
+                    selector.select(100);
+                    Runnable task;
+                    while ((task = tasks.poll()) != null) {
+                        task.run();
+                    }
+                    Iterator<SelectionKey> it = selector.selectedKeys().iterator();
+                    while (it.hasNext()) {
+                        SelectionKey k = it.next();
+                        it.remove();
+                        Connection conn = (Connection) k.attachment();
+                        if (k.isValid() && k.isReadable()) {
+                            conn.onRead(readBuf);
+                        }
+                        if (k.isValid() && k.isWritable()) {
+                            conn.onFlush();
+                        }
+                    }
+                    long now = System.nanoTime();
+                    Iterator<Connection> ci = conns.iterator();
+                    while (ci.hasNext()) {
+                        Connection conn = ci.next();
+                        if (conn.closed) {
+                            ci.remove();
+                        } else {
+                            conn.onTick(now);
+                        }
+                    }
+                } catch (Exception e) {
+                    e.printStackTrace();
+                }
+            }
+            for (Connection conn : conns) {
+                conn.fail(new ClosedChannelException());
+            }
+            try {
+                selector.close();
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+    }
+}
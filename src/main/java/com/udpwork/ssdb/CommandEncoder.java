@@ -0,0 +1,185 @@
+package com.udpwork.ssdb;
+
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Encoder of SSDB requests into a reusable buffer.
+ * <p>
+ * A request is <code>length\nbody\n</code> for the command and each parameter, closed by an
+ * empty line. Command headers such as <code>"3\nget\n"</code> are encoded once and cached,
+ * lengths are written digit by digit and strings are encoded as UTF-8 straight into the buffer,
+ * so encoding a request allocates nothing once the buffer is large enough.
+ * <p>
+ * Parameters may be <code>byte[]</code>, {@link CharSequence} (UTF-8) or {@link Number}
+ * (decimal). An encoder is not thread safe.
+ */
+class CommandEncoder {
+    private static final ConcurrentHashMap<String, byte[]> headers = new ConcurrentHashMap<>();
+    /**
+     * buffers grown beyond this are dropped after use instead of being kept for the next request
+     */
+    private static final int KEEP_CAPACITY = 1 << 20;
+
+    private MemoryStream buf = new MemoryStream(4096);
+
+    /**
+     * @return encoded requests so far
+     */
+    MemoryStream buffer() {
+        return buf;
+    }
+
+    /**
+     * drop encoded requests, and release the buffer if a large request grew it
+     */
+    void clear() {
+        if (buf.buf.length > KEEP_CAPACITY) {
+            buf = new MemoryStream(4096);
+        } else {
+            buf.clear();
+        }
+    }
+
+    /**
+     * @param requests requests encoded by another encoder
+     */
+    void append(MemoryStream requests) {
+        buf.write(requests.buf, requests.data, requests.size);
+    }
+
+    void encode(String cmd, byte[]... params) {
+        header(cmd);
+        for (byte[] bs : params) {
+            param(bs);
+        }
+        buf.write('\n');
+    }
+
+    void encode(String cmd, String... params) {
+        header(cmd);
+        for (String s : params) {
+            param(s);
+        }
+        buf.write('\n');
+    }
+
+    void encode(String cmd, List<byte[]> params) {
+        header(cmd);
+        for (int i = 0; i < params.size(); i++) {
+            param(params.get(i));
+        }
+        buf.write('\n');
+    }
+
+    void encode(String cmd, Object... params) {
+        header(cmd);
+        for (Object o : params) {
+            if (o instanceof byte[]) {
+                param((byte[]) o);
+            } else if (o instanceof CharSequence) {
+                param((CharSequence) o);
+            } else if (o instanceof Number) {
+                param(((Number) o).longValue());
+            } else {
+                throw new IllegalArgumentException("unsupported parameter: " + (o == null ? "null" : o.getClass().getName()));
+            }
+        }
+        buf.write('\n');
+    }
+
+    /**
+     * Encode a request whose last parameter is streamed by the caller: the command, the params and
+     * the length line of the last parameter. The caller sends its body, then <code>"\n\n"</code>.
+     *
+     * @param bodyLength length of the streamed parameter
+     */
+    void encodeHead(String cmd, long bodyLength, String... params) {
+        header(cmd);
+        for (String s : params) {
+            param(s);
+        }
+        buf.writeDecimal(bodyLength);
+        buf.write('\n');
+    }
+
+    private void header(String cmd) {
+        byte[] h = headers.get(cmd);
+        if (h == null) {
+            MemoryStream ms = new MemoryStream(cmd.length() + 8);
+            ms.writeDecimal(utf8Length(cmd));
+            ms.write('\n');
+            ms.writeUtf8(cmd);
+            ms.write('\n');
+            h = ms.toArray();
+            headers.putIfAbsent(cmd, h);
+        }
+        buf.write(h);
+    }
+
+    private void param(byte[] bs) {
+        buf.writeDecimal(bs.length);
+        buf.write('\n');
+        buf.write(bs);
+        buf.write('\n');
+    }
+
+    private void param(CharSequence s) {
+        buf.writeDecimal(utf8Length(s));
+        buf.write('\n');
+        buf.writeUtf8(s);
+        buf.write('\n');
+    }
+
+    private void param(long v) {
+        buf.writeDecimal(decimalLength(v));
+        buf.write('\n');
+        buf.writeDecimal(v);
+        buf.write('\n');
+    }
+
+    /**
+     * @param v number
+     * @return number of chars of v in decimal
+     */
+    static int decimalLength(long v) {
+        if (v == Long.MIN_VALUE) {
+            return 20;
+        }
+        int len = 1;
+        if (v < 0) {
+            len++;
+            v = -v;
+        }
+        while (v >= 10) {
+            v /= 10;
+            len++;
+        }
+        return len;
+    }
+
+    /**
+     * @param s chars
+     * @return number of bytes of s in UTF-8, unpaired surrogates count as '?'
+     */
+    static int utf8Length(CharSequence s) {
+        int n = s.length();
+        int len = n;
+        for (int i = 0; i < n; i++) {
+            char c = s.charAt(i);
+            if (c >= 0x80) {
+                if (c < 0x800) {
+                    len += 1;
+                } else if (Character.isHighSurrogate(c) && i + 1 < n && Character.isLowSurrogate(s.charAt(i + 1))) {
+                    len += 2; // 4 bytes for 2 chars
+                    i++;
+                } else if (Character.isSurrogate(c)) {
+                    // written as '?'
+                } else {
+                    len += 2;
+                }
+            }
+        }
+        return len;
+    }
+}
@@ -1,19 +1,39 @@
 package com.udpwork.ssdb;
 
+import java.io.EOFException;
+import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
 import java.net.Socket;
+import java.nio.charset.StandardCharsets;
 import java.util.ArrayList;
 import java.util.Arrays;
-import java.util.Collections;
 import java.util.List;
 
 public class Link {
+    /**
+     * chunk of a streamed value
+     */
+    static final int STREAM_CHUNK = 64 * 1024;
+    /**
+     * end of the streamed parameter, and of the request
+     */
+    private static final byte[] END_OF_STREAMED = {'\n', '\n'};
+
     private Socket sock = null;
     private MemoryStream input = new MemoryStream();
+    private final ResponseParser parser = new ResponseParser();
+    private final CommandEncoder encoder = new CommandEncoder();
     private String host;
     private int port;
     private int timeout_ms;
+    protected volatile MetricsSink metrics = MetricsSink.NONE;
+
+    /**
+     * for links which do not own a socket of their own, see {@link MuxLink}
+     */
+    protected Link() {
+    }
 
     public Link(String host, int port) throws Exception {
         this(host, port, 0);
@@ -27,17 +47,27 @@ public class Link {
     }
 
     private void init(String host, int port, int timeout_ms) throws Exception {
-        sock = new Socket(host, port);
-        if (timeout_ms > 0) {
-            sock.setSoTimeout(timeout_ms);
-        }
-        sock.setTcpNoDelay(true);
+        // tcp, or a unix domain socket for a host of "unix:/path/to/ssdb.sock"
+        sock = UnixSocket.connect(host, port, timeout_ms);
     }
 
     public void relink() throws Exception {
         close();
         init(this.host, this.port, this.timeout_ms);
         input = new MemoryStream();
+        parser.reset();
+        metrics.reconnect();
+    }
+
+    /**
+     * @param metrics receiver of the latency and size of each request, {@link MetricsSink#NONE} for none
+     */
+    public void setMetrics(MetricsSink metrics) {
+        this.metrics = metrics == null ? MetricsSink.NONE : metrics;
+    }
+
+    public MetricsSink getMetrics() {
+        return metrics;
     }
 
     public void close() {
@@ -89,41 +119,265 @@ public class Link {
         return sock != null && sock.isConnected();
     }
 
+    /**
+     * Check the server answers within timeout_ms, the link should be relinked if it does not.
+     *
+     * @param timeout_ms longest wait for the response, 0 for the timeout of the link
+     * @return true if the server answered ok
+     */
+    public boolean ping(int timeout_ms) {
+        if (isClosed()) {
+            return false;
+        }
+        try {
+            if (timeout_ms > 0) {
+                sock.setSoTimeout(timeout_ms);
+            }
+            try {
+                return request("ping", new String[0]).ok();
+            } finally {
+                if (timeout_ms > 0) {
+                    sock.setSoTimeout(this.timeout_ms);
+                }
+            }
+        } catch (Exception e) {
+            return false;
+        }
+    }
+
     public Response request(String cmd, byte[]... params) throws Exception {
-        ArrayList<byte[]> list;
-        list = new ArrayList<>();
-        Collections.addAll(list, params);
-        return this.request(cmd, list);
+        encoder.encode(cmd, params);
+        return call(cmd);
     }
 
+    /**
+     * @param cmd    command name
+     * @param params parameters, encoded as UTF-8
+     * @return response
+     * @throws Exception network error
+     */
     public Response request(String cmd, String... params) throws Exception {
-        ArrayList<byte[]> list;
-        list = new ArrayList<>();
-        for (String s : params) {
-            list.add(s.getBytes());
-        }
-        return this.request(cmd, list);
+        encoder.encode(cmd, params);
+        return call(cmd);
     }
 
     public Response request(String cmd, List<byte[]> params) throws Exception {
-        MemoryStream buf = new MemoryStream(4096);
-        Integer len = cmd.length();
-        buf.write(len.toString());
-        buf.write('\n');
-        buf.write(cmd);
-        buf.write('\n');
-        for (byte[] bs : params) {
-            len = bs.length;
-            buf.write(len.toString());
-            buf.write('\n');
-            buf.write(bs);
-            buf.write('\n');
+        encoder.encode(cmd, params);
+        return call(cmd);
+    }
+
+    /**
+     * @param cmd    command name
+     * @param params parameters of byte[], CharSequence (encoded as UTF-8) or Number (encoded in decimal)
+     * @return response
+     * @throws Exception network error
+     */
+    public Response request(String cmd, Object... params) throws Exception {
+        encoder.encode(cmd, params);
+        return call(cmd);
+    }
+
+    private Response call(String cmd) throws Exception {
+        long start = System.nanoTime();
+        int sent = encoder.buffer().size;
+        Response resp = null;
+        try {
+            try {
+                send(encoder.buffer());
+            } finally {
+                encoder.clear();
+            }
+            resp = recv();
+            return resp;
+        } finally {
+            record(cmd, start, sent, resp);
         }
-        buf.write('\n');
-        send(buf);
+    }
 
-        List<byte[]> list = recv();
-        return new Response(list);
+    private void record(String cmd, long start, int sent, Response resp) {
+        if (metrics != MetricsSink.NONE) {
+            boolean failed = resp == null || !(resp.ok() || resp.not_found());
+            metrics.command(cmd, System.nanoTime() - start, sent, resp == null ? 0 : parser.lastSize(), failed);
+        }
+    }
+
+    /**
+     * Send many encoded requests with one flush, and read their responses in order.
+     *
+     * @param buf   encoded requests
+     * @param count number of requests in buf
+     * @return responses
+     * @throws Exception network error
+     */
+    List<Response> request(MemoryStream buf, int count) throws Exception {
+        long start = System.nanoTime();
+        int received = 0;
+        boolean failed = true;
+        try {
+            send(buf);
+
+            List<Response> ret = new ArrayList<>(count);
+            for (int i = 0; i < count; i++) {
+                ret.add(recv());
+                received += parser.lastSize();
+            }
+            failed = false;
+            return ret;
+        } finally {
+            if (metrics != MetricsSink.NONE) {
+                metrics.command("pipeline", System.nanoTime() - start, buf.size, received, failed);
+            }
+        }
+    }
+
+    /**
+     * Send a request whose last parameter is read from in, a chunk at a time, so a large value is
+     * never held in memory as a whole.
+     *
+     * @param cmd    command name
+     * @param in     body of the last parameter, exactly length bytes are read from it
+     * @param length length of the body
+     * @param params parameters before the streamed one, encoded as UTF-8
+     * @return response
+     * @throws Exception network error, or in ended before length bytes, the link should be relinked then
+     */
+    public Response requestFrom(String cmd, InputStream in, long length, String... params) throws Exception {
+        long start = System.nanoTime();
+        int sent = 0;
+        Response resp = null;
+        try {
+            encoder.encodeHead(cmd, length, params);
+            try {
+                sent = encoder.buffer().size;
+                send(encoder.buffer());
+            } finally {
+                encoder.clear();
+            }
+            OutputStream os = sock.getOutputStream();
+            byte[] chunk = new byte[(int) Math.min(STREAM_CHUNK, Math.max(length, 1))];
+            long left = length;
+            while (left > 0) {
+                int n = in.read(chunk, 0, (int) Math.min(chunk.length, left));
+                if (n < 0) {
+                    throw new IOException("stream ended " + left + " bytes before its length " + length);
+                }
+                os.write(chunk, 0, n);
+                left -= n;
+            }
+            os.write(END_OF_STREAMED);
+            os.flush();
+            resp = recv();
+            return resp;
+        } finally {
+            if (metrics != MetricsSink.NONE) {
+                boolean failed = resp == null || !(resp.ok() || resp.not_found());
+                metrics.command(cmd, System.nanoTime() - start, (int) Math.min(Integer.MAX_VALUE, sent + length),
+                        resp == null ? 0 : parser.lastSize(), failed);
+            }
+        }
+    }
+
+    /**
+     * Send a request whose response is a single value, and write the value to out a chunk at a
+     * time as it arrives, so a large value is never held in memory as a whole.
+     *
+     * @param out    receiver of the value
+     * @param cmd    command name
+     * @param params parameters, encoded as UTF-8
+     * @return the status, followed by the length of the value written if ok
+     * @throws Exception network error, or out failed, the link should be relinked then
+     */
+    public Response requestTo(OutputStream out, String cmd, String... params) throws Exception {
+        long start = System.nanoTime();
+        int sent = 0;
+        long received = 0;
+        Response resp = null;
+        try {
+            encoder.encode(cmd, params);
+            try {
+                sent = encoder.buffer().size;
+                send(encoder.buffer());
+            } finally {
+                encoder.clear();
+            }
+            InputStream is = sock.getInputStream();
+            String status = readLine(is);
+            while (status.isEmpty()) {
+                status = readLine(is); // empty leading lines
+            }
+            status = new String(readBody(is, Integer.parseInt(status)), StandardCharsets.UTF_8);
+            long length = -1;
+            String line = readLine(is);
+            if (!line.isEmpty() && "ok".equals(status)) {
+                length = Long.parseLong(line);
+                long left = length;
+                while (left > 0) {
+                    if (input.size == 0) {
+                        more(is);
+                    }
+                    int n = (int) Math.min(left, input.size);
+                    out.write(input.buf, input.data, n);
+                    input.decr(n);
+                    left -= n;
+                }
+                readBody(is, 0);
+                line = readLine(is);
+            }
+            // fields which are not streamed, e.g. the message of an error
+            List<byte[]> fields = new ArrayList<>();
+            fields.add(status.getBytes(StandardCharsets.UTF_8));
+            while (!line.isEmpty()) {
+                if (length < 0) {
+                    fields.add(readBody(is, Integer.parseInt(line)));
+                } else {
+                    readBody(is, Integer.parseInt(line));
+                }
+                line = readLine(is);
+            }
+            if (length >= 0) {
+                fields.add(Long.toString(length).getBytes(StandardCharsets.US_ASCII));
+                received = length;
+            }
+            resp = new Response(fields);
+            return resp;
+        } finally {
+            if (metrics != MetricsSink.NONE) {
+                boolean failed = resp == null || !(resp.ok() || resp.not_found());
+                metrics.command(cmd, System.nanoTime() - start, sent, (int) Math.min(Integer.MAX_VALUE, received), failed);
+            }
+        }
+    }
+
+    // a line of the response, without its '\n'
+    private String readLine(InputStream is) throws IOException {
+        int pos;
+        while ((pos = input.memchr('\n', 0)) < 0) {
+            if (input.size > 64) {
+                throw new IOException("Invalid response: length line too long");
+            }
+            more(is);
+        }
+        int len = pos > 0 && input.buf[input.data + pos - 1] == '\r' ? pos - 1 : pos;
+        String line = new String(input.buf, input.data, len, StandardCharsets.US_ASCII);
+        input.decr(pos + 1);
+        return line;
+    }
+
+    // a field body of len bytes and its '\n'
+    private byte[] readBody(InputStream is, int len) throws IOException {
+        while (input.size < len + 1) {
+            more(is);
+        }
+        byte[] body = Arrays.copyOfRange(input.buf, input.data, input.data + len);
+        input.decr(len + 1);
+        return body;
+    }
+
+    private void more(InputStream is) throws IOException {
+        input.nice();
+        if (input.read(is, 8192) < 0) {
+            throw new EOFException("connection closed by server");
+        }
     }
 
     private void send(MemoryStream buf) throws Exception {
@@ -133,55 +387,19 @@ public class Link {
         os.flush();
     }
 
-    private List<byte[]> recv() throws Exception {
+    private Response recv() throws Exception {
         input.nice();
         InputStream is = sock.getInputStream();
         while (true) {
-            List<byte[]> ret = parse();
+            Response ret = parser.parse(input);
             if (ret != null) {
                 return ret;
             }
-            byte[] bs = new byte[8192];
-            int len = is.read(bs);
-            //System.out.println("<< " + (new MemoryStream(bs, 0, len)).printable());
-            input.write(bs, 0, len);
-        }
-    }
-
-    private List<byte[]> parse() {
-        ArrayList<byte[]> list;
-        list = new ArrayList<>();
-        byte[] buf = input.buf;
-
-        int idx = 0;
-        while (true) {
-            int pos = input.memchr('\n', idx);
-            //System.out.println("pos: " + pos + " idx: " + idx);
-            if (pos == -1) {
-                break;
-            }
-            if (pos == idx || (pos == idx + 1 && buf[idx] == '\r')) {
-                // ignore empty leading lines
-                if (list.isEmpty()) {
-                    idx += 1; // if '\r', next time will skip '\n'
-                    continue;
-                } else {
-                    input.decr(idx + 1);
-                    return list;
-                }
-            }
-            String str = new String(buf, input.data + idx, pos - idx);
-            int len = Integer.parseInt(str);
-            idx = pos + 1;
-            if (idx + len >= input.size) {
-                break;
+            // read straight into the input buffer, at least 8 KB free
+            if (input.read(is, 8192) < 0) {
+                throw new EOFException("connection closed by server");
             }
-            byte[] data = Arrays.copyOfRange(buf, input.data + idx, input.data + idx + len);
-            //System.out.println("len: " + len + " data: " + data.length);
-            idx += len + 1; // skip '\n'
-            list.add(data);
         }
-        return null;
     }
 
 }
@@ -1,5 +1,8 @@
 package com.udpwork.ssdb;
 
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
 import java.util.Arrays;
 
 public class MemoryStream {
@@ -72,13 +75,25 @@ public class MemoryStream {
     }
 
     public void nice() {
-        if (data > capacity / 2) {
+        if (size == 0) {
+            data = 0;
+            slot = 0;
+        } else if (data > capacity / 2) {
             System.arraycopy(buf, data, buf, 0, size);
             data = 0;
             slot = size;
         }
     }
 
+    /**
+     * drop all data, and keep the allocated buffer for reuse
+     */
+    public void clear() {
+        data = 0;
+        slot = 0;
+        size = 0;
+    }
+
     public void decr(int num) {
         size -= num;
         data += num;
@@ -90,13 +105,76 @@ public class MemoryStream {
 
     public void write(byte b) {
         realloc(1);
-        buf[size] = b;
+        buf[slot] = b;
         size += 1;
         slot += 1;
     }
 
     public void write(String s) {
-        this.write(s.getBytes());
+        this.writeUtf8(s);
+    }
+
+    /**
+     * write a number in decimal without allocation
+     *
+     * @param v number
+     */
+    public void writeDecimal(long v) {
+        int len = CommandEncoder.decimalLength(v);
+        realloc(len);
+        if (v == Long.MIN_VALUE) {
+            byte[] bs = Long.toString(v).getBytes(StandardCharsets.US_ASCII);
+            System.arraycopy(bs, 0, buf, slot, len);
+        } else {
+            int pos = slot + len;
+            boolean negative = v < 0;
+            if (negative) {
+                v = -v;
+            }
+            do {
+                buf[--pos] = (byte) ('0' + (v % 10));
+                v /= 10;
+            } while (v != 0);
+            if (negative) {
+                buf[--pos] = '-';
+            }
+        }
+        size += len;
+        slot += len;
+    }
+
+    /**
+     * write chars in UTF-8 without allocation, unpaired surrogates are written as '?'
+     *
+     * @param s chars
+     */
+    public void writeUtf8(CharSequence s) {
+        int n = s.length();
+        realloc(CommandEncoder.utf8Length(s));
+        int pos = slot;
+        for (int i = 0; i < n; i++) {
+            char c = s.charAt(i);
+            if (c < 0x80) {
+                buf[pos++] = (byte) c;
+            } else if (c < 0x800) {
+                buf[pos++] = (byte) (0xc0 | (c >> 6));
+                buf[pos++] = (byte) (0x80 | (c & 0x3f));
+            } else if (Character.isHighSurrogate(c) && i + 1 < n && Character.isLowSurrogate(s.charAt(i + 1))) {
+                int cp = Character.toCodePoint(c, s.charAt(++i));
+                buf[pos++] = (byte) (0xf0 | (cp >> 18));
+                buf[pos++] = (byte) (0x80 | ((cp >> 12) & 0x3f));
+                buf[pos++] = (byte) (0x80 | ((cp >> 6) & 0x3f));
+                buf[pos++] = (byte) (0x80 | (cp & 0x3f));
+            } else if (Character.isSurrogate(c)) {
+                buf[pos++] = '?';
+            } else {
+                buf[pos++] = (byte) (0xe0 | (c >> 12));
+                buf[pos++] = (byte) (0x80 | ((c >> 6) & 0x3f));
+                buf[pos++] = (byte) (0x80 | (c & 0x3f));
+            }
+        }
+        size += pos - slot;
+        slot = pos;
     }
 
     public void write(byte[] bs) {
@@ -110,6 +188,24 @@ public class MemoryStream {
         slot += len;
     }
 
+    /**
+     * Read from is straight into the free space of this buffer.
+     *
+     * @param is  input
+     * @param min grow the buffer first if less than min bytes are free
+     * @return number of bytes read, or -1 at end of stream
+     * @throws IOException read failed
+     */
+    public int read(InputStream is, int min) throws IOException {
+        realloc(min);
+        int len = is.read(buf, slot, space());
+        if (len > 0) {
+            size += len;
+            slot += len;
+        }
+        return len;
+    }
+
     public int memchr(int b, int offset) {
         return this.memchr((byte) b, offset);
     }
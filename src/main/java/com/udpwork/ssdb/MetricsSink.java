@@ -0,0 +1,41 @@
+package com.udpwork.ssdb;
+
+/**
+ * Receiver of the measures of a {@link Link} and of the pool around it, see {@link SSDBMetrics}
+ * for one which keeps histograms. Called on the request path, so an implementation should only
+ * record and return.
+ */
+public interface MetricsSink {
+    MetricsSink NONE = new MetricsSink() {
+        @Override
+        public void command(String cmd, long nanos, int requestBytes, int responseBytes, boolean failed) {
+        }
+
+        @Override
+        public void reconnect() {
+        }
+
+        @Override
+        public void borrow(long waitNanos) {
+        }
+    };
+
+    /**
+     * @param cmd           command name, "pipeline" for a pipelined batch
+     * @param nanos         time from sending the request to parsing its response
+     * @param requestBytes  bytes sent, 0 if not known
+     * @param responseBytes bytes received, 0 if not known or failed
+     * @param failed        network error, or a response which is neither ok nor not_found
+     */
+    void command(String cmd, long nanos, int requestBytes, int responseBytes, boolean failed);
+
+    /**
+     * a link was connected again
+     */
+    void reconnect();
+
+    /**
+     * @param waitNanos time spent taking a client from the pool
+     */
+    void borrow(long waitNanos);
+}
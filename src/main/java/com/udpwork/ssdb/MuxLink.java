@@ -0,0 +1,286 @@
+package com.udpwork.ssdb;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A link shared by many threads, backed by a small fixed set of {@link AsyncSSDB} connections.
+ * <p>
+ * Each request is queued on one of the connections in turn. Requests queued on a connection
+ * while it is writing are coalesced into one write, and since SSDB answers strictly in order the
+ * responses are matched to the callers in FIFO order, so concurrent callers are pipelined
+ * implicitly. The calling thread blocks until its own response arrives.
+ * <p>
+ * A connection which has failed is reconnected by the next request routed to it. Example:
+ * <p>
+ * <pre>
+ * MuxLink mux = new MuxLink(&quot;127.0.0.1&quot;, 8888, 10000, 4);
+ * SSDB ssdb = new SSDB(mux); // may be used by any number of threads
+ * ssdb.set(&quot;a&quot;, &quot;123&quot;);
+ * mux.close();
+ * </pre>
+ */
+public class MuxLink extends Link {
+    private final AsyncSSDB[] conns;
+    private final AtomicInteger next = new AtomicInteger();
+
+    /**
+     * @param host        host of ssdb server
+     * @param port        port of ssdb server
+     * @param timeout_ms  connect timeout, and the longest time a request may wait for its response, 0 for never
+     * @param connections number of sockets to the server
+     * @throws Exception connect failed
+     */
+    public MuxLink(String host, int port, int timeout_ms, int connections) throws Exception {
+        if (connections <= 0) {
+            throw new IllegalArgumentException("connections: " + connections);
+        }
+        conns = new AsyncSSDB[connections];
+        try {
+            for (int i = 0; i < connections; i++) {
+                conns[i] = new AsyncSSDB(host, port, timeout_ms);
+            }
+        } catch (Exception e) {
+            close();
+            throw e;
+        }
+    }
+
+    /**
+     * @return number of sockets to the server
+     */
+    public int connections() {
+        return conns.length;
+    }
+
+    /**
+     * @return number of requests waiting for their response, over all connections
+     */
+    public int pendingCount() {
+        int n = 0;
+        for (AsyncSSDB c : conns) {
+            n += c.pendingCount();
+        }
+        return n;
+    }
+
+    /**
+     * Reconnect the connections which have failed, the healthy ones are kept.
+     *
+     * @throws Exception connect failed
+     */
+    @Override
+    public void relink() throws Exception {
+        for (AsyncSSDB c : conns) {
+            ensureActive(c);
+        }
+    }
+
+    @Override
+    public void close() {
+        for (AsyncSSDB c : conns) {
+            if (c != null) {
+                c.close();
+            }
+        }
+    }
+
+    @Override
+    public boolean isClosed() {
+        return !isActive();
+    }
+
+    /**
+     * @return true if any of the connections is usable
+     */
+    @Override
+    public boolean isActive() {
+        for (AsyncSSDB c : conns) {
+            if (c.isActive()) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    @Override
+    public boolean isConnected() {
+        return isActive();
+    }
+
+    /**
+     * ping each of the connections, reconnecting those which have failed
+     *
+     * @return true if any of the connections answered in time
+     */
+    @Override
+    public boolean ping(int timeout_ms) {
+        boolean ok = false;
+        for (AsyncSSDB c : conns) {
+            try {
+                ensureActive(c);
+                CompletableFuture<Response> f = c.request("ping", new String[0]);
+                Response resp = timeout_ms > 0 ? f.get(timeout_ms, TimeUnit.MILLISECONDS) : f.get();
+                ok |= resp.ok();
+            } catch (Exception e) {
+                if (e instanceof InterruptedException) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+        }
+        return ok;
+    }
+
+    @Override
+    public Response request(String cmd, byte[]... params) throws Exception {
+        long start = System.nanoTime();
+        Response resp = null;
+        try {
+            resp = await(pick().request(cmd, params));
+            return resp;
+        } finally {
+            record(cmd, start, resp);
+        }
+    }
+
+    @Override
+    public Response request(String cmd, String... params) throws Exception {
+        long start = System.nanoTime();
+        Response resp = null;
+        try {
+            resp = await(pick().request(cmd, params));
+            return resp;
+        } finally {
+            record(cmd, start, resp);
+        }
+    }
+
+    @Override
+    public Response request(String cmd, List<byte[]> params) throws Exception {
+        long start = System.nanoTime();
+        Response resp = null;
+        try {
+            resp = await(pick().request(cmd, params));
+            return resp;
+        } finally {
+            record(cmd, start, resp);
+        }
+    }
+
+    @Override
+    public Response request(String cmd, Object... params) throws Exception {
+        long start = System.nanoTime();
+        Response resp = null;
+        try {
+            resp = await(pick().request(cmd, params));
+            return resp;
+        } finally {
+            record(cmd, start, resp);
+        }
+    }
+
+    /**
+     * The connections parse whole responses, so the value is read into memory and then sent,
+     * use a {@link Link} of its own to stream large values.
+     */
+    @Override
+    public Response requestFrom(String cmd, InputStream in, long length, String... params) throws Exception {
+        if (length > Integer.MAX_VALUE) {
+            throw new IllegalArgumentException("length: " + length);
+        }
+        byte[] body = new byte[(int) length];
+        int off = 0;
+        while (off < body.length) {
+            int n = in.read(body, off, body.length - off);
+            if (n < 0) {
+                throw new IOException("stream ended " + (body.length - off) + " bytes before its length " + length);
+            }
+            off += n;
+        }
+        Object[] args = Arrays.copyOf(params, params.length + 1, Object[].class);
+        args[params.length] = body;
+        return request(cmd, args);
+    }
+
+    /**
+     * The connections parse whole responses, so the value is read into memory and then written to
+     * out, use a {@link Link} of its own to stream large values.
+     */
+    @Override
+    public Response requestTo(OutputStream out, String cmd, String... params) throws Exception {
+        Response resp = request(cmd, params);
+        if (!resp.ok() || resp.size() < 1) {
+            return resp;
+        }
+        byte[] value = resp.get(0);
+        out.write(value);
+        return new Response(Arrays.asList(resp.status.getBytes(StandardCharsets.UTF_8),
+                Integer.toString(value.length).getBytes(StandardCharsets.US_ASCII)));
+    }
+
+    /**
+     * a pipeline is kept on one connection, so its responses stay in order
+     */
+    @Override
+    List<Response> request(MemoryStream buf, int count) throws Exception {
+        long start = System.nanoTime();
+        int sent = buf.size;
+        boolean failed = true;
+        try {
+            List<Response> ret = await(pick().request(buf, count));
+            failed = false;
+            return ret;
+        } finally {
+            if (metrics != MetricsSink.NONE) {
+                metrics.command("pipeline", System.nanoTime() - start, sent, 0, failed);
+            }
+        }
+    }
+
+    /**
+     * the responses are parsed by the connections, so only the latency is known
+     */
+    private void record(String cmd, long start, Response resp) {
+        if (metrics != MetricsSink.NONE) {
+            boolean failed = resp == null || !(resp.ok() || resp.not_found());
+            metrics.command(cmd, System.nanoTime() - start, 0, 0, failed);
+        }
+    }
+
+    private AsyncSSDB pick() throws Exception {
+        AsyncSSDB c = conns[(next.getAndIncrement() & Integer.MAX_VALUE) % conns.length];
+        ensureActive(c);
+        return c;
+    }
+
+    private void ensureActive(AsyncSSDB c) throws Exception {
+        if (!c.isActive()) {
+            synchronized (c) {
+                if (!c.isActive()) {
+                    c.relink();
+                    metrics.reconnect();
+                }
+            }
+        }
+    }
+
+    private static <T> T await(CompletableFuture<T> future) throws Exception {
+        try {
+            return future.get();
+        } catch (ExecutionException e) {
+            Throwable t = e.getCause();
+            if (t instanceof Exception) {
+                throw (Exception) t;
+            }
+            throw e;
+        }
+    }
+}
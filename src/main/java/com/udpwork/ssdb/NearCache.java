@@ -0,0 +1,221 @@
+package com.udpwork.ssdb;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Bounded in-process cache of values read from SSDB, with per entry expiry.
+ * <p>
+ * Eviction is segmented LRU: a new entry is admitted to the probation segment, and is promoted
+ * to the protected segment (80% of the capacity) when it is read again. A key read once, e.g. by
+ * a scan, is evicted before the keys which are read repeatedly. The cache is split into stripes
+ * by key hash, each with its own lock.
+ * <p>
+ * A value loaded from the server may be stale by the time it is put, if the key was written in
+ * between. Take {@link #version(String)} before loading and pass it to
+ * {@link #put(String, Object, long, long)}, the put is dropped if the stripe was invalidated since.
+ */
+public class NearCache {
+    private static final int STRIPES = 16;
+
+    private final Stripe[] stripes = new Stripe[STRIPES];
+    private final long maxTtlMs;
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+    private final LongAdder evictions = new LongAdder();
+
+    /**
+     * @param maxSize  max number of entries
+     * @param maxTtlMs longest time an entry is kept, whatever its own ttl
+     */
+    public NearCache(int maxSize, long maxTtlMs) {
+        if (maxSize <= 0 || maxTtlMs <= 0) {
+            throw new IllegalArgumentException("maxSize: " + maxSize + ", maxTtlMs: " + maxTtlMs);
+        }
+        int capacity = Math.max(1, (maxSize + STRIPES - 1) / STRIPES);
+        for (int i = 0; i < STRIPES; i++) {
+            stripes[i] = new Stripe(capacity);
+        }
+        this.maxTtlMs = maxTtlMs;
+    }
+
+    /**
+     * @param key key
+     * @return cached value, null if absent or expired
+     */
+    public Object get(String key) {
+        Object v = stripe(key).get(key, System.currentTimeMillis());
+        if (v == null) {
+            misses.increment();
+        } else {
+            hits.increment();
+        }
+        return v;
+    }
+
+    /**
+     * @param key key
+     * @return version to pass to {@link #put(String, Object, long, long)} after loading the value
+     */
+    public long version(String key) {
+        return stripe(key).version();
+    }
+
+    /**
+     * @param key     key
+     * @param value   value, not null
+     * @param ttlMs   time to live, capped by max ttl, 0 or negative for max ttl
+     * @param version {@link #version(String)} taken before the value was loaded
+     */
+    public void put(String key, Object value, long ttlMs, long version) {
+        long ttl = ttlMs > 0 ? Math.min(ttlMs, maxTtlMs) : maxTtlMs;
+        stripe(key).put(key, value, System.currentTimeMillis() + ttl, version);
+    }
+
+    public void invalidate(String key) {
+        stripe(key).invalidate(key);
+    }
+
+    /**
+     * drop every entry whose key starts with prefix
+     */
+    public void invalidatePrefix(String prefix) {
+        for (Stripe s : stripes) {
+            s.invalidatePrefix(prefix);
+        }
+    }
+
+    public void clear() {
+        invalidatePrefix("");
+    }
+
+    public long size() {
+        long n = 0;
+        for (Stripe s : stripes) {
+            n += s.size();
+        }
+        return n;
+    }
+
+    public long hits() {
+        return hits.sum();
+    }
+
+    public long misses() {
+        return misses.sum();
+    }
+
+    /**
+     * @return entries dropped to make room, expired and invalidated entries excluded
+     */
+    public long evictions() {
+        return evictions.sum();
+    }
+
+    public double hitRate() {
+        long h = hits();
+        long total = h + misses();
+        return total == 0 ? 0.0 : (double) h / total;
+    }
+
+    @Override
+    public String toString() {
+        return "NearCache{size=" + size() + ", hits=" + hits() + ", misses=" + misses() + ", evictions=" + evictions() + "}";
+    }
+
+    private Stripe stripe(String key) {
+        int h = key.hashCode();
+        return stripes[(h ^ (h >>> 16)) & (STRIPES - 1)];
+    }
+
+    private static final class Entry {
+        final Object value;
+        final long expireAt;
+
+        Entry(Object value, long expireAt) {
+            this.value = value;
+            this.expireAt = expireAt;
+        }
+    }
+
+    private final class Stripe {
+        private final int capacity;
+        private final int protectedCapacity;
+        // both in LRU order, eldest first
+        private final LinkedHashMap<String, Entry> probation = new LinkedHashMap<>(16, 0.75f, true);
+        private final LinkedHashMap<String, Entry> protect = new LinkedHashMap<>(16, 0.75f, true);
+        private long version = 0;
+
+        Stripe(int capacity) {
+            this.capacity = capacity;
+            this.protectedCapacity = Math.max(1, capacity * 4 / 5);
+        }
+
+        synchronized Object get(String key, long now) {
+            Entry e = protect.get(key);
+            if (e == null) {
+                e = probation.remove(key);
+                if (e == null) {
+                    return null;
+                }
+                if (e.expireAt <= now) {
+                    return null;
+                }
+                // read twice, promote
+                protect.put(key, e);
+                if (protect.size() > protectedCapacity) {
+                    Map.Entry<String, Entry> eldest = protect.entrySet().iterator().next();
+                    protect.remove(eldest.getKey());
+                    probation.put(eldest.getKey(), eldest.getValue());
+                }
+                return e.value;
+            }
+            if (e.expireAt <= now) {
+                protect.remove(key);
+                return null;
+            }
+            return e.value;
+        }
+
+        synchronized long version() {
+            return version;
+        }
+
+        synchronized void put(String key, Object value, long expireAt, long since) {
+            if (version != since) {
+                return; // invalidated while the value was loaded
+            }
+            Entry e = new Entry(value, expireAt);
+            if (protect.containsKey(key)) {
+                protect.put(key, e);
+                return;
+            }
+            probation.put(key, e);
+            while (probation.size() + protect.size() > capacity && !probation.isEmpty()) {
+                Iterator<String> it = probation.keySet().iterator();
+                it.next();
+                it.remove();
+                evictions.increment();
+            }
+        }
+
+        synchronized void invalidate(String key) {
+            version++;
+            if (probation.remove(key) == null) {
+                protect.remove(key);
+            }
+        }
+
+        synchronized void invalidatePrefix(String prefix) {
+            version++;
+            probation.keySet().removeIf(k -> k.startsWith(prefix));
+            protect.keySet().removeIf(k -> k.startsWith(prefix));
+        }
+
+        synchronized int size() {
+            return probation.size() + protect.size();
+        }
+    }
+}
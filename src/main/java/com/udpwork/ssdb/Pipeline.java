@@ -0,0 +1,223 @@
+package com.udpwork.ssdb;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Queue many requests into one buffer, send them with a single flush and read the responses
+ * back in order, so a batch costs one network round trip. Example:
+ * <p>
+ * <pre>
+ * Pipeline p = ssdb.pipeline();
+ * p.set(&quot;a&quot;, &quot;123&quot;);
+ * p.zset(&quot;z&quot;, &quot;a&quot;, 1);
+ * List&lt;Response&gt; resps = p.exec();
+ * </pre>
+ * <p>
+ * The server buffers the responses while the batch is being sent, so keep a batch to a few
+ * thousand commands. A pipeline belongs to the connection it was created from and is not thread
+ * safe.
+ */
+public class Pipeline {
+    private final Link link;
+    private final CommandEncoder encoder = new CommandEncoder();
+    private int count = 0;
+
+    Pipeline(Link link) {
+        this.link = link;
+    }
+
+    /**
+     * @return number of queued requests
+     */
+    public int size() {
+        return count;
+    }
+
+    public Pipeline request(String cmd, byte[]... params) {
+        encoder.encode(cmd, params);
+        count++;
+        return this;
+    }
+
+    public Pipeline request(String cmd, String... params) {
+        encoder.encode(cmd, params);
+        count++;
+        return this;
+    }
+
+    public Pipeline request(String cmd, List<byte[]> params) {
+        encoder.encode(cmd, params);
+        count++;
+        return this;
+    }
+
+    /**
+     * @param cmd    command name
+     * @param params parameters of byte[], CharSequence (encoded as UTF-8) or Number (encoded in decimal)
+     * @return this
+     */
+    public Pipeline request(String cmd, Object... params) {
+        encoder.encode(cmd, params);
+        count++;
+        return this;
+    }
+
+    /**
+     * Send all queued requests and read their responses, the pipeline is empty and reusable
+     * afterwards.
+     *
+     * @return responses, in the same order as the requests
+     * @throws Exception network error, the link should be relinked before reuse
+     */
+    public List<Response> exec() throws Exception {
+        if (count == 0) {
+            return new ArrayList<>();
+        }
+        try {
+            return link.request(encoder.buffer(), count);
+        } finally {
+            encoder.clear();
+            count = 0;
+        }
+    }
+
+    /**
+     * Same as {@link #exec()}, but throws on the first response which is neither ok nor not_found.
+     *
+     * @return responses, in the same order as the requests
+     * @throws Exception network error or error response
+     */
+    public List<Response> sync() throws Exception {
+        List<Response> resps = exec();
+        for (Response resp : resps) {
+            if (!resp.ok() && !resp.not_found()) {
+                resp.exception();
+            }
+        }
+        return resps;
+    }
+
+    /* kv */
+
+    public Pipeline set(byte[] key, byte[] val) {
+        return request("set", key, val);
+    }
+
+    public Pipeline set(String key, String val) {
+        return request("set", key, val);
+    }
+
+    public Pipeline setx(byte[] key, byte[] val, long ttl) {
+        return request("setx", key, val, ttl);
+    }
+
+    public Pipeline setx(String key, String val, long ttl) {
+        return request("setx", key, val, ttl);
+    }
+
+    /**
+     * set the value if the key does not exist, the response is 1 if it was set
+     */
+    public Pipeline setnx(String key, String val) {
+        return request("setnx", key, val);
+    }
+
+    public Pipeline expire(String key, long ttl) {
+        return request("expire", key, ttl);
+    }
+
+    public Pipeline ttl(String key) {
+        return request("ttl", key);
+    }
+
+    public Pipeline get(byte[] key) {
+        return request("get", key);
+    }
+
+    public Pipeline get(String key) {
+        return request("get", key);
+    }
+
+    public Pipeline del(byte[] key) {
+        return request("del", key);
+    }
+
+    public Pipeline del(String key) {
+        return request("del", key);
+    }
+
+    public Pipeline incr(String key, long by) {
+        return request("incr", key, by);
+    }
+
+    /* hashmap */
+
+    public Pipeline hset(String name, byte[] key, byte[] val) {
+        return request("hset", name, key, val);
+    }
+
+    public Pipeline hset(String name, String key, String val) {
+        return request("hset", name, key, val);
+    }
+
+    public Pipeline hget(String name, byte[] key) {
+        return request("hget", name, key);
+    }
+
+    public Pipeline hget(String name, String key) {
+        return request("hget", name, key);
+    }
+
+    public Pipeline hdel(String name, byte[] key) {
+        return request("hdel", name, key);
+    }
+
+    public Pipeline hdel(String name, String key) {
+        return request("hdel", name, key);
+    }
+
+    /* zset */
+
+    public Pipeline zset(String name, byte[] key, long score) {
+        return request("zset", name, key, score);
+    }
+
+    public Pipeline zset(String name, String key, long score) {
+        return request("zset", name, key, score);
+    }
+
+    public Pipeline zget(String name, byte[] key) {
+        return request("zget", name, key);
+    }
+
+    public Pipeline zget(String name, String key) {
+        return request("zget", name, key);
+    }
+
+    public Pipeline zdel(String name, byte[] key) {
+        return request("zdel", name, key);
+    }
+
+    public Pipeline zdel(String name, String key) {
+        return request("zdel", name, key);
+    }
+
+    public Pipeline zincr(String name, String key, long by) {
+        return request("zincr", name, key, by);
+    }
+
+    public Pipeline zclear(byte[] name) {
+        return request("zclear", name);
+    }
+
+    /* queue */
+
+    public Pipeline qpush_back(String name, String data) {
+        return request("qpush_back", name, data);
+    }
+
+    public Pipeline qpush_front(String name, String data) {
+        return request("qpush_front", name, data);
+    }
+}
@@ -0,0 +1,66 @@
+package com.udpwork.ssdb;
+
+import java.net.ConnectException;
+
+/**
+ * Backoff of the connects to one server. After a failed connect, {@link #check()} fails at once
+ * until a wait has passed, doubled at each failure in a row, so the callers of a server which is
+ * down do not each wait for a connect timeout. Share one instance between all the clients of a
+ * server, e.g. those of a pool, so that new clients are held back as well as relinks.
+ */
+public class ReconnectBackoff {
+    private final long backoffMs;
+    private final long maxBackoffMs;
+    /**
+     * failed connects in a row, and the time before which check fails
+     */
+    private int failures = 0;
+    private long after = 0;
+
+    public ReconnectBackoff() {
+        this(50, 5000);
+    }
+
+    /**
+     * @param backoffMs    wait after the first failed connect, 0 to retry at once
+     * @param maxBackoffMs longest wait, however many connects failed in a row
+     */
+    public ReconnectBackoff(long backoffMs, long maxBackoffMs) {
+        this.backoffMs = backoffMs;
+        this.maxBackoffMs = maxBackoffMs;
+    }
+
+    /**
+     * @throws ConnectException backing off, no connect should be tried
+     */
+    public synchronized void check() throws ConnectException {
+        long now = System.currentTimeMillis();
+        if (now < after) {
+            throw new ConnectException("reconnect backing off for " + (after - now) + "ms after " + failures + " failures");
+        }
+    }
+
+    /**
+     * a connect failed
+     */
+    public synchronized void failure() {
+        failures++;
+        long backoff = backoffMs << Math.min(failures - 1, 20);
+        after = System.currentTimeMillis() + Math.min(backoff, maxBackoffMs);
+    }
+
+    /**
+     * a connect succeeded
+     */
+    public synchronized void success() {
+        failures = 0;
+        after = 0;
+    }
+
+    /**
+     * @return failed connects in a row
+     */
+    public synchronized int failures() {
+        return failures;
+    }
+}
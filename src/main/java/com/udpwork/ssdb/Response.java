@@ -1,11 +1,32 @@
 package com.udpwork.ssdb;
 
 import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.AbstractList;
+import java.util.AbstractMap;
+import java.util.AbstractSet;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
 import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Set;
 
+/**
+ * Response of a request, the first field is the status.
+ * <p>
+ * Responses read by {@link Link} keep every field as an offset/length slice into one frame
+ * buffer. A field is copied to its own <code>byte[]</code> only when it is asked for by
+ * {@link #raw}, {@link #keys}, {@link #items} or {@link #get(int)}, and the same array is
+ * returned for later accesses, so the identity keyed {@link #items} keeps working. The flat
+ * accessors ({@link #key(int)}, {@link #valueString(int)}, {@link #valueBuffer(int)}, ...)
+ * read pairs by index without building the map, and numbers are parsed straight from the
+ * bytes by {@link #getLong(int)} and {@link #valueLong(int)}.
+ */
 public class Response {
     public String status;
     public List<byte[]> raw;
@@ -18,20 +39,75 @@ public class Response {
      */
     public Map<byte[], byte[]> items = new LinkedHashMap<byte[], byte[]>();
 
+    /**
+     * frame which the slices point into, null if the fields are given as a list
+     */
+    private final byte[] buf;
+    /**
+     * offset and length of every field, including status
+     */
+    private final int[] slices;
+    private final int count;
+    /**
+     * fields materialized so far
+     */
+    private final byte[][] cache;
+
     public Response(List<byte[]> raw) {
         this.raw = raw;
+        this.buf = null;
+        this.slices = null;
+        this.count = raw.size();
+        this.cache = null;
         if (raw.size() > 0) {
-            status = new String(raw.get(0));
+            status = new String(raw.get(0), StandardCharsets.UTF_8);
+        }
+    }
+
+    /**
+     * @param buf    frame buffer
+     * @param slices offset and length of each field in buf
+     * @param count  number of fields, including status
+     */
+    Response(byte[] buf, int[] slices, int count) {
+        this.buf = buf;
+        this.slices = slices;
+        this.count = count;
+        this.cache = new byte[count][];
+        this.raw = new FieldList(0, 1, count);
+        if (count > 0) {
+            status = status(buf, slices[0], slices[1]);
+        }
+    }
+
+    private static String status(byte[] buf, int off, int len) {
+        if (equals(buf, off, len, "ok")) {
+            return "ok";
+        } else if (equals(buf, off, len, "not_found")) {
+            return "not_found";
         }
+        return new String(buf, off, len, StandardCharsets.UTF_8);
+    }
+
+    private static boolean equals(byte[] buf, int off, int len, String s) {
+        if (len != s.length()) {
+            return false;
+        }
+        for (int i = 0; i < len; i++) {
+            if (buf[off + i] != s.charAt(i)) {
+                return false;
+            }
+        }
+        return true;
     }
 
     public Object exception() throws Exception {
         if (raw.size() == 0) {
             throw new IOException("no response");
         } else if (raw.size() == 1) {
-            throw new IOException(new String(raw.get(0)));
+            throw new IOException(new String(raw.get(0), StandardCharsets.UTF_8));
         } else if (raw.size() >= 2) {
-            throw new IOException(new String(raw.get(0)) + " : " + new String(raw.get(1)));
+            throw new IOException(new String(raw.get(0), StandardCharsets.UTF_8) + " : " + new String(raw.get(1), StandardCharsets.UTF_8));
         }
         return new Object();
     }
@@ -44,23 +120,460 @@ public class Response {
         return status.equals("not_found");
     }
 
+    /**
+     * View the fields after status as key-value pairs in {@link #keys} and {@link #items}.
+     * The views read the fields in place, and are copied to a list and a map of their own when
+     * they are first modified. {@link #items} looks keys up by identity, with an index built on
+     * the first lookup, {@link #key(int)} and {@link #value(int)} walk the pairs without it.
+     */
     public void buildMap() {
-        for (int i = 1; i < raw.size(); i += 2) {
-            byte[] k = raw.get(i);
-            byte[] v = raw.get(i + 1);
-            keys.add(k);
-            items.put(k, v);
+        keys = new FieldList(1, 2, pairCount());
+        items = new PairMap();
+    }
+
+    /**
+     * View all fields after status as a list in {@link #keys}, copied when it is first modified.
+     */
+    public void buildList() {
+        keys = new FieldList(1, 1, size());
+    }
+
+    /* flat accessors */
+
+    /**
+     * @return number of fields after status
+     */
+    public int size() {
+        return count > 0 ? count - 1 : 0;
+    }
+
+    /**
+     * @param i index of the field after status
+     * @return the field, copied on the first access
+     */
+    public byte[] get(int i) {
+        return field(i + 1);
+    }
+
+    public String getString(int i) {
+        checkIndex(i + 1);
+        if (buf == null) {
+            return new String(raw.get(i + 1), StandardCharsets.UTF_8);
+        }
+        return new String(buf, offset(i + 1), length(i + 1), StandardCharsets.UTF_8);
+    }
+
+    /**
+     * @param i index of the field after status
+     * @return the field parsed as a decimal number, without decoding it to a String
+     * @throws NumberFormatException the field is not a number
+     */
+    public long getLong(int i) {
+        checkIndex(i + 1);
+        if (buf == null) {
+            byte[] bs = raw.get(i + 1);
+            return parseLong(bs, 0, bs.length);
+        }
+        return parseLong(buf, offset(i + 1), length(i + 1));
+    }
+
+    /**
+     * @param i index of the field after status
+     * @return a read only view of the field, without copying
+     */
+    public ByteBuffer getBuffer(int i) {
+        checkIndex(i + 1);
+        if (buf == null) {
+            return ByteBuffer.wrap(raw.get(i + 1)).asReadOnlyBuffer();
+        }
+        return ByteBuffer.wrap(buf, offset(i + 1), length(i + 1)).slice().asReadOnlyBuffer();
+    }
+
+    /**
+     * @param i index of the field after status
+     * @return a view of the field, one char per byte, without copying (for ASCII data)
+     */
+    public CharSequence getChars(int i) {
+        checkIndex(i + 1);
+        if (buf == null) {
+            byte[] bs = raw.get(i + 1);
+            return new ByteChars(bs, 0, bs.length);
+        }
+        return new ByteChars(buf, offset(i + 1), length(i + 1));
+    }
+
+    /**
+     * @return number of key-value pairs after status
+     */
+    public int pairCount() {
+        return size() / 2;
+    }
+
+    public byte[] key(int i) {
+        return get(2 * i);
+    }
+
+    public byte[] value(int i) {
+        return get(2 * i + 1);
+    }
+
+    public String keyString(int i) {
+        return getString(2 * i);
+    }
+
+    public String valueString(int i) {
+        return getString(2 * i + 1);
+    }
+
+    public long keyLong(int i) {
+        return getLong(2 * i);
+    }
+
+    public long valueLong(int i) {
+        return getLong(2 * i + 1);
+    }
+
+    /**
+     * @return the pairs after status as keys with their numeric values, e.g. members and scores
+     * of zrange or zscan
+     * @throws NumberFormatException a value is not a number
+     */
+    public Scores scores() {
+        int n = pairCount();
+        byte[][] ks = new byte[n][];
+        long[] ss = new long[n];
+        for (int i = 0; i < n; i++) {
+            ks[i] = key(i);
+            ss[i] = valueLong(i);
+        }
+        return new Scores(ks, ss);
+    }
+
+    public ByteBuffer keyBuffer(int i) {
+        return getBuffer(2 * i);
+    }
+
+    public ByteBuffer valueBuffer(int i) {
+        return getBuffer(2 * i + 1);
+    }
+
+    public CharSequence keyChars(int i) {
+        return getChars(2 * i);
+    }
+
+    public CharSequence valueChars(int i) {
+        return getChars(2 * i + 1);
+    }
+
+    /**
+     * parse ASCII decimal, same as {@link Long#parseLong(String)}
+     */
+    static long parseLong(byte[] bs, int off, int len) {
+        if (len <= 0) {
+            throw new NumberFormatException("For input string: \"\"");
+        }
+        int i = off;
+        int end = off + len;
+        boolean negative = false;
+        if (bs[i] == '-' || bs[i] == '+') {
+            negative = bs[i] == '-';
+            i++;
+            if (i == end) {
+                throw badNumber(bs, off, len);
+            }
+        }
+        // accumulate negatively, so Long.MIN_VALUE does not overflow
+        long limit = negative ? Long.MIN_VALUE : -Long.MAX_VALUE;
+        long ret = 0;
+        for (; i < end; i++) {
+            int d = bs[i] - '0';
+            if (d < 0 || d > 9 || ret < limit / 10) {
+                throw badNumber(bs, off, len);
+            }
+            ret *= 10;
+            if (ret < limit + d) {
+                throw badNumber(bs, off, len);
+            }
+            ret -= d;
+        }
+        return negative ? ret : -ret;
+    }
+
+    private static NumberFormatException badNumber(byte[] bs, int off, int len) {
+        return new NumberFormatException("For input string: \"" + new String(bs, off, len, StandardCharsets.UTF_8) + "\"");
+    }
+
+    private int offset(int field) {
+        return slices[2 * field];
+    }
+
+    private int length(int field) {
+        return slices[2 * field + 1];
+    }
+
+    private void checkIndex(int field) {
+        if (field < 0 || field >= count) {
+            throw new IndexOutOfBoundsException("field: " + field + ", size: " + count);
+        }
+    }
+
+    private byte[] field(int field) {
+        checkIndex(field);
+        if (buf == null) {
+            return raw.get(field);
+        }
+        byte[] bs = cache[field];
+        if (bs == null) {
+            int off = offset(field);
+            bs = Arrays.copyOfRange(buf, off, off + length(field));
+            cache[field] = bs;
         }
+        return bs;
     }
 
     public void print() {
         System.out.println(String.format("%-15s %s", "key", "value"));
         System.out.println("---------------------");
-        for (byte[] bs : keys) {
-            System.out.print(String.format("%-15s", MemoryStream.repr(bs)));
+        for (int i = 0; i < pairCount(); i++) {
+            System.out.print(String.format("%-15s", MemoryStream.repr(key(i))));
             System.out.print(": ");
-            System.out.print(MemoryStream.repr(items.get(bs)));
+            System.out.print(MemoryStream.repr(value(i)));
             System.out.println();
         }
     }
+
+    /**
+     * list of every step-th field from first, read from the slices until it is first modified,
+     * then from a copy of its own
+     */
+    private class FieldList extends AbstractList<byte[]> {
+        private final int first;
+        private final int step;
+        private final int size;
+        private ArrayList<byte[]> copy;
+
+        FieldList(int first, int step, int size) {
+            this.first = first;
+            this.step = step;
+            this.size = size;
+        }
+
+        @Override
+        public byte[] get(int index) {
+            if (copy != null) {
+                return copy.get(index);
+            }
+            if (index < 0 || index >= size) {
+                throw new IndexOutOfBoundsException("index: " + index + ", size: " + size);
+            }
+            return field(first + index * step);
+        }
+
+        @Override
+        public int size() {
+            return copy != null ? copy.size() : size;
+        }
+
+        @Override
+        public byte[] set(int index, byte[] element) {
+            return copy().set(index, element);
+        }
+
+        @Override
+        public void add(int index, byte[] element) {
+            copy().add(index, element);
+            modCount++;
+        }
+
+        @Override
+        public byte[] remove(int index) {
+            byte[] ret = copy().remove(index);
+            modCount++;
+            return ret;
+        }
+
+        private ArrayList<byte[]> copy() {
+            if (copy == null) {
+                ArrayList<byte[]> c = new ArrayList<>(size);
+                for (int i = 0; i < size; i++) {
+                    c.add(field(first + i * step));
+                }
+                copy = c;
+            }
+            return copy;
+        }
+    }
+
+    /**
+     * map of the pairs after status, keyed by identity of the materialized keys. It is read from
+     * the slices until it is first modified, then from a copy of its own.
+     */
+    private class PairMap extends AbstractMap<byte[], byte[]> {
+        /**
+         * pair index of each key, built on the first lookup
+         */
+        private IdentityHashMap<byte[], Integer> index;
+        private LinkedHashMap<byte[], byte[]> copy;
+        private final Set<Map.Entry<byte[], byte[]>> entries = new AbstractSet<Map.Entry<byte[], byte[]>>() {
+            @Override
+            public Iterator<Map.Entry<byte[], byte[]>> iterator() {
+                if (copy != null) {
+                    return copy.entrySet().iterator();
+                }
+                return new Iterator<Map.Entry<byte[], byte[]>>() {
+                    private int i = 0;
+
+                    @Override
+                    public boolean hasNext() {
+                        return i < pairCount();
+                    }
+
+                    @Override
+                    public Map.Entry<byte[], byte[]> next() {
+                        if (!hasNext()) {
+                            throw new NoSuchElementException();
+                        }
+                        Map.Entry<byte[], byte[]> e = new PairEntry(key(i), value(i));
+                        i++;
+                        return e;
+                    }
+
+                    @Override
+                    public void remove() {
+                        if (i == 0) {
+                            throw new IllegalStateException();
+                        }
+                        copy().remove(key(i - 1));
+                    }
+                };
+            }
+
+            @Override
+            public int size() {
+                return copy != null ? copy.size() : pairCount();
+            }
+        };
+
+        @Override
+        public Set<Map.Entry<byte[], byte[]>> entrySet() {
+            return entries;
+        }
+
+        @Override
+        public byte[] get(Object key) {
+            if (copy != null) {
+                return copy.get(key);
+            }
+            Integer i = index().get(key);
+            return i == null ? null : value(i);
+        }
+
+        @Override
+        public boolean containsKey(Object key) {
+            return copy != null ? copy.containsKey(key) : index().containsKey(key);
+        }
+
+        @Override
+        public byte[] put(byte[] key, byte[] value) {
+            return copy().put(key, value);
+        }
+
+        @Override
+        public byte[] remove(Object key) {
+            return copy().remove(key);
+        }
+
+        @Override
+        public void clear() {
+            copy = new LinkedHashMap<>();
+            index = null;
+        }
+
+        private IdentityHashMap<byte[], Integer> index() {
+            if (index == null) {
+                int n = pairCount();
+                IdentityHashMap<byte[], Integer> m = new IdentityHashMap<>(n);
+                for (int i = 0; i < n; i++) {
+                    m.put(key(i), i);
+                }
+                index = m;
+            }
+            return index;
+        }
+
+        private LinkedHashMap<byte[], byte[]> copy() {
+            if (copy == null) {
+                int n = pairCount();
+                LinkedHashMap<byte[], byte[]> c = new LinkedHashMap<>(Math.max(16, n * 4 / 3 + 1));
+                for (int i = 0; i < n; i++) {
+                    c.put(key(i), value(i));
+                }
+                copy = c;
+                index = null;
+            }
+            return copy;
+        }
+
+        /**
+         * a pair read from the slices, setValue writes through to the copy
+         */
+        private class PairEntry extends SimpleEntry<byte[], byte[]> {
+            private static final long serialVersionUID = 1L;
+
+            PairEntry(byte[] key, byte[] value) {
+                super(key, value);
+            }
+
+            @Override
+            public byte[] setValue(byte[] value) {
+                copy().put(getKey(), value);
+                return super.setValue(value);
+            }
+        }
+    }
+
+    /**
+     * char view of bytes, one char per byte
+     */
+    private static final class ByteChars implements CharSequence {
+        private final byte[] bs;
+        private final int off;
+        private final int len;
+
+        ByteChars(byte[] bs, int off, int len) {
+            this.bs = bs;
+            this.off = off;
+            this.len = len;
+        }
+
+        @Override
+        public int length() {
+            return len;
+        }
+
+        @Override
+        public char charAt(int index) {
+            if (index < 0 || index >= len) {
+                throw new IndexOutOfBoundsException("index: " + index + ", length: " + len);
+            }
+            return (char) (bs[off + index] & 0xff);
+        }
+
+        @Override
+        public CharSequence subSequence(int start, int end) {
+            if (start < 0 || end > len || start > end) {
+                throw new IndexOutOfBoundsException("start: " + start + ", end: " + end + ", length: " + len);
+            }
+            return new ByteChars(bs, off + start, end - start);
+        }
+
+        @Override
+        public String toString() {
+            char[] cs = new char[len];
+            for (int i = 0; i < len; i++) {
+                cs[i] = (char) (bs[off + i] & 0xff);
+            }
+            return new String(cs);
+        }
+    }
 }
@@ -0,0 +1,157 @@
+package com.udpwork.ssdb;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Resumable parser of SSDB responses.
+ * <p>
+ * A response is a list of <code>length\nbody\n</code> fields closed by an empty line. The parser
+ * keeps its position between calls, so bytes which have been scanned are never scanned again
+ * and a large value costs time linear in its size however many reads it arrives in.
+ * <p>
+ * Positions are kept relative to {@link MemoryStream#data}, so the input may be compacted by
+ * {@link MemoryStream#nice()} while a response is half parsed.
+ * <p>
+ * Fields are recorded as offset/length slices. A complete response with several fields is
+ * copied out of the input once as a whole frame and the {@link Response} slices into it, a
+ * response with a single value keeps that value as its own array.
+ */
+class ResponseParser {
+    /**
+     * offset of the first byte not consumed yet
+     */
+    private int idx = 0;
+    /**
+     * length of the field body we are waiting for, -1 while reading a length line
+     */
+    private int fieldLen = -1;
+    /**
+     * partial length parsed so far from the current length line
+     */
+    private int lenAcc = 0;
+    private boolean lenDigits = false;
+    /**
+     * the last byte of the length line was '\r', which must be followed by '\n'
+     */
+    private boolean lenCr = false;
+    /**
+     * offset and length of each field found so far
+     */
+    private int[] slices = new int[16];
+    private int count = 0;
+    /**
+     * size in bytes of the last complete response
+     */
+    private int lastSize = 0;
+
+    /**
+     * Continue parsing with the bytes received so far.
+     *
+     * @param input received bytes, a complete response will be consumed from it
+     * @return a complete response, or null if more bytes are required
+     * @throws IOException malformed response
+     */
+    Response parse(MemoryStream input) throws IOException {
+        byte[] buf = input.buf;
+        int base = input.data;
+        int size = input.size;
+        while (idx < size) {
+            if (fieldLen < 0) {
+                // length line, digits are accumulated as they arrive
+                byte b = buf[base + idx];
+                idx++;
+                if (lenCr && b != '\n') {
+                    throw new IOException("Invalid response: '\\r' not followed by '\\n' in a length line");
+                }
+                if (b >= '0' && b <= '9') {
+                    int d = b - '0';
+                    if (lenAcc > (Integer.MAX_VALUE - d) / 10) {
+                        throw new IOException("Invalid response: length overflow");
+                    }
+                    lenAcc = lenAcc * 10 + d;
+                    lenDigits = true;
+                } else if (b == '\n') {
+                    lenCr = false;
+                    if (!lenDigits) {
+                        // empty line
+                        if (count == 0) {
+                            continue; // ignore empty leading lines
+                        }
+                        Response ret = build(input);
+                        reset();
+                        return ret;
+                    }
+                    fieldLen = lenAcc;
+                    lenAcc = 0;
+                    lenDigits = false;
+                } else if (b == '\r') {
+                    lenCr = true;
+                } else {
+                    throw new IOException("Invalid response: bad length byte " + (b & 0xff));
+                }
+            } else {
+                // field body and its trailing '\n'
+                if (size - idx <= fieldLen) {
+                    break;
+                }
+                if (buf[base + idx + fieldLen] != '\n') {
+                    // the length does not match the body, the stream is out of step
+                    throw new IOException("Invalid response: field of " + fieldLen + " bytes not followed by '\\n'");
+                }
+                if (2 * count + 2 > slices.length) {
+                    slices = Arrays.copyOf(slices, slices.length * 2);
+                }
+                slices[2 * count] = idx;
+                slices[2 * count + 1] = fieldLen;
+                count++;
+                idx += fieldLen + 1;
+                fieldLen = -1;
+            }
+        }
+        return null;
+    }
+
+    private Response build(MemoryStream input) {
+        byte[] buf = input.buf;
+        int base = input.data;
+        Response resp;
+        if (count <= 2) {
+            // status and a single value, e.g. get, the value is returned as is
+            List<byte[]> list = new ArrayList<>(count);
+            for (int i = 0; i < count; i++) {
+                int off = base + slices[2 * i];
+                list.add(Arrays.copyOfRange(buf, off, off + slices[2 * i + 1]));
+            }
+            resp = new Response(list);
+        } else {
+            // one copy of the whole frame, instead of one array per field
+            byte[] frame = Arrays.copyOfRange(buf, base, base + idx);
+            resp = new Response(frame, Arrays.copyOf(slices, 2 * count), count);
+        }
+        lastSize = idx;
+        input.decr(idx);
+        return resp;
+    }
+
+    /**
+     * @return size in bytes of the last complete response
+     */
+    int lastSize() {
+        return lastSize;
+    }
+
+    /**
+     * drop the state of a half parsed response, e.g. after relink
+     */
+    void reset() {
+        idx = 0;
+        fieldLen = -1;
+        lenAcc = 0;
+        lenDigits = false;
+        lenCr = false;
+        count = 0;
+    }
+}
@@ -1,5 +1,8 @@
 package com.udpwork.ssdb;
 
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.ConnectException;
 import java.util.List;
 
 /**
@@ -19,6 +22,7 @@ public class SSDB {
      */
     protected Link link;
     private boolean invalid = false;
+    private ReconnectBackoff backoff = new ReconnectBackoff();
 
     public SSDB(String host, int port) throws Exception {
         this(host, port, 0);
@@ -28,11 +32,53 @@ public class SSDB {
         link = new Link(host, port, timeout_ms);
     }
 
+    /**
+     * @param link link to use, e.g. a {@link MuxLink} shared by many threads
+     */
+    public SSDB(Link link) {
+        this.link = link;
+    }
+
+    /**
+     * @param metrics receiver of the latency and size of each request, see {@link SSDBMetrics}
+     */
+    public void setMetrics(MetricsSink metrics) {
+        link.setMetrics(metrics);
+    }
+
+    /**
+     * Reconnect. After a failed attempt, relink fails at once with a {@link ConnectException} until
+     * a backoff has passed, see {@link ReconnectBackoff}.
+     *
+     * @throws Exception connect failed, or backing off
+     */
     public void relink() throws Exception {
-        link.relink();
+        backoff.check();
+        try {
+            link.relink();
+        } catch (Exception e) {
+            backoff.failure();
+            throw e;
+        }
+        backoff.success();
         invalid = false;
     }
 
+    /**
+     * @param backoffMs    wait after the first failed relink, 0 to retry at once
+     * @param maxBackoffMs longest wait, however many relinks failed in a row
+     */
+    public void setRelinkBackoff(long backoffMs, long maxBackoffMs) {
+        this.backoff = new ReconnectBackoff(backoffMs, maxBackoffMs);
+    }
+
+    /**
+     * @param backoff backoff of the relinks, shared with the other clients of the same server
+     */
+    public void setRelinkBackoff(ReconnectBackoff backoff) {
+        this.backoff = backoff;
+    }
+
     public void close() {
         link.close();
     }
@@ -59,6 +105,23 @@ public class SSDB {
         return link.request(cmd, params);
     }
 
+    /**
+     * @param cmd    command name
+     * @param params parameters of byte[], CharSequence (encoded as UTF-8) or Number (encoded in decimal)
+     * @return response
+     * @throws Exception
+     */
+    public Response request(String cmd, Object... params) throws Exception {
+        return link.request(cmd, params);
+    }
+
+    /**
+     * @return a pipeline on this connection, whose requests are sent with one flush
+     */
+    public Pipeline pipeline() {
+        return new Pipeline(link);
+    }
+
     public Boolean ping() {
         Response resp;
         try {
@@ -74,14 +137,26 @@ public class SSDB {
         }
     }
 
+    /**
+     * @param timeout_ms longest wait for the response, 0 for the timeout of the link
+     * @return true if the server answered ok in time, false on any error
+     */
+    public boolean ping(int timeout_ms) {
+        return link.ping(timeout_ms);
+    }
+
 	/* kv */
 
     public void expire(byte[] key, long ttl) throws Exception {
-        expire(new String(key), ttl);
+        Response resp = link.request("expire", key, ttl);
+        if (resp.ok()) {
+            return;
+        }
+        resp.exception();
     }
 
     public void expire(String key, long ttl) throws Exception {
-        Response resp = link.request("expire", key, (new Long(ttl)).toString());
+        Response resp = link.request("expire", key, ttl);
         if (resp.ok()) {
             return;
         }
@@ -103,7 +178,7 @@ public class SSDB {
             throw new Exception("Invalid response");
         }
         if (resp.ok()) {
-            return Long.parseLong(new String(resp.raw.get(1)));
+            return resp.getLong(0);
         }
         resp.exception();
         return 0L;
@@ -115,68 +190,100 @@ public class SSDB {
      * @throws Exception
      */
     public Long ttl(String key) throws Exception {
-        return ttl(key.getBytes());
+        Response resp = link.request("ttl", key);
+        if (resp.not_found()) {
+            return -1L;
+        }
+        if (resp.raw.size() != 2) {
+            throw new Exception("Invalid response");
+        }
+        if (resp.ok()) {
+            return resp.getLong(0);
+        }
+        resp.exception();
+        return 0L;
     }
 
-    public void set(byte[] key, byte[] val) throws Exception {
-        Response resp = link.request("set", key, val);
+    /**
+     * send a request whose response carries nothing but ok
+     */
+    private void _ok(String cmd, Object... params) throws Exception {
+        Response resp = link.request(cmd, params);
         if (resp.ok()) {
             return;
         }
         resp.exception();
     }
 
+    public void set(byte[] key, byte[] val) throws Exception {
+        _ok("set", key, val);
+    }
+
     public void set(String key, byte[] val) throws Exception {
-        set(key.getBytes(), val);
+        _ok("set", key, val);
     }
 
     public void set(String key, String val) throws Exception {
-        set(key.getBytes(), val.getBytes());
+        _ok("set", key, val);
     }
 
     public void setx(byte[] key, byte[] val, long ttl) throws Exception {
-        Response resp = link.request("setx", key, val, (new Long(ttl)).toString().getBytes());
-        if (resp.ok()) {
-            return;
-        }
-        resp.exception();
+        _ok("setx", key, val, ttl);
     }
 
     public void setx(String key, byte[] val, long ttl) throws Exception {
-        setx(key.getBytes(), val, ttl);
+        _ok("setx", key, val, ttl);
     }
 
     public void setx(String key, String val, long ttl) throws Exception {
-        setx(key.getBytes(), val.getBytes(), ttl);
+        _ok("setx", key, val, ttl);
     }
 
-    public void setnx(byte[] key, byte[] val, long ttl) throws Exception {
-        Response resp = link.request("setnx", key, val, (new Long(ttl)).toString().getBytes());
-        if (resp.ok()) {
-            return;
+    /**
+     * Set the value if the key does not exist, and then its ttl. setnx of the server takes no ttl
+     * (it was ignored before), so the ttl costs one more round trip when the key is created.
+     *
+     * @param ttl ttl in seconds of a created key, 0 for none
+     * @return true if the key was created
+     */
+    public boolean setnx(byte[] key, byte[] val, long ttl) throws Exception {
+        boolean created = setnx(link.request("setnx", key, val));
+        if (created && ttl > 0) {
+            expire(key, ttl);
         }
-        resp.exception();
+        return created;
     }
 
-    public void setnx(String key, byte[] val, long ttl) throws Exception {
-        setnx(key.getBytes(), val, ttl);
+    public boolean setnx(String key, byte[] val, long ttl) throws Exception {
+        boolean created = setnx(link.request("setnx", key, val));
+        if (created && ttl > 0) {
+            expire(key, ttl);
+        }
+        return created;
     }
 
-    public void setnx(String key, String val, long ttl) throws Exception {
-        setnx(key, val.getBytes(), ttl);
+    public boolean setnx(String key, String val, long ttl) throws Exception {
+        boolean created = setnx(link.request("setnx", key, val));
+        if (created && ttl > 0) {
+            expire(key, ttl);
+        }
+        return created;
+    }
+
+    private static boolean setnx(Response resp) throws Exception {
+        if (!resp.ok()) {
+            resp.exception();
+        }
+        return resp.getLong(0) == 1;
     }
 
 
     public void del(byte[] key) throws Exception {
-        Response resp = link.request("del", key);
-        if (resp.ok()) {
-            return;
-        }
-        resp.exception();
+        _ok("del", key);
     }
 
     public void del(String key) throws Exception {
-        del(key.getBytes());
+        _ok("del", key);
     }
 
     /***
@@ -185,7 +292,16 @@ public class SSDB {
      * @throws Exception
      */
     public byte[] get(byte[] key) throws Exception {
-        Response resp = link.request("get", key);
+        return _value("get", key);
+    }
+
+    /**
+     * send a request whose response is a single value
+     *
+     * @return null if not found
+     */
+    private byte[] _value(String cmd, Object... params) throws Exception {
+        Response resp = link.request(cmd, params);
         if (resp.not_found()) {
             return null;
         }
@@ -205,7 +321,44 @@ public class SSDB {
      * @throws Exception
      */
     public byte[] get(String key) throws Exception {
-        return get(key.getBytes());
+        return _value("get", key);
+    }
+
+    /**
+     * Write the value to out as it arrives, a chunk at a time, without holding it in memory.
+     *
+     * @param key key
+     * @param out receiver of the value
+     * @return length of the value, -1 if not found
+     * @throws Exception network error or out failed, the client should be relinked then
+     */
+    public long get(String key, OutputStream out) throws Exception {
+        return _streamTo(out, "get", key);
+    }
+
+    /**
+     * Set a value read from in, a chunk at a time, without holding it in memory.
+     *
+     * @param in     value, exactly length bytes are read
+     * @param length length of the value
+     * @throws Exception network error or in failed, the client should be relinked then
+     */
+    public void set(String key, InputStream in, long length) throws Exception {
+        Response resp = link.requestFrom("set", in, length, key);
+        if (!resp.ok()) {
+            resp.exception();
+        }
+    }
+
+    private long _streamTo(OutputStream out, String cmd, String... params) throws Exception {
+        Response resp = link.requestTo(out, cmd, params);
+        if (resp.not_found()) {
+            return -1;
+        }
+        if (!resp.ok()) {
+            resp.exception();
+        }
+        return resp.getLong(0);
     }
 
     private Response _scan(String cmd, String key_start, String key_end,
@@ -216,8 +369,7 @@ public class SSDB {
         if (key_end == null) {
             key_end = "";
         }
-        Response resp = link.request(cmd, key_start, key_end, (new Integer(
-                limit)).toString());
+        Response resp = link.request(cmd, key_start, key_end, limit);
         if (!resp.ok()) {
             resp.exception();
         }
@@ -235,21 +387,26 @@ public class SSDB {
         return _scan("rscan", key_start, key_end, limit);
     }
 
+    /**
+     * @return keys in (key_start, key_end], see {@link Response#buildList()}
+     */
+    public Response keys(String key_start, String key_end, int limit)
+            throws Exception {
+        return _list("keys", key_start, key_end, limit);
+    }
+
+    public Response rkeys(String key_start, String key_end, int limit)
+            throws Exception {
+        return _list("rkeys", key_start, key_end, limit);
+    }
+
     private Response _zrange(String cmd, String name, int offset, int limit)
             throws Exception {
-        Response resp = link.request(cmd, name,
-                (new Integer(offset)).toString(),
-                (new Integer(limit)).toString());
+        Response resp = link.request(cmd, name, offset, limit);
         if (!resp.ok()) {
             resp.exception();
         }
-        int len = resp.raw.size() - 1;
-        for (int i = 1; i < len; i += 2) {
-            byte[] k = resp.raw.get(i);
-            byte[] v = resp.raw.get(i + 1);
-            resp.keys.add(k);
-            resp.items.put(k, v);
-        }
+        resp.buildMap();
         return resp;
     }
 
@@ -275,18 +432,18 @@ public class SSDB {
         Response resp = link.request(
                 "zcount",
                 name,
-                (scoreStart == null ? "" : scoreStart.toString()),
-                (scoreEnd == null ? "" : scoreEnd.toString()));
+                (scoreStart == null ? "" : scoreStart),
+                (scoreEnd == null ? "" : scoreEnd));
         if (!resp.ok()) {
             resp.exception();
         }
         if (resp.raw.size() != 2) {
             throw new Exception("Invalid response");
         }
-        return Long.parseLong(new String(resp.raw.get(1)));
+        return resp.getLong(0);
     }
 
-    private Response _zlist(String cmd, String key_start, String key_end,
+    private Response _list(String cmd, String key_start, String key_end,
                             int limit) throws Exception {
         if (key_start == null) {
             key_start = "";
@@ -294,30 +451,26 @@ public class SSDB {
         if (key_end == null) {
             key_end = "";
         }
-        Response resp = link.request(cmd, key_start, key_end, (new Integer(
-                limit)).toString());
+        Response resp = link.request(cmd, key_start, key_end, limit);
         if (!resp.ok()) {
             resp.exception();
         }
-        for (int i = 1; i < resp.raw.size(); i++) {
-            byte[] k = resp.raw.get(i);
-            resp.keys.add(k);
-        }
+        resp.buildList();
         return resp;
     }
 
     public Response zlist(String key_start, String key_end, int limit)
             throws Exception {
-        return _zlist("zlist", key_start, key_end, limit);
+        return _list("zlist", key_start, key_end, limit);
     }
 
     public Response zrlist(String key_start, String key_end, int limit)
             throws Exception {
-        return _zlist("zrlist", key_start, key_end, limit);
+        return _list("zrlist", key_start, key_end, limit);
     }
 
     public long incr(String key, long by) throws Exception {
-        Response resp = link.request("incr", key, (new Long(by)).toString());
+        Response resp = link.request("incr", key, by);
         if (!resp.ok()) {
             resp.exception();
         }
@@ -325,38 +478,30 @@ public class SSDB {
             throw new Exception("Invalid response");
         }
         long ret = 0;
-        ret = Long.parseLong(new String(resp.raw.get(1)));
+        ret = resp.getLong(0);
         return ret;
     }
 
 	/* hashmap */
 
     public void hset(String name, byte[] key, byte[] val) throws Exception {
-        Response resp = link.request("hset", name.getBytes(), key, val);
-        if (resp.ok()) {
-            return;
-        }
-        resp.exception();
+        _ok("hset", name, key, val);
     }
 
     public void hset(String name, String key, byte[] val) throws Exception {
-        this.hset(name, key.getBytes(), val);
+        _ok("hset", name, key, val);
     }
 
     public void hset(String name, String key, String val) throws Exception {
-        this.hset(name, key, val.getBytes());
+        _ok("hset", name, key, val);
     }
 
     public void hdel(String name, byte[] key) throws Exception {
-        Response resp = link.request("hdel", name.getBytes(), key);
-        if (resp.ok()) {
-            return;
-        }
-        resp.exception();
+        _ok("hdel", name, key);
     }
 
     public void hdel(String name, String key) throws Exception {
-        this.hdel(name, key.getBytes());
+        _ok("hdel", name, key);
     }
 
     /**
@@ -366,18 +511,7 @@ public class SSDB {
      * @throws Exception
      */
     public byte[] hget(String name, byte[] key) throws Exception {
-        Response resp = link.request("hget", name.getBytes(), key);
-        if (resp.not_found()) {
-            return null;
-        }
-        if (resp.raw.size() != 2) {
-            throw new Exception("Invalid response");
-        }
-        if (resp.ok()) {
-            return resp.raw.get(1);
-        }
-        resp.exception();
-        return null;
+        return _value("hget", name, key);
     }
 
     /**
@@ -387,7 +521,26 @@ public class SSDB {
      * @throws Exception
      */
     public byte[] hget(String name, String key) throws Exception {
-        return hget(name, key.getBytes());
+        return _value("hget", name, key);
+    }
+
+    /**
+     * Same as {@link #get(String, OutputStream)}, for a key of a hashmap.
+     *
+     * @return length of the value, -1 if not found
+     */
+    public long hget(String name, String key, OutputStream out) throws Exception {
+        return _streamTo(out, "hget", name, key);
+    }
+
+    /**
+     * Same as {@link #set(String, InputStream, long)}, for a key of a hashmap.
+     */
+    public void hset(String name, String key, InputStream in, long length) throws Exception {
+        Response resp = link.requestFrom("hset", in, length, name, key);
+        if (!resp.ok()) {
+            resp.exception();
+        }
     }
 
     private Response _hscan(String cmd, String name, String key_start,
@@ -398,18 +551,11 @@ public class SSDB {
         if (key_end == null) {
             key_end = "";
         }
-        Response resp = link.request(cmd, name, key_start, key_end,
-                (new Integer(limit)).toString());
+        Response resp = link.request(cmd, name, key_start, key_end, limit);
         if (!resp.ok()) {
             resp.exception();
         }
-        int len = resp.raw.size() - 1;
-        for (int i = 1; i < len; i += 2) {
-            byte[] k = resp.raw.get(i);
-            byte[] v = resp.raw.get(i + 1);
-            resp.keys.add(k);
-            resp.items.put(k, v);
-        }
+        resp.buildMap();
         return resp;
     }
 
@@ -425,7 +571,7 @@ public class SSDB {
 
     public long hincr(String name, String key, long by) throws Exception {
         Response resp = link.request("hincr", name, key,
-                (new Long(by)).toString());
+                by);
         if (!resp.ok()) {
             resp.exception();
         }
@@ -433,7 +579,7 @@ public class SSDB {
             throw new Exception("Invalid response");
         }
         long ret = 0;
-        ret = Long.parseLong(new String(resp.raw.get(1)));
+        ret = resp.getLong(0);
         return ret;
     }
 
@@ -446,7 +592,11 @@ public class SSDB {
     }
 
     public void hclear(String name) throws Exception {
-        hclear(name.getBytes());
+        Response resp = link.request("hclear", name);
+        if (resp.ok()) {
+            return;
+        }
+        resp.exception();
     }
 
     /* zset */
@@ -458,32 +608,23 @@ public class SSDB {
         if (resp.raw.size() != 2) {
             throw new Exception("Invalid response");
         }
-        return Long.parseLong(new String(resp.raw.get(1)));
+        return resp.getLong(0);
     }
 
     public void zset(String name, byte[] key, long score) throws Exception {
-        Response resp = link.request("zset", name.getBytes(), key, (new Long(
-                score)).toString().getBytes());
-        if (resp.ok()) {
-            return;
-        }
-        resp.exception();
+        _ok("zset", name, key, score);
     }
 
     public void zset(String name, String key, long score) throws Exception {
-        zset(name, key.getBytes(), score);
+        _ok("zset", name, key, score);
     }
 
     public void zdel(String name, byte[] key) throws Exception {
-        Response resp = link.request("zdel", name.getBytes(), key);
-        if (resp.ok()) {
-            return;
-        }
-        resp.exception();
+        _ok("zdel", name, key);
     }
 
     public void zdel(String name, String key) throws Exception {
-        this.zdel(name, key.getBytes());
+        _ok("zdel", name, key);
     }
 
     public void zrem(String name, byte[] key) throws Exception {
@@ -491,7 +632,7 @@ public class SSDB {
     }
 
     public void zrem(String name, String key) throws Exception {
-        this.zdel(name, key.getBytes());
+        this.zdel(name, key);
     }
 
     /**
@@ -501,7 +642,14 @@ public class SSDB {
      * @throws Exception
      */
     public Long zget(String name, byte[] key) throws Exception {
-        Response resp = link.request("zget", name.getBytes(), key);
+        return _score(name, key);
+    }
+
+    /**
+     * @return null if not found.
+     */
+    private Long _score(String name, Object key) throws Exception {
+        Response resp = link.request("zget", name, key);
         if (resp.not_found()) {
             return null;
         }
@@ -509,7 +657,7 @@ public class SSDB {
             throw new Exception("Invalid response");
         }
         if (resp.ok()) {
-            return Long.parseLong(new String(resp.raw.get(1)));
+            return resp.getLong(0);
         }
         resp.exception();
         return 0L;
@@ -522,7 +670,7 @@ public class SSDB {
      * @throws Exception
      */
     public Long zget(String name, String key) throws Exception {
-        return zget(name, key.getBytes());
+        return _score(name, key);
     }
 
     private Response _zscan(String cmd, String name, String key,
@@ -530,26 +678,19 @@ public class SSDB {
         if (key == null) {
             key = "";
         }
-        String ss = "";
+        Object ss = "";
         if (score_start != null) {
-            ss = score_start.toString();
+            ss = score_start;
         }
-        String se = "";
+        Object se = "";
         if (score_end != null) {
-            se = score_end.toString();
+            se = score_end;
         }
-        Response resp = link.request(cmd, name, key, ss, se,
-                (new Integer(limit)).toString());
+        Response resp = link.request(cmd, name, key, ss, se, limit);
         if (!resp.ok()) {
             resp.exception();
         }
-        int len = resp.raw.size() - 1;
-        for (int i = 1; i < len; i += 2) {
-            byte[] k = resp.raw.get(i);
-            byte[] v = resp.raw.get(i + 1);
-            resp.keys.add(k);
-            resp.items.put(k, v);
-        }
+        resp.buildMap();
         return resp;
     }
 
@@ -565,7 +706,7 @@ public class SSDB {
 
     public long zincr(String name, String key, long by) throws Exception {
         Response resp = link.request("zincr", name, key,
-                (new Long(by)).toString());
+                by);
         if (!resp.ok()) {
             resp.exception();
         }
@@ -573,7 +714,7 @@ public class SSDB {
             throw new Exception("Invalid response");
         }
         long ret = 0;
-        ret = Long.parseLong(new String(resp.raw.get(1)));
+        ret = resp.getLong(0);
         return ret;
     }
 
@@ -586,7 +727,11 @@ public class SSDB {
     }
 
     public void zclear(String name) throws Exception {
-        zclear(name.getBytes());
+        Response resp = link.request("zclear", name);
+        if (resp.ok()) {
+            return;
+        }
+        resp.exception();
     }
 
     /* queue */
@@ -598,7 +743,7 @@ public class SSDB {
         if (resp.raw.size() != 2) {
             throw new Exception("Invalid response");
         }
-        long ret = Long.parseLong(new String(resp.raw.get(1)));
+        long ret = resp.getLong(0);
         return ret;
     }
 
@@ -610,7 +755,7 @@ public class SSDB {
         if (resp.raw.size() != 2) {
             throw new Exception("Invalid response");
         }
-        return new String(resp.raw.get(1));
+        return resp.getString(0);
     }
 
     public String qback(String name) throws Exception {
@@ -621,31 +766,33 @@ public class SSDB {
         if (resp.raw.size() != 2) {
             throw new Exception("Invalid response");
         }
-        return new String(resp.raw.get(1));
+        return resp.getString(0);
     }
 
     public String qget(String name, long index) throws Exception {
         Response resp = link
-                .request("qget", name, (new Long(index)).toString());
+                .request("qget", name, index);
         if (!resp.ok()) {
             resp.exception();
         }
         if (resp.raw.size() != 2) {
             throw new Exception("Invalid response");
         }
-        return new String(resp.raw.get(1));
+        return resp.getString(0);
     }
 
     public void qset(String name, long index, String data) throws Exception {
-        Response resp = link.request("qset", name,
-                (new Long(index)).toString(), data);
+        Response resp = link.request("qset", name, index, data);
         if (!resp.ok()) {
             resp.exception();
         }
     }
 
     public void qset(String name, long index, byte[] data) throws Exception {
-        qset(name, index, new String(data));
+        Response resp = link.request("qset", name, index, data);
+        if (!resp.ok()) {
+            resp.exception();
+        }
     }
 
     public void qpush_back(String name, String data) throws Exception {
@@ -656,7 +803,10 @@ public class SSDB {
     }
 
     public void qpush_back(String name, byte[] data) throws Exception {
-        qpush_back(name, new String(data));
+        Response resp = link.request("qpush_back", name, data);
+        if (!resp.ok()) {
+            resp.exception();
+        }
     }
 
     public void qpush(String name, String data) throws Exception {
@@ -664,7 +814,10 @@ public class SSDB {
     }
 
     public void qpush(String name, byte[] data) throws Exception {
-        qpush_back(name, new String(data));
+        Response resp = link.request("qpush_back", name, data);
+        if (!resp.ok()) {
+            resp.exception();
+        }
     }
 
     public void qpush_front(String name, String data) throws Exception {
@@ -675,45 +828,36 @@ public class SSDB {
     }
 
     public void qpush_front(String name, byte[] data) throws Exception {
-        qpush_front(name, new String(data));
-    }
-
-    public Response qpop_back(String name, int size) throws Exception {
-        Response resp = link.request("qpop_back", name,
-                (new Integer(size)).toString());
+        Response resp = link.request("qpush_front", name, data);
         if (!resp.ok()) {
             resp.exception();
         }
-        if (resp.raw.size() < 2) {
-            throw new Exception("Invalid response");
-        }
-        for (int i = 1; i < resp.raw.size(); i++) {
-            byte[] k = resp.raw.get(i);
-            // byte[] v = resp.raw.get(i + 1);
-            resp.keys.add(k);
-            // resp.items.put(Integer.toString(i - 1).getBytes(), k);
-        }
-        return resp;
     }
 
-    public Response qpop_front(String name, int size) throws Exception {
-        Response resp = link.request("qpop_front", name,
-                (new Integer(size)).toString());
-        if (!resp.ok()) {
+    private Response _qpop(String cmd, String name, int size) throws Exception {
+        Response resp = link.request(cmd, name, size);
+        // an empty queue is not_found for a single item, and ok without items for more
+        if (!resp.ok() && !resp.not_found()) {
             resp.exception();
         }
-        if (resp.raw.size() < 2) {
-            throw new Exception("Invalid response");
-        }
-        for (int i = 1; i < resp.raw.size(); i++) {
-            byte[] k = resp.raw.get(i);
-            // byte[] v = resp.raw.get(i + 1);
-            resp.keys.add(k);
-            // resp.items.put(Integer.toString(i - 1).getBytes(), k);
-        }
+        resp.buildList();
         return resp;
     }
 
+    /**
+     * @return up to size items from the tail, none if the queue is empty, see {@link Response#buildList()}
+     */
+    public Response qpop_back(String name, int size) throws Exception {
+        return _qpop("qpop_back", name, size);
+    }
+
+    /**
+     * @return up to size items from the head, none if the queue is empty, see {@link Response#buildList()}
+     */
+    public Response qpop_front(String name, int size) throws Exception {
+        return _qpop("qpop_front", name, size);
+    }
+
     /**
      * @param name
      * @param size
@@ -726,7 +870,7 @@ public class SSDB {
 
     public void qtrim_back(String name, int size) throws Exception {
         Response resp = link.request("qtrim_back", name,
-                (new Integer(size)).toString());
+                size);
         if (!resp.ok()) {
             resp.exception();
         }
@@ -734,7 +878,7 @@ public class SSDB {
 
     public void qtrim_front(String name, int size) throws Exception {
         Response resp = link.request("qtrim_front", name,
-                (new Integer(size)).toString());
+                size);
         if (!resp.ok()) {
             resp.exception();
         }
@@ -750,17 +894,11 @@ public class SSDB {
      */
     private Response _qlist(String cmd, String key_start, String key_end,
                             int limit) throws Exception {
-        Response resp = link.request(cmd, key_start, key_end, (new Integer(
-                limit)).toString());
+        Response resp = link.request(cmd, key_start, key_end, limit);
         if (!resp.ok()) {
             resp.exception();
         }
-        for (int i = 1; i < resp.raw.size(); i++) {
-            byte[] k = resp.raw.get(i);
-            // byte[] v = resp.raw.get(i + 1);
-            resp.keys.add(k);
-            // resp.items.put(Integer.toString(i - 1).getBytes(), k);
-        }
+        resp.buildList();
         return resp;
     }
 
@@ -798,18 +936,11 @@ public class SSDB {
      */
     private Response _qrange(String cmd, String name, int offset, int limit)
             throws Exception {
-        Response resp = link.request(cmd, name,
-                (new Integer(offset)).toString(),
-                (new Integer(limit)).toString());
+        Response resp = link.request(cmd, name, offset, limit);
         if (!resp.ok()) {
             resp.exception();
         }
-        for (int i = 1; i < resp.raw.size(); i++) {
-            byte[] k = resp.raw.get(i);
-            // byte[] v = resp.raw.get(i + 1);
-            resp.keys.add(k);
-            // resp.items.put(Integer.toString(i - 1).getBytes(), k);
-        }
+        resp.buildList();
         return resp;
     }
 
@@ -834,7 +965,7 @@ public class SSDB {
     }
 
     public void qclear(String name) throws Exception {
-        qclear(name.getBytes());
+        _ok("qclear", name);
     }
 
     /****************/
@@ -895,6 +1026,92 @@ public class SSDB {
         return resp;
     }
 
+    /**
+     * @param name hashmap
+     * @param keys keys
+     * @return pairs of the keys found, see {@link Response#pairCount()}
+     * @throws Exception
+     */
+    public Response multi_hget(String name, String... keys) throws Exception {
+        return _multi("multi_hget", name, keys);
+    }
+
+    /**
+     * @param name hashmap
+     * @param kvs  key, value, key, value...
+     * @throws Exception
+     */
+    public void multi_hset(String name, String... kvs) throws Exception {
+        if (kvs.length % 2 != 0) {
+            throw new Exception("Invalid arguments count");
+        }
+        _multi("multi_hset", name, kvs);
+    }
+
+    public void multi_hdel(String name, String... keys) throws Exception {
+        _multi("multi_hdel", name, keys);
+    }
+
+    /**
+     * @param name zset
+     * @param keys keys
+     * @return the keys found with their scores
+     * @throws Exception
+     */
+    public Scores multi_zget(String name, String... keys) throws Exception {
+        return _multi("multi_zget", name, keys).scores();
+    }
+
+    /**
+     * @param name   zset
+     * @param keys   keys
+     * @param scores score of each key
+     * @throws Exception
+     */
+    public void multi_zset(String name, String[] keys, long[] scores) throws Exception {
+        if (keys.length != scores.length) {
+            throw new Exception("Invalid arguments count");
+        }
+        Object[] params = new Object[1 + 2 * keys.length];
+        params[0] = name;
+        for (int i = 0; i < keys.length; i++) {
+            params[1 + 2 * i] = keys[i];
+            params[2 + 2 * i] = scores[i];
+        }
+        Response resp = link.request("multi_zset", params);
+        if (!resp.ok()) {
+            resp.exception();
+        }
+    }
+
+    public void multi_zdel(String name, String... keys) throws Exception {
+        _multi("multi_zdel", name, keys);
+    }
+
+    /**
+     * @param name hashmap
+     * @return all pairs of the hashmap, see {@link Response#pairCount()}
+     * @throws Exception
+     */
+    public Response hgetall(String name) throws Exception {
+        Response resp = link.request("hgetall", name);
+        if (!resp.ok()) {
+            resp.exception();
+        }
+        return resp;
+    }
+
+    private Response _multi(String cmd, String name, String[] params) throws Exception {
+        Object[] ps = new Object[params.length + 1];
+        ps[0] = name;
+        System.arraycopy(params, 0, ps, 1, params.length);
+        Response resp = link.request(cmd, ps);
+        if (!resp.ok()) {
+            resp.exception();
+        }
+        return resp;
+    }
+
     public void labelAsInvalid() {
         this.invalid = true;
     }
@@ -0,0 +1,217 @@
+package com.udpwork.ssdb;
+
+import javax.management.ObjectName;
+import java.lang.management.ManagementFactory;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.IntSupplier;
+import java.util.function.ToLongFunction;
+
+/**
+ * A {@link MetricsSink} which keeps a latency histogram, request and error counts and byte counts
+ * per command, the borrow wait of the pool, the number of reconnects and gauges of the active and
+ * idle connections. Read it with {@link #toString()}, or register it to JMX. Example:
+ * <p>
+ * <pre>
+ * SSDBMetrics metrics = new SSDBMetrics();
+ * metrics.register(&quot;users&quot;); // com.udpwork.ssdb:type=SSDBMetrics,name=users
+ * Link link = new Link(&quot;127.0.0.1&quot;, 8888);
+ * link.setMetrics(metrics);
+ * </pre>
+ */
+public class SSDBMetrics implements MetricsSink, SSDBMetricsMXBean {
+    private final ConcurrentHashMap<String, CommandStats> commands = new ConcurrentHashMap<>();
+    private final LatencyHistogram borrowWait = new LatencyHistogram();
+    private final LongAdder reconnects = new LongAdder();
+    private volatile IntSupplier active = () -> 0;
+    private volatile IntSupplier idle = () -> 0;
+    private volatile ObjectName registered = null;
+
+    /**
+     * measures of one command
+     */
+    public static class CommandStats {
+        public final LatencyHistogram latency = new LatencyHistogram();
+        public final LongAdder errors = new LongAdder();
+        public final LongAdder requestBytes = new LongAdder();
+        public final LongAdder responseBytes = new LongAdder();
+
+        void reset() {
+            latency.reset();
+            errors.reset();
+            requestBytes.reset();
+            responseBytes.reset();
+        }
+
+        @Override
+        public String toString() {
+            return latency + ", errors=" + errors.sum() + ", sent=" + requestBytes.sum() + "B, received=" + responseBytes.sum() + "B";
+        }
+    }
+
+    @Override
+    public void command(String cmd, long nanos, int requestBytes, int responseBytes, boolean failed) {
+        CommandStats s = commands.get(cmd);
+        if (s == null) {
+            s = commands.computeIfAbsent(cmd, k -> new CommandStats());
+        }
+        s.latency.recordNanos(nanos);
+        if (failed) {
+            s.errors.increment();
+        }
+        s.requestBytes.add(requestBytes);
+        s.responseBytes.add(responseBytes);
+    }
+
+    @Override
+    public void reconnect() {
+        reconnects.increment();
+    }
+
+    @Override
+    public void borrow(long waitNanos) {
+        borrowWait.recordNanos(waitNanos);
+    }
+
+    /**
+     * @param active number of connections in use
+     * @param idle   number of idle connections
+     */
+    public void gauges(IntSupplier active, IntSupplier idle) {
+        this.active = active;
+        this.idle = idle;
+    }
+
+    /**
+     * @return measures of each command seen so far
+     */
+    public Map<String, CommandStats> commands() {
+        return new TreeMap<>(commands);
+    }
+
+    public LatencyHistogram borrowWait() {
+        return borrowWait;
+    }
+
+    /**
+     * register to the platform MBean server as com.udpwork.ssdb:type=SSDBMetrics,name=<i>name</i>
+     *
+     * @param name name of the pool or server
+     * @throws Exception name taken or invalid
+     */
+    public synchronized void register(String name) throws Exception {
+        ObjectName on = new ObjectName("com.udpwork.ssdb:type=SSDBMetrics,name=" + ObjectName.quote(name));
+        ManagementFactory.getPlatformMBeanServer().registerMBean(this, on);
+        registered = on;
+    }
+
+    public synchronized void unregister() {
+        if (registered != null) {
+            try {
+                ManagementFactory.getPlatformMBeanServer().unregisterMBean(registered);
+            } catch (Exception e) {
+                // already gone
+            }
+            registered = null;
+        }
+    }
+
+    @Override
+    public long getRequests() {
+        return sum(s -> s.latency.count());
+    }
+
+    @Override
+    public long getErrors() {
+        return sum(s -> s.errors.sum());
+    }
+
+    @Override
+    public long getRequestBytes() {
+        return sum(s -> s.requestBytes.sum());
+    }
+
+    @Override
+    public long getResponseBytes() {
+        return sum(s -> s.responseBytes.sum());
+    }
+
+    @Override
+    public long getReconnects() {
+        return reconnects.sum();
+    }
+
+    @Override
+    public int getActive() {
+        return active.getAsInt();
+    }
+
+    @Override
+    public int getIdle() {
+        return idle.getAsInt();
+    }
+
+    @Override
+    public long getBorrowWaitP99() {
+        return borrowWait.percentile(0.99);
+    }
+
+    @Override
+    public Map<String, Long> getCommandCounts() {
+        return perCommand(s -> s.latency.count());
+    }
+
+    @Override
+    public Map<String, Long> getCommandP50() {
+        return perCommand(s -> s.latency.percentile(0.5));
+    }
+
+    @Override
+    public Map<String, Long> getCommandP99() {
+        return perCommand(s -> s.latency.percentile(0.99));
+    }
+
+    @Override
+    public Map<String, Long> getCommandMax() {
+        return perCommand(s -> s.latency.max());
+    }
+
+    @Override
+    public void reset() {
+        for (CommandStats s : commands.values()) {
+            s.reset();
+        }
+        borrowWait.reset();
+        reconnects.reset();
+    }
+
+    private long sum(ToLongFunction<CommandStats> f) {
+        long n = 0;
+        for (CommandStats s : commands.values()) {
+            n += f.applyAsLong(s);
+        }
+        return n;
+    }
+
+    private Map<String, Long> perCommand(ToLongFunction<CommandStats> f) {
+        Map<String, Long> m = new TreeMap<>();
+        for (Map.Entry<String, CommandStats> e : commands.entrySet()) {
+            m.put(e.getKey(), f.applyAsLong(e.getValue()));
+        }
+        return m;
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder sb = new StringBuilder("[SSDB metrics] active=").append(getActive())
+                .append(", idle=").append(getIdle())
+                .append(", reconnects=").append(getReconnects())
+                .append(", borrow wait: ").append(borrowWait);
+        for (Map.Entry<String, CommandStats> e : commands().entrySet()) {
+            sb.append("\n  ").append(e.getKey()).append(": ").append(e.getValue());
+        }
+        return sb.toString();
+    }
+}
@@ -0,0 +1,34 @@
+package com.udpwork.ssdb;
+
+import java.util.Map;
+
+/**
+ * JMX view of {@link SSDBMetrics}, latencies in microseconds
+ */
+public interface SSDBMetricsMXBean {
+    long getRequests();
+
+    long getErrors();
+
+    long getRequestBytes();
+
+    long getResponseBytes();
+
+    long getReconnects();
+
+    int getActive();
+
+    int getIdle();
+
+    long getBorrowWaitP99();
+
+    Map<String, Long> getCommandCounts();
+
+    Map<String, Long> getCommandP50();
+
+    Map<String, Long> getCommandP99();
+
+    Map<String, Long> getCommandMax();
+
+    void reset();
+}
@@ -0,0 +1,37 @@
+package com.udpwork.ssdb;
+
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Keys and their scores as two parallel arrays, e.g. the result of zrange or zscan, see
+ * {@link Response#scores()}. Scores are kept as primitive longs, so reading a large range does
+ * not box or decode a String per score.
+ */
+public class Scores {
+    public final byte[][] keys;
+    public final long[] scores;
+
+    public Scores(byte[][] keys, long[] scores) {
+        if (keys.length != scores.length) {
+            throw new IllegalArgumentException("keys: " + keys.length + ", scores: " + scores.length);
+        }
+        this.keys = keys;
+        this.scores = scores;
+    }
+
+    public int size() {
+        return keys.length;
+    }
+
+    public byte[] key(int i) {
+        return keys[i];
+    }
+
+    public String keyString(int i) {
+        return new String(keys[i], StandardCharsets.UTF_8);
+    }
+
+    public long score(int i) {
+        return scores[i];
+    }
+}
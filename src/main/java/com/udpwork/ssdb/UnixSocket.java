@@ -0,0 +1,289 @@
+package com.udpwork.ssdb;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.lang.reflect.InvocationTargetException;
+import java.net.InetSocketAddress;
+import java.net.ProtocolFamily;
+import java.net.Socket;
+import java.net.SocketAddress;
+import java.net.SocketTimeoutException;
+import java.net.StandardProtocolFamily;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A unix domain socket behind the {@link Socket} api, so a {@link Link} to a server on the same
+ * host skips the TCP stack. Selected by a host of the form <code>unix:/path/to/ssdb.sock</code>,
+ * the port is then ignored. Example:
+ * <p>
+ * <pre>
+ * SSDB ssdb = new SSDB(&quot;unix:/var/run/ssdb.sock&quot;, 0);
+ * </pre>
+ * <p>
+ * The channel is opened by reflection, since <code>UnixDomainSocketAddress</code> needs Java 16
+ * while this library is built for Java 8: on an older runtime connecting fails with
+ * {@link UnsupportedOperationException}. The read timeout ({@link #setSoTimeout(int)}) is
+ * honoured with a selector, as socket adaptors of unix channels do not support it.
+ */
+public class UnixSocket extends Socket {
+    public static final String SCHEME = "unix:";
+
+    private final String path;
+    private final SocketChannel channel;
+    private final Selector selector;
+    private final SelectionKey key;
+    private volatile int timeout_ms = 0;
+    private final InputStream in = new InputStream() {
+        @Override
+        public int read() throws IOException {
+            byte[] b = new byte[1];
+            int n = read(b, 0, 1);
+            return n < 0 ? -1 : b[0] & 0xff;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            return UnixSocket.this.read(b, off, len);
+        }
+    };
+    private final OutputStream out = new OutputStream() {
+        @Override
+        public void write(int b) throws IOException {
+            write(new byte[]{(byte) b}, 0, 1);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            UnixSocket.this.write(b, off, len);
+        }
+    };
+
+    private UnixSocket(String path, SocketChannel channel) throws IOException {
+        this.path = path;
+        this.channel = channel;
+        channel.configureBlocking(false);
+        selector = Selector.open();
+        key = channel.register(selector, 0);
+    }
+
+    /**
+     * @param host host name, or <code>unix:</code> followed by the path of a unix domain socket
+     * @return true if host is a unix domain socket
+     */
+    public static boolean isUnix(String host) {
+        return host != null && host.startsWith(SCHEME);
+    }
+
+    /**
+     * Connect to a server by TCP, or by a unix domain socket if host starts with <code>unix:</code>.
+     *
+     * @param host       host of the server, or unix:/path
+     * @param port       port of the server, ignored for a unix domain socket
+     * @param timeout_ms connect and read timeout, 0 for never
+     * @return connected socket
+     * @throws IOException connect failed
+     */
+    public static Socket connect(String host, int port, int timeout_ms) throws IOException {
+        Socket sock;
+        if (isUnix(host)) {
+            String path = host.substring(SCHEME.length());
+            sock = new UnixSocket(path, openChannel(path));
+        } else {
+            sock = new Socket();
+            try {
+                // a server which is down should not hold the caller for the connect timeout of the os
+                sock.connect(new InetSocketAddress(host, port), Math.max(timeout_ms, 0));
+                sock.setTcpNoDelay(true);
+            } catch (IOException e) {
+                sock.close();
+                throw e;
+            }
+        }
+        if (timeout_ms > 0) {
+            sock.setSoTimeout(timeout_ms);
+        }
+        return sock;
+    }
+
+    /**
+     * @param path path of a unix domain socket
+     * @return a connected channel in blocking mode
+     * @throws IOException                   connect failed
+     * @throws UnsupportedOperationException the runtime is older than Java 16
+     */
+    public static SocketChannel openChannel(String path) throws IOException {
+        SocketAddress address = address(path);
+        SocketChannel ch = (SocketChannel) open(SocketChannel.class);
+        try {
+            ch.connect(address);
+        } catch (IOException e) {
+            ch.close();
+            throw e;
+        }
+        return ch;
+    }
+
+    /**
+     * @param path path of the unix domain socket to create, it must not exist
+     * @return a server channel bound to path, in blocking mode
+     * @throws IOException                   bind failed
+     * @throws UnsupportedOperationException the runtime is older than Java 16
+     */
+    static ServerSocketChannel bind(String path) throws IOException {
+        SocketAddress address = address(path);
+        ServerSocketChannel ch = (ServerSocketChannel) open(ServerSocketChannel.class);
+        try {
+            ch.bind(address);
+        } catch (IOException e) {
+            ch.close();
+            throw e;
+        }
+        return ch;
+    }
+
+    private static SocketAddress address(String path) throws IOException {
+        try {
+            return (SocketAddress) Class.forName("java.net.UnixDomainSocketAddress")
+                    .getMethod("of", String.class).invoke(null, path);
+        } catch (InvocationTargetException e) {
+            throw new IOException(e.getCause());
+        } catch (ReflectiveOperationException e) {
+            throw new UnsupportedOperationException("unix domain sockets need Java 16 or later", e);
+        }
+    }
+
+    // SocketChannel.open(UNIX) or ServerSocketChannel.open(UNIX)
+    private static Object open(Class<?> channel) throws IOException {
+        try {
+            ProtocolFamily unix = StandardProtocolFamily.valueOf("UNIX");
+            return channel.getMethod("open", ProtocolFamily.class).invoke(null, unix);
+        } catch (InvocationTargetException e) {
+            if (e.getCause() instanceof IOException) {
+                throw (IOException) e.getCause();
+            }
+            throw new IOException(e.getCause());
+        } catch (ReflectiveOperationException | IllegalArgumentException e) {
+            throw new UnsupportedOperationException("unix domain sockets need Java 16 or later", e);
+        }
+    }
+
+    private int read(byte[] b, int off, int len) throws IOException {
+        ByteBuffer bb = ByteBuffer.wrap(b, off, len);
+        while (true) {
+            int n = channel.read(bb);
+            if (n != 0 || len == 0) {
+                return n;
+            }
+            if (!await(SelectionKey.OP_READ, timeout_ms)) {
+                throw new SocketTimeoutException("Read timed out");
+            }
+        }
+    }
+
+    private void write(byte[] b, int off, int len) throws IOException {
+        ByteBuffer bb = ByteBuffer.wrap(b, off, len);
+        while (bb.hasRemaining()) {
+            if (channel.write(bb) == 0) {
+                await(SelectionKey.OP_WRITE, 0);
+            }
+        }
+    }
+
+    // false on timeout, select may return early without the channel being ready
+    private boolean await(int op, int timeout) throws IOException {
+        long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeout);
+        key.interestOps(op);
+        try {
+            while (true) {
+                long wait = 0;
+                if (timeout > 0) {
+                    long left = deadline - System.nanoTime();
+                    if (left <= 0) {
+                        return false;
+                    }
+                    wait = Math.max(TimeUnit.NANOSECONDS.toMillis(left), 1);
+                }
+                if (selector.select(wait) > 0) {
+                    return true;
+                }
+                if (Thread.currentThread().isInterrupted()) {
+                    // select returns at once while the thread is interrupted
+                    throw new InterruptedIOException("interrupted while waiting on " + path);
+                }
+            }
+        } finally {
+            selector.selectedKeys().clear();
+            if (key.isValid()) {
+                key.interestOps(0);
+            }
+        }
+    }
+
+    public String getPath() {
+        return path;
+    }
+
+    @Override
+    public InputStream getInputStream() throws IOException {
+        if (isClosed()) {
+            throw new IOException("Socket is closed");
+        }
+        return in;
+    }
+
+    @Override
+    public OutputStream getOutputStream() throws IOException {
+        if (isClosed()) {
+            throw new IOException("Socket is closed");
+        }
+        return out;
+    }
+
+    @Override
+    public void setSoTimeout(int timeout) {
+        this.timeout_ms = Math.max(timeout, 0);
+    }
+
+    @Override
+    public int getSoTimeout() {
+        return timeout_ms;
+    }
+
+    /**
+     * no Nagle on a unix domain socket, ignored
+     */
+    @Override
+    public void setTcpNoDelay(boolean on) {
+    }
+
+    @Override
+    public boolean isConnected() {
+        return channel.isConnected();
+    }
+
+    @Override
+    public boolean isClosed() {
+        return !channel.isOpen();
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        try {
+            selector.close();
+        } finally {
+            channel.close();
+        }
+    }
+
+    @Override
+    public String toString() {
+        return "UnixSocket[" + path + "]";
+    }
+}
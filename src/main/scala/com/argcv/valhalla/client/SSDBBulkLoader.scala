@@ -0,0 +1,310 @@
+package com.argcv.valhalla.client
+
+import java.util.IdentityHashMap
+import java.util.concurrent.atomic.AtomicLong
+import java.util.concurrent.{ Executors, Semaphore, ThreadFactory, TimeUnit }
+
+import com.argcv.valhalla.client.SSDBClient.{ SSDBPool, SSDBRoute }
+import com.argcv.valhalla.fs.SingleMachineFileSystemHelper
+import com.argcv.valhalla.utils.Awakable
+
+import scala.collection.JavaConverters._
+import scala.collection.mutable
+
+/**
+ * a record to load into ssdb
+ */
+sealed trait SSDBRecord
+
+object SSDBRecord {
+
+  case class KV(key: String, value: String) extends SSDBRecord
+
+  case class Hash(name: String, key: String, value: String) extends SSDBRecord
+
+  case class ZSet(name: String, key: String, score: Long) extends SSDBRecord
+
+  /**
+   * an item pushed to the tail of a queue
+   */
+  case class QPush(name: String, item: String) extends SSDBRecord
+
+}
+
+/**
+ * @param records       records written
+ * @param batches       batches written
+ * @param failedRecords records of the batches which failed after all retries
+ * @param retries       batches retried
+ * @param elapsed       ms since the loader started
+ */
+case class LoadReport(records: Long, batches: Long, failedRecords: Long, retries: Long, elapsed: Long) {
+  /**
+   * @return records written per second
+   */
+  def rate: Double = if (elapsed <= 0) 0.0 else records * 1000.0 / elapsed
+
+  override def toString: String = f"[SSDB load] records: $records, batches: $batches, failed: $failedRecords, retries: $retries, elapsed: ${elapsed}ms, rate: $rate%.1f/s"
+}
+
+/**
+ * Load many records into ssdb with few round trips.
+ * Records are grouped by server into batches of batchSize, and each batch is written by one pipeline
+ * of multi_set / multi_hset / multi_zset / qpush_back, a single round trip. parallelism batches are written at once,
+ * and add blocks while maxInFlight batches are waiting or being written, so the memory held is bounded
+ * however fast records come in. <br/>
+ * A failed batch is retried up to retries times with exponential backoff, all the multi_* commands are idempotent.
+ * qpush_back is not, a batch retried after a timeout may be pushed twice, so batches with queue items are retried
+ * queueRetries times, none by default.
+ * Progress is logged every reportInterval ms.
+ * {{{
+ * val loader = new SSDBBulkLoader(pool)
+ * rows.foreach { case (k, v) => loader.set(k, v) }
+ * val report = loader.close()
+ * }}}
+ * A near cache of the route is cleared by flush and close, entries read during the load may be stale until then. <br/>
+ * As a producer of queues, with linger so that items do not wait for a full batch:
+ * {{{
+ * val producer = new SSDBBulkLoader(pool, parallelism = 1, linger = 5)
+ * jobs.foreach(producer.qpush("jobs", _))
+ * }}}
+ * Batches are handed to the writers in the order of their records, so with parallelism = 1 the items of a queue
+ * land in the order they were added. Batches written in parallel may land in any order.
+ *
+ * @param pool           route of the records
+ * @param parallelism    batches written at once
+ * @param batchSize      records per batch
+ * @param maxInFlight    batches waiting or being written
+ * @param retries        retries of a failed batch
+ * @param queueRetries   retries of a failed batch with queue items
+ * @param reportInterval ms between two progress logs, 0 for none
+ * @param linger         ms after which partial batches are sent, 0 to keep them until flush
+ */
+class SSDBBulkLoader(pool: SSDBRoute,
+  parallelism: Int = 4,
+  batchSize: Int = 500,
+  maxInFlight: Int = 16,
+  retries: Int = 3,
+  queueRetries: Int = 0,
+  reportInterval: Long = 10000,
+  linger: Long = 0) extends Awakable {
+  require(parallelism > 0 && batchSize > 0 && maxInFlight > 0 && retries >= 0 && queueRetries >= 0 && linger >= 0,
+    s"parallelism: $parallelism, batchSize: $batchSize, maxInFlight: $maxInFlight, retries: $retries, queueRetries: $queueRetries, linger: $linger")
+
+  private val executor = Executors.newFixedThreadPool(parallelism)
+  private val inFlight = new Semaphore(maxInFlight)
+  // records not sent yet, by server, guarded by this
+  // by identity: the case class hash of SSDBPool is slow, and equal pools are still two pools
+  private val buffers = new IdentityHashMap[SSDBPool, mutable.ArrayBuffer[SSDBRecord]]().asScala
+  // held while a batch is taken and submitted, so batches reach the writers in the order of their records
+  private val ordering = new Object
+
+  private val started = System.currentTimeMillis()
+  @volatile private var lastReport = started
+  private val records = new AtomicLong()
+  private val batches = new AtomicLong()
+  private val failedRecords = new AtomicLong()
+  private val retried = new AtomicLong()
+  @volatile private var closed = false
+
+  // sends the partial batches every linger ms
+  private val lingering = if (linger > 0) {
+    val s = Executors.newSingleThreadScheduledExecutor(new ThreadFactory {
+      override def newThread(r: Runnable): Thread = {
+        val t = new Thread(r, "ssdb-loader-linger")
+        t.setDaemon(true)
+        t
+      }
+    })
+    s.scheduleWithFixedDelay(new Runnable {
+      override def run(): Unit =
+        try sendPartial() catch {
+          case e: Exception => logger.warn(s"[SSDB load] send partial batches failed: ${e.getMessage}")
+        }
+    }, linger, linger, TimeUnit.MILLISECONDS)
+    Some(s)
+  } else {
+    None
+  }
+
+  def set(key: String, value: String): Unit = add(SSDBRecord.KV(key, value))
+
+  def hset(name: String, key: String, value: String): Unit = add(SSDBRecord.Hash(name, key, value))
+
+  def zset(name: String, key: String, score: Long): Unit = add(SSDBRecord.ZSet(name, key, score))
+
+  def qpush(name: String, item: String): Unit = add(SSDBRecord.QPush(name, item))
+
+  /**
+   * queue a record, blocks while maxInFlight batches are not written yet
+   */
+  def add(record: SSDBRecord): Unit = {
+    if (closed) throw new IllegalStateException("loader closed")
+    val node = record match {
+      case SSDBRecord.KV(key, _) => pool.route(key)
+      case SSDBRecord.Hash(name, _, _) => pool.route(name)
+      case SSDBRecord.ZSet(name, _, _) => pool.route(name)
+      case SSDBRecord.QPush(name, _) => pool.route(name)
+    }
+    val full = synchronized {
+      val buf = buffers.getOrElseUpdate(node, new mutable.ArrayBuffer[SSDBRecord](batchSize))
+      buf += record
+      buf.size >= batchSize
+    }
+    if (full) {
+      ordering.synchronized {
+        // gone if another adder sent it, grown if a submit was blocked meanwhile
+        val batch = synchronized {
+          if (buffers.get(node).exists(_.size >= batchSize)) buffers.remove(node) else None
+        }
+        batch.foreach(submit(node, _))
+      }
+    }
+    if (reportInterval > 0 && System.currentTimeMillis() - lastReport >= reportInterval) {
+      lastReport = System.currentTimeMillis()
+      logger.info(progress.toString)
+    }
+  }
+
+  def addAll(records: TraversableOnce[SSDBRecord]): Unit = records.foreach(add)
+
+  /**
+   * send the partial batches and wait until every batch is written
+   */
+  def flush(): Unit = {
+    sendPartial()
+    inFlight.acquire(maxInFlight)
+    inFlight.release(maxInFlight)
+    pool.nearCache.foreach(_.clear())
+  }
+
+  /**
+   * flush and stop the writers
+   *
+   * @return final report
+   */
+  def close(): LoadReport = {
+    // let a running send finish, an interrupted one would drop the batches it took
+    lingering.foreach { s =>
+      s.shutdown()
+      s.awaitTermination(Long.MaxValue, TimeUnit.MILLISECONDS)
+    }
+    flush()
+    closed = true
+    executor.shutdown()
+    executor.awaitTermination(Long.MaxValue, TimeUnit.MILLISECONDS)
+    val report = progress
+    logger.info(report.toString)
+    report
+  }
+
+  def progress: LoadReport =
+    LoadReport(records.get(), batches.get(), failedRecords.get(), retried.get(), System.currentTimeMillis() - started)
+
+  private def sendPartial(): Unit =
+    ordering.synchronized {
+      val partial = synchronized {
+        val bs = buffers.toList
+        buffers.clear()
+        bs
+      }
+      partial.foreach { case (node, buf) => submit(node, buf) }
+    }
+
+  private def submit(node: SSDBPool, batch: Seq[SSDBRecord]): Unit = {
+    inFlight.acquire()
+    try {
+      executor.execute(new Runnable {
+        override def run(): Unit =
+          try write(node, batch)
+          finally inFlight.release()
+      })
+    } catch {
+      case e: Exception =>
+        inFlight.release()
+        throw e
+    }
+  }
+
+  private def write(node: SSDBPool, batch: Seq[SSDBRecord]): Unit = {
+    val maxRetries = if (batch.exists(_.isInstanceOf[SSDBRecord.QPush])) queueRetries else retries
+    var attempt = 0
+    var done = false
+    while (!done) {
+      try {
+        node.withClient { r =>
+          val p = r.pipeline()
+          val kvs = new mutable.ArrayBuffer[String]()
+          val hashes = mutable.LinkedHashMap[String, mutable.ArrayBuffer[String]]()
+          val zsets = mutable.LinkedHashMap[String, mutable.ArrayBuffer[AnyRef]]()
+          val queues = mutable.LinkedHashMap[String, mutable.ArrayBuffer[String]]()
+          batch.foreach {
+            case SSDBRecord.KV(key, value) =>
+              kvs += key += value
+            case SSDBRecord.Hash(name, key, value) =>
+              hashes.getOrElseUpdate(name, mutable.ArrayBuffer[String](name)) += key += value
+            case SSDBRecord.ZSet(name, key, score) =>
+              zsets.getOrElseUpdate(name, mutable.ArrayBuffer[AnyRef](name)) += key += java.lang.Long.valueOf(score)
+            case SSDBRecord.QPush(name, item) =>
+              queues.getOrElseUpdate(name, mutable.ArrayBuffer[String](name)) += item
+          }
+          if (kvs.nonEmpty) p.request("multi_set", kvs: _*)
+          hashes.values.foreach(args => p.request("multi_hset", args: _*))
+          zsets.values.foreach(args => p.request("multi_zset", args: _*))
+          queues.values.foreach(args => p.request("qpush_back", args: _*))
+          p.sync()
+        }
+        records.addAndGet(batch.size.toLong)
+        batches.incrementAndGet()
+        done = true
+      } catch {
+        case e: Exception =>
+          if (attempt < maxRetries) {
+            retried.incrementAndGet()
+            Thread.sleep(100L << attempt)
+            attempt += 1
+          } else {
+            logger.warn(s"[SSDB load] batch of ${batch.size} records to $node failed: ${e.getMessage}")
+            failedRecords.addAndGet(batch.size.toLong)
+            done = true
+          }
+      }
+    }
+  }
+}
+
+object SSDBBulkLoader {
+  /**
+   * load all records and close the loader
+   */
+  def load(records: TraversableOnce[SSDBRecord], loader: SSDBBulkLoader): LoadReport = {
+    loader.addAll(records)
+    loader.close()
+  }
+
+  /**
+   * load the rows of a csv file, see SingleMachineFileSystemHelper.csvIter
+   *
+   * @param toRecord record of a row, None to skip it
+   */
+  def loadCsv(path: String, loader: SSDBBulkLoader, separator: Char = ',', skipLines: Int = 0)(toRecord: Seq[String] => Option[SSDBRecord]): LoadReport = {
+    SingleMachineFileSystemHelper.csvIter(path, separator = separator, skipLines = skipLines) { row =>
+      toRecord(row.toSeq).foreach(loader.add)
+      true
+    }
+    loader.close()
+  }
+
+  /**
+   * load the key-value pairs with the prefix of a leveldb
+   *
+   * @param toRecord record of a pair, None to skip it
+   */
+  def loadLevelDB(ldb: LevelDBClient, loader: SSDBBulkLoader, prefix: String = "")(toRecord: (String, String) => Option[SSDBRecord]): LoadReport = {
+    ldb.iterWithPrefix(prefix) { (k, v) =>
+      toRecord(k, v).foreach(loader.add)
+      true
+    }
+    loader.close()
+  }
+}
@@ -1,16 +1,27 @@
 package com.argcv.valhalla.client
 
-import java.net.{ ConnectException, SocketTimeoutException }
-
+import java.io.{ EOFException, InputStream, OutputStream }
+import java.net.{ ConnectException, SocketException, SocketTimeoutException }
+import java.nio.charset.StandardCharsets
+import java.nio.file.{ Files, Paths }
+import java.security.MessageDigest
+import java.util.concurrent.ArrayBlockingQueue
+import java.util.concurrent.atomic.AtomicLong
+import java.util.concurrent.locks.LockSupport
+import java.util.function.IntSupplier
+
+import com.argcv.valhalla.concurrent.{ CircuitBreaker, CircuitOpenException, ObjectPool }
 import com.argcv.valhalla.exception.ExceptionHelper._
 import com.argcv.valhalla.string.StringHelper._
 import com.argcv.valhalla.utils.Awakable
 import com.argcv.valhalla.utils.CommonHelper._
-import com.udpwork.ssdb.{ Response, SSDB }
+import com.google.common.util.concurrent.RateLimiter
+import com.udpwork.ssdb.{ MetricsSink, MuxLink, NearCache, Pipeline, ReconnectBackoff, Response, SSDB, SSDBMetrics, Scores }
 import org.apache.commons.pool.PoolableObjectFactory
-import org.apache.commons.pool.impl.GenericObjectPool
 import org.apache.commons.pool.impl.GenericObjectPool._
 
+import scala.collection.JavaConverters._
+import scala.collection.mutable
 import scala.collection.mutable.{ ArrayBuffer, ListBuffer }
 import scala.concurrent._
 
@@ -25,8 +36,8 @@ import scala.concurrent._
  */
 trait SSDBClient extends Awakable {
 
-  def ttl(key: String, pool: SSDBPool): Option[Long] =
-    pool.safeWithClient(_.ttl(key)) match {
+  def ttl(key: String, pool: SSDBRoute): Option[Long] =
+    pool.routeRead(key).safeWithClient(_.ttl(key)) match {
       case Some(v) =>
         if (v == null || v == -1L) {
           None
@@ -39,7 +50,7 @@ trait SSDBClient extends Awakable {
 
   /**
    * Set the value of the key. with expire
-   * this function impliment it by client
+   * set and expire are sent as one pipeline, a single round trip
    *
    * @param key   key
    * @param value value
@@ -47,13 +58,14 @@ trait SSDBClient extends Awakable {
    * @param pool  pool
    * @return
    */
-  def setx(key: String, value: String, ttl: Long, pool: SSDBPool): Boolean =
-    set(key, value, pool) && expire(key, ttl, pool)
+  def setx(key: String, value: String, ttl: Long, pool: SSDBRoute): Boolean =
+    invalidated(pool, kvCacheKey(key))(pool.route(key).execWithClient(_.pipeline().set(key, value).expire(key, ttl).sync())._1)
 
   /**
    * set value by key.
    * set ttl if key does not exists
-   * this function impliment it by client
+   * setnx and set are sent as one pipeline, so an existing key costs a single round trip,
+   * and a created key one more for its ttl
    *
    * @param key   key
    * @param value value
@@ -61,20 +73,17 @@ trait SSDBClient extends Awakable {
    * @param pool  pool
    * @return
    */
-  def setnx(key: String, value: String, ttl: Long, pool: SSDBPool): Boolean =
-    get(key, pool) match {
-      case Some(_) =>
-        set(key, value, pool)
-      case None =>
-        set(key, value, pool)
-        expire(key, ttl, pool)
-    }
+  def setnx(key: String, value: String, ttl: Long, pool: SSDBRoute): Boolean =
+    invalidated(pool, kvCacheKey(key))(pool.route(key).execWithClient { r =>
+      val created = r.pipeline().setnx(key, value).set(key, value).sync().get(0).getLong(0) == 1
+      if (created) r.expire(key, ttl)
+    }._1)
 
   /**
    * Set the time left to live in seconds, only for keys of KV type.
    */
-  def expire(key: String, ttl: Long, pool: SSDBPool): Boolean =
-    pool.execWithClient(_.expire(key, ttl))._1
+  def expire(key: String, ttl: Long, pool: SSDBRoute): Boolean =
+    invalidated(pool, kvCacheKey(key))(pool.route(key).execWithClient(_.expire(key, ttl))._1)
 
   /**
    * Set the value of the key.
@@ -83,112 +92,182 @@ trait SSDBClient extends Awakable {
    * @param value value limit: length should less than 30MB
    * @param pool  pool
    */
-  def set(key: String, value: String, pool: SSDBPool): Boolean =
-    pool.execWithClient(_.set(key, value))._1
-
-  //  /**
-  //   * Set the value of the key. with expire
-  //   * sometimes, this function doesnot working, with exception: error
-  //   * @param key key
-  //   * @param value value
-  //   * @param ttl time expired
-  //   * @param pool pool
-  //   * @return
-  //   */
-  //  def setxNative(key: String, value: String, ttl: Long, pool: SSDBPool): Boolean =
-  //    (() => pool.withClient(r => r.setx(key, value, ttl))).safeExecWithMessage._1
+  def set(key: String, value: String, pool: SSDBRoute): Boolean =
+    invalidated(pool, kvCacheKey(key))(pool.route(key).execWithClient(_.set(key, value))._1)
 
   /**
    * Get the value related to the specified key
+   * With a near cache (see CachedSSDBPool), the ttl of the key is read in the same round trip,
+   * and the value is not cached beyond it.
+   * With CoalescingSSDBPool, concurrent calls are sent together as one multi_get.
    */
-  def get(key: String, pool: SSDBPool): Option[String] =
-    pool.safeWithClient { r =>
-      val value = r.get(key)
-      if (value == null) {
-        None
-      } else {
-        Some(new String(value))
+  def get(key: String, pool: SSDBRoute): Option[String] =
+    if (pool.nearCache.isDefined) {
+      nearCached(pool, kvCacheKey(key)) {
+        pool.coalescing match {
+          case Some(c) =>
+            c.getWithTtl(key)
+          case None =>
+            pool.routeRead(key).safeWithClient { r =>
+              val resps = r.pipeline().get(key).ttl(key).exec()
+              val v = resps.get(0)
+              if (v.not_found()) {
+                None
+              } else {
+                if (!v.ok()) v.exception()
+                Some((v.getString(0), cacheTtl(resps.get(1))))
+              }
+            }.flatten
+        }
+      }
+    } else {
+      pool.coalescing match {
+        case Some(c) =>
+          c.get(key)
+        case None =>
+          pool.routeRead(key).safeWithClient { r =>
+            val value = r.get(key)
+            if (value == null) {
+              None
+            } else {
+              Some(new String(value, StandardCharsets.UTF_8))
+            }
+          } match {
+            case Some(v) => v
+            case None => None
+          }
       }
-    } match {
-      case Some(v) => v
-      case None => None
     }
 
-  //  /**
-  //    * set value by key.
-  //    * set ttl if key does not exists
-  //    * @param key key
-  //    * @param value value
-  //    * @param ttl ttl (by seconds)
-  //    * @param pool pool
-  //    * @return
-  //    */
-  //  def setnx(key: String, value: String, ttl: Long, pool: SSDBPool): Boolean =
-  //    (() => pool.withClient(r => r.setnx(key, value, ttl))).safeExecWithMessage._1
+  /**
+   * Write the value of the key to out as it arrives, a chunk at a time, without holding it in memory.
+   * For large values such as serialized models, the near cache is not used. out may have received
+   * part of the value if None is returned on a failure.
+   *
+   * @return length of the value, None if not found or failed
+   */
+  def getTo(key: String, out: OutputStream, pool: SSDBRoute): Option[Long] =
+    pool.routeRead(key).safeWithClient(_.get(key, out)).filter(_ >= 0)
+
+  /**
+   * Set the value of the key from in, a chunk at a time, without holding it in memory.
+   *
+   * @param in     value, exactly length bytes are read
+   * @param length length of the value
+   */
+  def setFrom(key: String, in: InputStream, length: Long, pool: SSDBRoute): Boolean =
+    invalidated(pool, kvCacheKey(key))(pool.route(key).execWithClient(_.set(key, in, length))._1)
+
+  /**
+   * getTo a file, the file is removed if the key is not found or on failure
+   *
+   * @return length of the value, None if not found or failed
+   */
+  def getToFile(key: String, path: String, pool: SSDBRoute): Option[Long] = {
+    val file = Paths.get(path)
+    val out = Files.newOutputStream(file)
+    val ret = try getTo(key, out, pool) finally out.close()
+    if (ret.isEmpty) Files.deleteIfExists(file)
+    ret
+  }
+
+  /**
+   * setFrom the content of a file
+   */
+  def setFromFile(key: String, path: String, pool: SSDBRoute): Boolean = {
+    val file = Paths.get(path)
+    val in = Files.newInputStream(file)
+    try setFrom(key, in, Files.size(file), pool) finally in.close()
+  }
 
-  def incr(key: String, by: Long, pool: SSDBPool): Option[Long] =
-    pool.safeWithClient(_.incr(key, by))
+  def incr(key: String, by: Long, pool: SSDBRoute): Option[Long] =
+    invalidated(pool, kvCacheKey(key))(pool.route(key).safeWithClient(_.incr(key, by)))
 
   /**
    * Set the score of the key of a zset.
    */
-  def zset(name: String, key: String, score: Long, pool: SSDBPool): Boolean =
-    pool.execWithClient(_.zset(name, key, score))._1
+  def zset(name: String, key: String, score: Long, pool: SSDBRoute): Boolean =
+    invalidated(pool, zsetCacheKey(name, key))(pool.route(name).execWithClient(_.zset(name, key, score))._1)
 
   /**
    * Get the score related to the specified key of a zset
    */
-  def zget(name: String, key: String, pool: SSDBPool): Option[Long] =
-    pool.safeWithClient { r =>
-      val value = r.zget(name, key)
-      if (value == null) {
-        None
-      } else {
-        Some(value.toLong)
-      }
-    } match {
-      case Some(v) => v
-      case None => None
-    }
+  def zget(name: String, key: String, pool: SSDBRoute): Option[Long] =
+    nearCached(pool, zsetCacheKey(name, key)) {
+      pool.routeRead(name).safeWithClient { r =>
+        val value = r.zget(name, key)
+        if (value == null) {
+          None
+        } else {
+          Some((value, 0L))
+        }
+      }.flatten
+    }.map(_.longValue)
 
   /**
    * <strong>Important! This method is SLOW for large offset!</strong>
    * <br/>
    * Returns a range of key-score pairs by index range [offset, offset + size). Zrrange iterates in reverse order.
    */
-  def zrange(name: String, offset: Int, size: Int, pool: SSDBPool): List[(String, Long)] = {
-    if (zsize(name, pool) > 0) {
-      pool.safeWithClient { r =>
-        val resp = r.zrange(name, offset, size)
-        if (resp.ok()) {
-          getKeyValueListFromResp(resp)
-        } else {
-          List[(String, Long)]()
-        }
-      } match {
-        case Some(l) =>
-          l
-        case None =>
-          List[(String, Long)]()
+  def zrange(name: String, offset: Int, size: Int, pool: SSDBRoute): List[(String, Long)] =
+    // a missing zset is an empty range, no zsize needed first
+    pool.routeRead(name).safeWithClient { r =>
+      val resp = r.zrange(name, offset, size)
+      if (resp.ok()) {
+        getKeyValueListFromResp(resp)
+      } else {
+        List[(String, Long)]()
       }
-    } else {
-      List[(String, Long)]()
+    } match {
+      case Some(l) =>
+        l
+      case None =>
+        List[(String, Long)]()
     }
-  }
+
+  /**
+   * Same as zrange, but keys and scores are returned as parallel arrays, without a String or a boxed
+   * Long per score. Prefer this for large ranges.
+   */
+  def zrangeScores(name: String, offset: Int, size: Int, pool: SSDBRoute): Scores =
+    pool.routeRead(name).safeWithClient(_.zrange(name, offset, size).scores()).getOrElse(emptyScores)
+
+  /**
+   * Same as zrrange, but keys and scores are returned as parallel arrays.
+   */
+  def zrrangeScores(name: String, offset: Int, size: Int, pool: SSDBRoute): Scores =
+    pool.routeRead(name).safeWithClient(_.zrrange(name, offset, size).scores()).getOrElse(emptyScores)
+
+  /**
+   * One batch of zscan, keys and scores are returned as parallel arrays.
+   * Continue from the last key and score of a batch to read the next one.
+   *
+   * @param name       name
+   * @param key        key start, exclusive when scoreStart equals its score
+   * @param scoreStart min score, None for -inf
+   * @param scoreEnd   max score, None for +inf
+   * @param limit      max number of pairs
+   */
+  def zscanScores(name: String, key: String, scoreStart: Option[Long], scoreEnd: Option[Long], limit: Int, pool: SSDBRoute): Scores =
+    pool.routeRead(name).safeWithClient(_.zscan(
+      name,
+      key,
+      scoreStart.map(long2Long).orNull,
+      scoreEnd.map(long2Long).orNull,
+      limit).scores()).getOrElse(emptyScores)
+
+  private val emptyScores = new Scores(Array[Array[Byte]](), Array[Long]())
 
   /**
    * value must exists
    */
   private def getKeyValueListFromResp(resp: Response): List[(String, Long)] = {
     SafeExecWithTrace {
-      val it = resp.keys.iterator()
-      val vmap = resp.items
       val l = ListBuffer[(String, Long)]()
-      while (it.hasNext) {
-        val x = it.next()
-        val key = new String(x)
-        val value = java.lang.Long.parseLong(new String(vmap.get(x)))
-        l.append((key, value))
+      var i = 0
+      while (i < resp.pairCount()) {
+        l.append((resp.keyString(i), resp.valueLong(i)))
+        i += 1
       }
       l.toList
     } match {
@@ -200,8 +279,8 @@ trait SSDBClient extends Awakable {
   /**
    * Return the number of pairs of a zset.
    */
-  def zsize(key: String, pool: SSDBPool): Long =
-    pool.safeWithClient(_.zsize(key)).safeGetOrElse(0)
+  def zsize(key: String, pool: SSDBRoute): Long =
+    pool.routeRead(key).safeWithClient(_.zsize(key)).safeGetOrElse(0)
 
   /**
    * return count of keys in [scoreStart, scoreEnd]
@@ -211,8 +290,8 @@ trait SSDBClient extends Awakable {
    * @param scoreEnd   score end, None for +inf
    * @return Option[Count]
    */
-  def zcount(name: String, scoreStart: Option[Long], scoreEnd: Option[Long], pool: SSDBPool): Option[Long] = {
-    pool.safeWithClient(r =>
+  def zcount(name: String, scoreStart: Option[Long], scoreEnd: Option[Long], pool: SSDBRoute): Option[Long] = {
+    pool.routeRead(name).safeWithClient(r =>
       r.zcount(name,
         scoreStart.map(long2Long).orNull,
         scoreEnd.map(long2Long).orNull))
@@ -223,25 +302,21 @@ trait SSDBClient extends Awakable {
    * <br/>
    * Returns a range of key-score pairs by index range [offset, offset + limit). Zrrange iterates in reverse order.
    */
-  def zrrange(name: String, offset: Int, size: Int, pool: SSDBPool): List[(String, Long)] = {
-    if (zsize(name, pool) > 0) {
-      pool.safeWithClient { r =>
-        val resp = r.zrrange(name, offset, size)
-        if (resp.ok()) {
-          getKeyValueListFromResp(resp)
-        } else {
-          List[(String, Long)]()
-        }
-      } match {
-        case Some(l) =>
-          l
-        case None =>
-          List[(String, Long)]()
+  def zrrange(name: String, offset: Int, size: Int, pool: SSDBRoute): List[(String, Long)] =
+    // a missing zset is an empty range, no zsize needed first
+    pool.routeRead(name).safeWithClient { r =>
+      val resp = r.zrrange(name, offset, size)
+      if (resp.ok()) {
+        getKeyValueListFromResp(resp)
+      } else {
+        List[(String, Long)]()
       }
-    } else {
-      List[(String, Long)]()
+    } match {
+      case Some(l) =>
+        l
+      case None =>
+        List[(String, Long)]()
     }
-  }
 
   /**
    * Increment the number stored at key in a zset by num. <br/>
@@ -249,8 +324,8 @@ trait SSDBClient extends Awakable {
    * The num argument could be a negative integer. <br/>
    * The old number is first converted to an integer before increment, assuming it was stored as literal integer.
    */
-  def zincr(name: String, key: String, by: Long, pool: SSDBPool): Long =
-    pool.safeWithClient(_.zincr(name, key, by)) match {
+  def zincr(name: String, key: String, by: Long, pool: SSDBRoute): Long =
+    invalidated(pool, zsetCacheKey(name, key))(pool.route(name).safeWithClient(_.zincr(name, key, by))) match {
       case Some(v) => v
       case None => 0
     }
@@ -259,20 +334,20 @@ trait SSDBClient extends Awakable {
    * Delete specified key of a zset. <br/>
    * take care of the differece between zdel and zclear
    */
-  def zdel(name: String, key: String, pool: SSDBPool): Boolean =
-    pool.execWithClient(_.zdel(name, key))._1
+  def zdel(name: String, key: String, pool: SSDBRoute): Boolean =
+    invalidated(pool, zsetCacheKey(name, key))(pool.route(name).execWithClient(_.zdel(name, key))._1)
 
   /**
    * Delete all keys in a hashmap.
    */
-  def hclear(name: String, pool: SSDBPool): Boolean =
-    pool.execWithClient(_.hclear(name))._1
+  def hclear(name: String, pool: SSDBRoute): Boolean =
+    invalidatedPrefix(pool, hashCacheKey(name, ""))(pool.route(name).execWithClient(_.hclear(name))._1)
 
   /**
    * Returns the number of items in the queue.
    */
-  def qsize(key: String, pool: SSDBPool): Long =
-    pool.safeWithClient(_.qsize(key)) match {
+  def qsize(key: String, pool: SSDBRoute): Long =
+    pool.routeRead(key).safeWithClient(_.qsize(key)) match {
       case Some(v) => v
       case None => 0
     }
@@ -280,134 +355,175 @@ trait SSDBClient extends Awakable {
   /**
    * Returns the first element of a queue.
    */
-  def qfront(key: String, pool: SSDBPool): Option[String] =
-    pool.safeWithClient(_.qfront(key))
+  def qfront(key: String, pool: SSDBRoute): Option[String] =
+    pool.routeRead(key).safeWithClient(_.qfront(key))
 
   /**
    * Returns the last element of a queue.
    */
-  def qback(key: String, pool: SSDBPool): Option[String] =
-    pool.safeWithClient(_.qback(key))
+  def qback(key: String, pool: SSDBRoute): Option[String] =
+    pool.routeRead(key).safeWithClient(_.qback(key))
 
-  def qget(key: String, index: Long, pool: SSDBPool): Option[String] =
-    pool.safeWithClient(_.qget(key, index))
+  def qget(key: String, index: Long, pool: SSDBRoute): Option[String] =
+    pool.routeRead(key).safeWithClient(_.qget(key, index))
 
   /**
    * Returns the element a the specified index(position). <br/>
    * 0 the first element, 1 the second ... -1 the last element.
    */
-  def qset(key: String, index: Long, data: String, pool: SSDBPool): Boolean =
-    pool.execWithClient(_.qset(key, index, data))._1
+  def qset(key: String, index: Long, data: String, pool: SSDBRoute): Boolean =
+    pool.route(key).execWithClient(_.qset(key, index, data))._1
 
   /**
    * This function is an alias of: qpush_back().
    */
-  def qpush(key: String, data: String, pool: SSDBPool): Boolean =
+  def qpush(key: String, data: String, pool: SSDBRoute): Boolean =
     qpush_back(key, data, pool)
 
   /**
    * Adds an or more than one element to the end of the queue.
    */
-  def qpush_back(key: String, data: String, pool: SSDBPool): Boolean = {
-    pool.execWithClient(r => r.qpush_back(key, data))._1
+  def qpush_back(key: String, data: String, pool: SSDBRoute): Boolean = {
+    pool.route(key).execWithClient(r => r.qpush_back(key, data))._1
   }
 
+  /**
+   * Adds many elements to the end of the queue in one request, they keep their order.
+   * For a steady stream of items see SSDBBulkLoader.qpush.
+   */
+  def qpush_back(key: String, data: Seq[String], pool: SSDBRoute): Boolean =
+    data.isEmpty || pool.route(key).safeWithClient(_.request("qpush_back", (key +: data): _*).ok()).getOrElse(false)
+
   /**
    * Adds one or more than one element to the head of the queue.
    */
-  def qpush_front(key: String, data: String, pool: SSDBPool): Boolean =
-    pool.execWithClient(_.qpush_front(key, data))._1
+  def qpush_front(key: String, data: String, pool: SSDBRoute): Boolean =
+    pool.route(key).execWithClient(_.qpush_front(key, data))._1
 
   /**
    * Pop out one or more elements from the tail of a queue.
    */
-  def qpop_back(name: String, size: Int, pool: SSDBPool): List[String] =
-    pool.safeWithClient(r => keysFromResp(r.qpop_back(name, size))).safeGetOrElse(List[String]())
+  def qpop_back(name: String, size: Int, pool: SSDBRoute): List[String] =
+    pool.route(name).safeWithClient(r => keysFromResp(r.qpop_back(name, size))).safeGetOrElse(List[String]())
 
   /**
    * @see qpop_front
    */
-  def qpop(name: String, size: Int, pool: SSDBPool): List[String] =
+  def qpop(name: String, size: Int, pool: SSDBRoute): List[String] =
     qpop_front(name, size, pool)
 
   /**
    * Pop out one or more elements from the head of a queue.
    */
-  def qpop_front(name: String, size: Int, pool: SSDBPool): List[String] =
-    pool.safeWithClient(r => keysFromResp(r.qpop_front(name, size))).safeGetOrElse(List[String]())
+  def qpop_front(name: String, size: Int, pool: SSDBRoute): List[String] =
+    pool.route(name).safeWithClient(r => keysFromResp(r.qpop_front(name, size))).safeGetOrElse(List[String]())
 
   private def keysFromResp(resp: Response): List[String] = {
-    val it = resp.keys.iterator()
     val l = ListBuffer[String]()
-    while (it.hasNext) {
-      val n = it.next()
-      l.append(new String(n))
+    var i = 0
+    while (i < resp.size()) {
+      l.append(resp.getString(i))
+      i += 1
     }
     l.toList
   }
 
-  def qtrim_back(key: String, size: Int, pool: SSDBPool): Boolean =
-    pool.execWithClient(r => r.qtrim_back(key, size))._1
+  def qtrim_back(key: String, size: Int, pool: SSDBRoute): Boolean =
+    pool.route(key).execWithClient(r => r.qtrim_back(key, size))._1
 
   /**
    * Remove multi elements from the head of a queue.
    */
-  def qtrim_front(key: String, size: Int, pool: SSDBPool): Boolean =
-    pool.execWithClient(r => r.qtrim_front(key, size))._1
+  def qtrim_front(key: String, size: Int, pool: SSDBRoute): Boolean =
+    pool.route(key).execWithClient(r => r.qtrim_front(key, size))._1
 
   /**
    * List list/queue names in range (name_start, name_end]
    */
-  def qlist(keyStart: String, keyEnd: String, size: Int, pool: SSDBPool): List[String] =
-    pool.safeWithClient(r => keysFromResp(r.qlist(keyStart, keyEnd, size))).safeGetOrElse(List[String]())
+  def qlist(keyStart: String, keyEnd: String, size: Int, pool: SSDBRoute): List[String] =
+    listNames(keyStart, size, reverse = false, pool)((r, k) => r.qlist(k, keyEnd, size))
 
   /**
    * List list/queue names in range (name_start, name_end]
    */
-  def qrlist(keyStart: String, keyEnd: String, size: Int, pool: SSDBPool): List[String] =
-    pool.safeWithClient(r => keysFromResp(r.qrlist(keyStart, keyEnd, size))).safeGetOrElse(List[String]())
+  def qrlist(keyStart: String, keyEnd: String, size: Int, pool: SSDBRoute): List[String] =
+    listNames(keyStart, size, reverse = true, pool)((r, k) => r.qrlist(k, keyEnd, size))
+
+  /**
+   * up to size names from the lists of all nodes, in order
+   */
+  private def listNames(keyStart: String, size: Int, reverse: Boolean, pool: SSDBRoute)(fetch: (SSDB, String) => Response): List[String] = {
+    val l = ListBuffer[String]()
+    SafeExecWithTrace {
+      mergeScan(pool, keyStart, size, reverse, pairs = false)(fetch) { c =>
+        l.append(c.key)
+        l.size < size
+      }
+    } match {
+      case Some(_) => l.toList
+      case None => List[String]()
+    }
+  }
 
   /**
    * Returns a portion of elements from the queue at the specified range [offset, offset + limit].
    */
-  def qrange(name: String, offset: Int, size: Int, pool: SSDBPool): List[String] =
-    pool.safeWithClient(r => keysFromResp(r.qrange(name, offset, size))).safeGetOrElse(List[String]())
+  def qrange(name: String, offset: Int, size: Int, pool: SSDBRoute): List[String] =
+    pool.routeRead(name).safeWithClient(r => keysFromResp(r.qrange(name, offset, size))).safeGetOrElse(List[String]())
 
   /**
    * Returns a portion of elements from the queue at the specified range [begin, end]. begin and end could be negative.
    */
-  def qslice(name: String, offset: Int, size: Int, pool: SSDBPool): List[String] =
-    pool.safeWithClient(r => keysFromResp(r.qslice(name, offset, size))).safeGetOrElse(List[String]())
+  def qslice(name: String, offset: Int, size: Int, pool: SSDBRoute): List[String] =
+    pool.routeRead(name).safeWithClient(r => keysFromResp(r.qslice(name, offset, size))).safeGetOrElse(List[String]())
 
   /**
    * Clear the queue.
    */
-  def qclear(name: String, pool: SSDBPool): Boolean =
-    pool.execWithClient(r => r.qclear(name))._1
+  def qclear(name: String, pool: SSDBRoute): Boolean =
+    pool.route(name).execWithClient(r => r.qclear(name))._1
 
   /**
    * Set the string value in argument as value of the key of a hashmap.
    */
-  def hset(name: String, key: String, value: String, pool: SSDBPool): Boolean =
-    pool.execWithClient(r => r.hset(name, key, value))._1
+  def hset(name: String, key: String, value: String, pool: SSDBRoute): Boolean =
+    invalidated(pool, hashCacheKey(name, key))(pool.route(name).execWithClient(r => r.hset(name, key, value))._1)
+
+  /**
+   * Same as getTo, for a key of a hashmap
+   *
+   * @return length of the value, None if not found or failed
+   */
+  def hgetTo(name: String, key: String, out: OutputStream, pool: SSDBRoute): Option[Long] =
+    pool.routeRead(name).safeWithClient(_.hget(name, key, out)).filter(_ >= 0)
+
+  /**
+   * Same as setFrom, for a key of a hashmap
+   */
+  def hsetFrom(name: String, key: String, in: InputStream, length: Long, pool: SSDBRoute): Boolean =
+    invalidated(pool, hashCacheKey(name, key))(pool.route(name).execWithClient(_.hset(name, key, in, length))._1)
 
-  def hexists(name: String, key: String, pool: SSDBPool): Boolean =
+  def hexists(name: String, key: String, pool: SSDBRoute): Boolean =
     hget(name, key, pool).isDefined
 
   /**
    * Get the value related to the specified key of a hashmap
    */
-  def hget(name: String, key: String, pool: SSDBPool): Option[String] =
-    pool.safeWithClient { r =>
-      val value = r.hget(name, key)
-      if (value == null) {
-        None
-      } else {
-        Some(new String(value))
+  def hget(name: String, key: String, pool: SSDBRoute): Option[String] =
+    nearCached(pool, hashCacheKey(name, key)) {
+      pool.coalescing match {
+        case Some(c) =>
+          c.hget(name, key).map((_, 0L))
+        case None =>
+          pool.routeRead(name).safeWithClient { r =>
+            val value = r.hget(name, key)
+            if (value == null) {
+              None
+            } else {
+              Some((new String(value, StandardCharsets.UTF_8), 0L))
+            }
+          }.flatten
       }
-    } match {
-      case Some(v) => v
-      case None => None
     }
 
   /**
@@ -416,16 +532,16 @@ trait SSDBClient extends Awakable {
    * @param limit  limit
    * @param pool   pool
    */
-  def hscanPrefix(name: String, prefix: String, limit: Int, pool: SSDBPool): List[(String, String)] = {
+  def hscanPrefix(name: String, prefix: String, limit: Int, pool: SSDBRoute): List[(String, String)] = {
     val kvs = ArrayBuffer[(String, String)]()
-    pool.execWithClient { r =>
+    pool.routeRead(name).execWithClient { r =>
       val keyStart = prefix
       val keyEnd = prefixPreProcess(prefix)
-      val g = r.hscan(name, keyStart, keyEnd, limit).items.entrySet()
-      val it = g.iterator()
-      while (it.hasNext) {
-        val kv = it.next()
-        kvs.append((a2s(kv.getKey), a2s(kv.getValue)))
+      val resp = r.hscan(name, keyStart, keyEnd, limit)
+      var i = 0
+      while (i < resp.pairCount()) {
+        kvs.append((resp.keyString(i), resp.valueString(i)))
+        i += 1
       }
     }
     kvs.toList
@@ -459,20 +575,20 @@ trait SSDBClient extends Awakable {
    * @param pool      pool
    * @param body      body , return true to continue
    */
-  def hiter(name: String, start: String, batchSize: Int = 1000, pool: SSDBPool)(body: (String, String) => Boolean): Unit = {
-    pool.execWithClient { r =>
+  def hiter(name: String, start: String, batchSize: Int = 1000, pool: SSDBRoute)(body: (String, String) => Boolean): Unit = {
+    pool.routeRead(name).execWithClient { r =>
       var keyStart = start
       var stop = false
       while (!stop) {
-        val g = r.hscan(name, keyStart, "", batchSize).items.entrySet()
-        if (g.size() == 0) {
+        val resp = r.hscan(name, keyStart, "", batchSize)
+        if (resp.pairCount() == 0) {
           stop = true
         } else {
-          val it = g.iterator()
-          while (!stop && it.hasNext) {
-            val kv = it.next()
-            keyStart = a2s(kv.getKey)
-            if (!body(keyStart, a2s(kv.getValue))) stop = true
+          var i = 0
+          while (!stop && i < resp.pairCount()) {
+            keyStart = resp.keyString(i)
+            if (!body(keyStart, resp.valueString(i))) stop = true
+            i += 1
           }
         }
       }
@@ -482,39 +598,99 @@ trait SSDBClient extends Awakable {
   /**
    * Delete specified key of a hashmap.
    */
-  def hdel(name: String, key: String, pool: SSDBPool): Boolean =
-    pool.execWithClient(_.hdel(name, key))._1
+  def hdel(name: String, key: String, pool: SSDBRoute): Boolean =
+    invalidated(pool, hashCacheKey(name, key))(pool.route(name).execWithClient(_.hdel(name, key))._1)
 
-  def scanPrefixForKey[T](handle: (String, Option[T]) => Unit, prefix: String = "", size: Int = 0, batchSize: Int = 10, data: Option[T] = None, pool: SSDBPool): Boolean = {
-    pool.execWithClient { r =>
-      var keyStart = prefix
-      val keyEnd = prefixPreProcess(prefix)
-      var count = 0
-      var eof = false
-      val rBatchSize = if (batchSize <= 0) 100 else batchSize
-      while (!eof && (size == 0 || count < size)) {
-        val g = r.scan(keyStart, keyEnd, rBatchSize).items.entrySet()
-        val rsize = g.size()
-        if (rsize > 0) {
-          val it = g.iterator()
-          var kv: java.util.Map.Entry[Array[Byte], Array[Byte]] = null
-          while (it.hasNext && (size == 0 || count < size)) {
-            kv = it.next()
-            handle(a2s(kv.getKey), data)
-            count += 1
-          }
-          keyStart = a2s(kv.getKey)
-        } else {
-          eof = true
-        }
+  def scanPrefixForKey[T](handle: (String, Option[T]) => Unit, prefix: String = "", size: Int = 0, batchSize: Int = 10, data: Option[T] = None, pool: SSDBRoute): Boolean =
+    scanKeys(prefix, size, batchSize, pool) { c =>
+      handle(c.key, data)
+      true
+    }
+
+  /**
+   * Delete all keys with the prefix, 1000 keys per multi_del, see parDelRange.
+   * As in scanPrefix the range starts after the prefix, a key equal to the prefix itself is kept.
+   *
+   * @param prefix prefix
+   * @param pool   pool
+   * @return false if failed
+   */
+  def delPrefix(prefix: String, pool: SSDBRoute): Boolean =
+    parDelPrefix(prefix, parallelism = 1, pool = pool)
+
+  /**
+   * Delete all keys with the prefix on several connections at once, see parDelRange
+   */
+  def parDelPrefix(prefix: String,
+    parallelism: Int = 4,
+    batchSize: Int = 1000,
+    maxRate: Double = 0,
+    pool: SSDBRoute): Boolean =
+    invalidatedPrefix(pool, kvCacheKey(prefix)) {
+      delRanges(s"prefix $prefix", prefix, prefixPreProcess(prefix), endInclusive = false, parallelism, batchSize, maxRate, pool)(_.keys(_, _, _)) { (r, keys) =>
+        r.multi_del(keys: _*)
       }
-    }._1
-  }
+    }
+
+  /**
+   * Delete the keys in (start, end], for offline cleanups of many keys. <br/>
+   * Keys are listed batchSize at a time and each batch is deleted by one multi_del. As in parScanRange, the range of
+   * each node is split into sub-ranges deleted concurrently by parallelism workers. maxRate caps the keys deleted per
+   * second over all workers, so a large cleanup leaves room to the online traffic.
+   *
+   * @param start       start key, exclusive, "" for -inf
+   * @param end         end key, inclusive, "" for +inf
+   * @param parallelism number of concurrent requests
+   * @param batchSize   keys per multi_del
+   * @param maxRate     most keys deleted per second, 0 for no limit
+   * @return false if failed, the keys deleted so far stay deleted
+   */
+  def parDelRange(start: String,
+    end: String,
+    parallelism: Int = 4,
+    batchSize: Int = 1000,
+    maxRate: Double = 0,
+    pool: SSDBRoute): Boolean =
+    invalidatedPrefix(pool, kvCacheKey("")) {
+      delRanges(s"range ($start, $end]", start, end, endInclusive = true, parallelism, batchSize, maxRate, pool)(_.keys(_, _, _)) { (r, keys) =>
+        r.multi_del(keys: _*)
+      }
+    }
 
-  def delPrefix(prefix: String, pool: SSDBPool) {
-    scanPrefix(handle = (k: String, v: String, d: Any) => {
-      del(k, pool)
-    }, prefix = prefix, batchSize = 100, pool = pool)
+  /**
+   * list the names in (start, end] on every node and delete them a batch at a time, by parallel workers
+   *
+   * @param what         what is deleted, in the log
+   * @param endInclusive false to keep end, which is not a name of the prefix for the end of prefixPreProcess
+   * @param maxRate      most names deleted per second, 0 for no limit
+   * @param list         the names of a range, up to limit
+   * @param del          delete names
+   */
+  private def delRanges(what: String, start: String, end: String, endInclusive: Boolean, parallelism: Int, batchSize: Int, maxRate: Double, pool: SSDBRoute)(list: (SSDB, String, String, Int) => Response)(del: (SSDB, Seq[Array[Byte]]) => Unit): Boolean = {
+    val limiter = if (maxRate > 0) Some(RateLimiter.create(maxRate)) else None
+    val ranges = pool.nodes.flatMap { node =>
+      // listed on the master, which the deletes go to
+      splitRange(start, end, parallelism * 4).map { case (s, e) => new ScanRange(node.route, s, e) }
+    }
+    var count = 0L
+    val ret = new ParallelScan(parallelism, batchSize, 16, { (r, s, e, limit) =>
+      val resp = list(r, s, e, limit)
+      // only the end of the whole range may be out of the prefix, the ends of sub-ranges are deleted
+      val names = (0 until resp.size()).map(resp.get).filter(n => endInclusive || new String(n, StandardCharsets.UTF_8) != end)
+      if (names.nonEmpty) {
+        limiter.foreach(_.acquire(names.size))
+        del(r, names)
+      }
+      resp
+    }, pairs = false).run(ranges) { (name, _) =>
+      if (endInclusive || name != end) {
+        count += 1
+        if (count % 100000 == 0) logger.info(s"[SSDB] delete $what: $count deleted")
+      }
+      true
+    }
+    logger.info(s"[SSDB] delete $what: $count deleted${if (ret) "" else ", failed"}")
+    ret
   }
 
   def scanPrefix[T](handle: (String, String, Option[T]) => Unit,
@@ -522,184 +698,465 @@ trait SSDBClient extends Awakable {
     size: Int = 0,
     batchSize: Int = 10,
     data: Option[T] = None,
-    pool: SSDBPool): Boolean = {
-    pool.execWithClient { r =>
-      var keyStart = prefix
-      val keyEnd = prefixPreProcess(prefix)
-      var count = 0
-      var eof = false
-      val rBatchSize = if (batchSize <= 0) 100 else batchSize
-      while (!eof && (size == 0 || count < size)) {
-        val g = r.scan(keyStart, keyEnd, rBatchSize).items.entrySet()
-        val rsize = g.size()
-        if (rsize > 0) {
-          val it = g.iterator()
-          var kv: java.util.Map.Entry[Array[Byte], Array[Byte]] = null
-          while (it.hasNext && (size == 0 || count < size)) {
-            kv = it.next()
-            handle(a2s(kv.getKey), a2s(kv.getValue), data)
-            count += 1
-          }
-          keyStart = a2s(kv.getKey)
-        } else {
-          eof = true
-        }
-      }
-    }._1
-  }
+    pool: SSDBRoute): Boolean =
+    scanKeys(prefix, size, batchSize, pool) { c =>
+      handle(c.key, c.value, data)
+      true
+    }
+
+  /**
+   * Queue many requests on one connection and send them with a single flush,
+   * so a batch of writes costs roughly one round trip.
+   * {{{
+   * SSDBClient.pipeline(pool) { p =>
+   *   rows.foreach { case (k, v) => p.set(k, v) }
+   * }
+   * }}}
+   *
+   * @param pool pool
+   * @param body queue requests to the pipeline
+   * @return responses in the same order as the requests, empty if failed
+   */
+  def pipeline(pool: SSDBPool)(body: Pipeline => Unit): List[Response] =
+    pool.safeWithClient { r =>
+      val p = r.pipeline()
+      body(p)
+      p.exec().asScala.toList
+    }.getOrElse(List[Response]())
 
   /**
    * Delete specified key.
    */
-  def del(key: String, pool: SSDBPool): Boolean = {
-    pool.execWithClient(r => r.del(key))._1
+  def del(key: String, pool: SSDBRoute): Boolean = {
+    invalidated(pool, kvCacheKey(key))(pool.route(key).execWithClient(r => r.del(key))._1)
   }
 
-  def delValueByKey(key: String, pool: SSDBPool): Boolean = del(key, pool)
+  def delValueByKey(key: String, pool: SSDBRoute): Boolean = del(key, pool)
 
   def scanWith(prefix: String = "",
     size: Int = 0,
     batchSize: Int = 100,
-    pool: SSDBPool)(body: (String, String) => Unit): Unit = {
-    pool.execWithClient { r =>
-      var keyStart = prefix
-      val keyEnd = prefixPreProcess(prefix)
-      var count = 0
-      var eof = false
-      val rBatchSize = if (batchSize <= 0) 100 else batchSize
-      while (!eof && (size == 0 || count < size)) {
-        val g = r.scan(keyStart, keyEnd, rBatchSize).items.entrySet()
-        val rsize = g.size()
-        if (rsize > 0) {
-          val it = g.iterator()
-          var kv: java.util.Map.Entry[Array[Byte], Array[Byte]] = null
-          while (it.hasNext && (size == 0 || count < size)) {
-            kv = it.next()
-            body(a2s(kv.getKey), a2s(kv.getValue))
-            count += 1
-          }
-          keyStart = a2s(kv.getKey)
-        } else {
-          eof = true
-        }
-      }
-    }._1
-  }
+    pool: SSDBRoute)(body: (String, String) => Unit): Unit =
+    scanKeys(prefix, size, batchSize, pool) { c =>
+      body(c.key, c.value)
+      true
+    }
 
   /**
    * List key-value pairs with keys in with prefix : prefix
    */
-  def scan[T](handle: (String, String, Option[T]) => Boolean, prefix: String, size: Int = 0, batchSize: Int = 10, data: Option[T] = None, pool: SSDBPool): Boolean = {
-    pool.execWithClient { r =>
-      var keyStart = prefix
-      val keyEnd = prefixPreProcess(prefix)
-      var count = 0
-      var eof = false
-      val rBatchSize = if (batchSize <= 0) 100 else batchSize
-      var status = true
-      while (!eof && status && (size == 0 || count < size)) {
-        val g = r.scan(keyStart, keyEnd, rBatchSize).items.entrySet()
-        val rsize = g.size()
-        if (rsize > 0) {
-          val it = g.iterator()
-          var kv: java.util.Map.Entry[Array[Byte], Array[Byte]] = null
-          while (status && it.hasNext && (size == 0 || count < size)) {
-            kv = it.next()
-            status = handle(a2s(kv.getKey), a2s(kv.getValue), data)
-            count += 1
-          }
-          keyStart = a2s(kv.getKey)
-        } else {
-          eof = true
-        }
-      }
-    }._1
+  def scan[T](handle: (String, String, Option[T]) => Boolean, prefix: String, size: Int = 0, batchSize: Int = 10, data: Option[T] = None, pool: SSDBRoute): Boolean =
+    scanKeys(prefix, size, batchSize, pool)(c => handle(c.key, c.value, data))
+
+  /**
+   * Walk the key-value pairs with the prefix on several connections at once, see parScanRange.
+   */
+  def parScan(prefix: String = "",
+    parallelism: Int = 4,
+    batchSize: Int = 1000,
+    queueSize: Int = 16,
+    pool: SSDBRoute)(handle: (String, String) => Boolean): Boolean =
+    parScanRange(prefix, prefixPreProcess(prefix), parallelism, batchSize, queueSize, pool)(handle)
+
+  /**
+   * Walk the key-value pairs with keys in (start, end] on several connections at once, for offline jobs
+   * over many keys. <br/>
+   * The range of each node is split into sub-ranges scanned concurrently by parallelism workers, and a
+   * sub-range found to be large is split again whenever a worker is idle, so the workers stay busy
+   * however the keys are spread. Batches are handed to handle on the calling thread in no particular order,
+   * at most queueSize batches wait for it, so a slow handle slows the workers down instead of filling the heap.
+   *
+   * @param start       start key, exclusive, "" for -inf
+   * @param end         end key, inclusive, "" for +inf
+   * @param parallelism number of concurrent requests
+   * @param batchSize   pairs per request
+   * @param queueSize   batches received and not handled yet
+   * @param handle      handle a pair, return false to stop
+   * @return false if failed
+   */
+  def parScanRange(start: String,
+    end: String,
+    parallelism: Int = 4,
+    batchSize: Int = 1000,
+    queueSize: Int = 16,
+    pool: SSDBRoute)(handle: (String, String) => Boolean): Boolean = {
+    val ranges = pool.nodes.flatMap { node =>
+      splitRange(start, end, parallelism * 4).map { case (s, e) => new ScanRange(node.routeRead, s, e) }
+    }
+    new ParallelScan(parallelism, batchSize, queueSize, (r, s, e, limit) => r.scan(s, e, limit)).run(ranges)(handle)
   }
 
   /**
-   * iter k-v pairs, key from (may not include) key, score in (scoreStart,scoreEnd]
+   * Walk the key-value pairs of a hashmap with keys in (start, end] on several connections at once,
+   * see parScanRange.
+   */
+  def parHiter(name: String,
+    start: String = "",
+    end: String = "",
+    parallelism: Int = 4,
+    batchSize: Int = 1000,
+    queueSize: Int = 16,
+    pool: SSDBRoute)(handle: (String, String) => Boolean): Boolean = {
+    val ranges = splitRange(start, end, parallelism * 4).map { case (s, e) => new ScanRange(_ => pool.routeRead(name), s, e) }
+    new ParallelScan(parallelism, batchSize, queueSize, (r, s, e, limit) => r.hscan(name, s, e, limit)).run(ranges)(handle)
+  }
+
+  /**
+   * walk the key-value pairs with the prefix in key order, over all nodes of the route
    *
-   * @param name       name
-   * @param key        key
-   * @param scoreStart min score
-   * @param scoreEnd   max score
-   * @param size       size
-   * @param step       step size
-   * @param pool       pool
-   * @param body       handle
+   * @param body handle a pair, return false to stop
+   * @return false if failed
    */
-  def zscan(
-    name: String,
-    key: String = "",
-    scoreStart: Option[Long],
-    scoreEnd: Option[Long],
-    size: Int = 0,
-    step: Int = 10,
-    pool: SSDBPool)(body: (String, Long) => Boolean): Boolean = {
-    pool.execWithClient { r =>
-      var cKey = key
-      var cScore: Option[Long] = scoreStart
-      var count = 0
-      var eof = false
-      val rstep = if (step < 1) 100 else step
-      while (!eof && (size == 0 || count < size)) {
-        //println(s"key start:$cKey, score start : $cScore")
-        val g = r.zscan(
-          name,
-          cKey,
-          cScore.map(long2Long).orNull,
-          scoreEnd.map(long2Long).orNull,
-          rstep).items.entrySet()
-        val rsize = g.size()
-        if (rsize > 0) {
-          val it = g.iterator()
-          var kv: java.util.Map.Entry[Array[Byte], Array[Byte]] = null
-          while (!eof && it.hasNext && (size == 0 || count < size)) {
-            kv = it.next()
-            cKey = a2s(kv.getKey)
-            new String(kv.getValue).safeToLong match {
-              case Some(tScore) =>
-                cScore = Some(tScore)
-                val status = body(cKey, tScore)
-                if (!status) {
-                  eof = true
-                }
-              case None =>
-                // parse failed
-                logger.error(s"[SSDB] parse failed: ${a2s(kv.getValue)}")
-                eof = true
-            }
-            count += 1
-          }
-        } else {
-          eof = true
-        }
+  private def scanKeys(prefix: String, size: Int, batchSize: Int, pool: SSDBRoute)(body: ScanCursor => Boolean): Boolean = {
+    val keyEnd = prefixPreProcess(prefix)
+    val rBatchSize = if (batchSize <= 0) 100 else batchSize
+    var count = 0
+    SafeExecWithMessage {
+      mergeScan(pool, prefix, rBatchSize, reverse = false, pairs = true)((r, keyStart) => r.scan(keyStart, keyEnd, rBatchSize)) { c =>
+        count += 1
+        body(c) && (size == 0 || count < size)
       }
     }._1
   }
 
   /**
-   * because of it is reversed,
-   * start score is larger than end score
+   * Walk the ordered batches of every node as one ordered stream, a k-way merge over the nodes.
+   * Each batch is requested after the last key of the previous one, a batch shorter than limit is
+   * the last one of its node.
    *
-   * @param name       name
-   * @param key        key
-   * @param scoreStart start score
-   * @param scoreEnd   end score
-   * @param size       size
-   * @param step       step size
-   * @param pool       pool
-   * @param body       handle
+   * @param start   start key of each node, exclusive
+   * @param limit   batch size requested by fetch
+   * @param reverse keys are in descending order
+   * @param pairs   batches are key-value pairs, or keys only
+   * @param fetch   request the next batch after a key
+   * @param body    handle the head of a cursor, return false to stop
    */
-  def zrscan(
-    name: String,
-    key: String = "",
-    scoreStart: Option[Long],
+  private def mergeScan(pool: SSDBRoute, start: String, limit: Int, reverse: Boolean, pairs: Boolean)(fetch: (SSDB, String) => Response)(body: ScanCursor => Boolean): Unit = {
+    val order = if (reverse) ScanCursor.order else ScanCursor.order.reverse // max first
+    val heap = mutable.PriorityQueue[ScanCursor]()(order)
+    pool.nodes.foreach { node =>
+      val c = new ScanCursor(node, start, limit, pairs, fetch)
+      if (c.valid) heap.enqueue(c)
+    }
+    var persist = true
+    while (persist && heap.nonEmpty) {
+      val c = heap.dequeue()
+      persist = body(c)
+      c.next()
+      if (persist && c.valid) heap.enqueue(c)
+    }
+  }
+
+  /**
+   * position in the batches of one node
+   */
+  private class ScanCursor(node: SSDBRoute, start: String, limit: Int, pairs: Boolean, fetch: (SSDB, String) => Response) {
+    private var keyStart = start
+    private var resp: Response = _
+    private var i = 0
+    private var last = false
+
+    private def batchSize: Int = if (pairs) resp.pairCount() else resp.size()
+
+    /**
+     * @return false if the node has no more keys
+     */
+    def valid: Boolean = {
+      if (resp == null || (i >= batchSize && !last)) {
+        resp = node.routeRead(keyStart).withClient(fetch(_, keyStart))
+        i = 0
+        last = batchSize < limit
+      }
+      i < batchSize
+    }
+
+    def keyBytes: Array[Byte] = if (pairs) resp.key(i) else resp.get(i)
+
+    def key: String = if (pairs) resp.keyString(i) else resp.getString(i)
+
+    def value: String = resp.valueString(i)
+
+    def next(): Unit = {
+      keyStart = key
+      i += 1
+    }
+  }
+
+  private object ScanCursor {
+    // keys are ordered as unsigned bytes on the server
+    val order: Ordering[ScanCursor] = new Ordering[ScanCursor] {
+      override def compare(x: ScanCursor, y: ScanCursor): Int = {
+        val a = x.keyBytes
+        val b = y.keyBytes
+        var i = 0
+        while (i < a.length && i < b.length) {
+          val d = (a(i) & 0xff) - (b(i) & 0xff)
+          if (d != 0) return d
+          i += 1
+        }
+        a.length - b.length
+      }
+    }
+  }
+
+  /**
+   * a range (start, end] of keys, "" as end for +inf
+   *
+   * @param target server of the range, by its start key
+   */
+  private class ScanRange(val target: String => SSDBPool, val start: String, val end: String)
+
+  /**
+   * bisect (start, end] into up to pieces ranges
+   */
+  private def splitRange(start: String, end: String, pieces: Int): Seq[(String, String)] =
+    if (pieces <= 1) {
+      Seq((start, end))
+    } else {
+      midKey(start, end) match {
+        case Some(m) => splitRange(start, m, pieces / 2) ++ splitRange(m, end, pieces - pieces / 2)
+        case None => Seq((start, end))
+      }
+    }
+
+  /**
+   * A key between a and b, the average of both as base 128 numbers, so the halves are balanced for ascii keys.
+   * Other keys are still split correctly, just less evenly.
+   *
+   * @param a exclusive lower bound
+   * @param b exclusive upper bound, "" for +inf
+   * @return None if no key was found strictly between a and b
+   */
+  private def midKey(a: String, b: String): Option[String] = {
+    val upper = if (b.isEmpty) "\u007f" else b
+    val n = math.max(a.length, upper.length) + 1
+    def digit(s: String, i: Int): Int = if (i < s.length) math.min(s.charAt(i).toInt, 127) else 0
+    val sum = new Array[Int](n)
+    var carry = 0
+    var i = n - 1
+    while (i >= 0) {
+      val d = digit(a, i) + digit(upper, i) + carry
+      sum(i) = d & 127
+      carry = d >> 7
+      i -= 1
+    }
+    val sb = new StringBuilder(n)
+    var rem = carry
+    i = 0
+    while (i < n) {
+      val v = (rem << 7) + sum(i)
+      sb.append((v >> 1).toChar)
+      rem = v & 1
+      i += 1
+    }
+    var len = sb.length
+    while (len > 0 && sb.charAt(len - 1) == 0) len -= 1
+    val m = sb.substring(0, len)
+    if (a.compareTo(m) < 0 && (b.isEmpty || m.compareTo(b) < 0)) Some(m) else None
+  }
+
+  /**
+   * Workers take ranges from a shared queue and put the batches they fetch into a bounded queue drained by
+   * the calling thread. A worker which fetched a full batch while another is idle gives away the upper half
+   * of the rest of its range.
+   *
+   * @param pairs fetch returns key-value pairs, or only keys which are handed over with "" as value
+   */
+  private class ParallelScan(parallelism: Int, batchSize: Int, queueSize: Int, fetch: (SSDB, String, String, Int) => Response, pairs: Boolean = true) {
+    require(parallelism > 0 && batchSize > 0 && queueSize > 0, s"parallelism: $parallelism, batchSize: $batchSize, queueSize: $queueSize")
+
+    // ranges left, and the workers waiting for one, guarded by work
+    private val work = new java.util.ArrayDeque[ScanRange]()
+    private var idle = 0
+    private var done = false
+    @volatile private var stopped = false
+    @volatile private var failed = false
+    private val out = new ArrayBlockingQueue[Array[(String, String)]](queueSize)
+    // put by each worker when it exits
+    private val End = new Array[(String, String)](0)
+
+    def run(ranges: Seq[ScanRange])(handle: (String, String) => Boolean): Boolean = {
+      ranges.foreach(work.add)
+      import ExecutionContext.Implicits.global
+      (0 until parallelism).foreach(_ => Future(blocking(worker())))
+      var exited = 0
+      try {
+        while (exited < parallelism) {
+          val batch = out.take()
+          if (batch eq End) {
+            exited += 1
+          } else {
+            var i = 0
+            while (!stopped && i < batch.length) {
+              if (!handle(batch(i)._1, batch(i)._2)) stop()
+              i += 1
+            }
+          }
+        }
+      } catch {
+        case t: Throwable =>
+          failed = true
+          stop()
+          // let the workers exit
+          while (exited < parallelism) {
+            if (out.take() eq End) exited += 1
+          }
+          throw t
+      }
+      !failed
+    }
+
+    private def stop(): Unit = work.synchronized {
+      stopped = true
+      work.notifyAll()
+    }
+
+    private def take(): Option[ScanRange] = work.synchronized {
+      idle += 1
+      while (work.isEmpty && !done && !stopped) {
+        if (idle == parallelism) {
+          done = true
+          work.notifyAll()
+        } else {
+          work.wait()
+        }
+      }
+      idle -= 1
+      if (stopped || work.isEmpty) None else Some(work.poll())
+    }
+
+    // continue with the lower half of the rest of r if another worker is idle
+    private def share(r: ScanRange): ScanRange = work.synchronized {
+      if (idle > 0) {
+        midKey(r.start, r.end) match {
+          case Some(m) =>
+            work.add(new ScanRange(r.target, m, r.end))
+            work.notify()
+            new ScanRange(r.target, r.start, m)
+          case None =>
+            r
+        }
+      } else {
+        r
+      }
+    }
+
+    private def worker(): Unit =
+      try {
+        var next = take()
+        while (next.isDefined) {
+          var r = next.get
+          var more = true
+          while (more && !stopped) {
+            val resp = r.target(r.start).withClient(fetch(_, r.start, r.end, batchSize))
+            val n = if (pairs) resp.pairCount() else resp.size()
+            if (n > 0) {
+              if (pairs) {
+                out.put(Array.tabulate(n)(i => (resp.keyString(i), resp.valueString(i))))
+                r = new ScanRange(r.target, resp.keyString(n - 1), r.end)
+              } else {
+                out.put(Array.tabulate(n)(i => (resp.getString(i), "")))
+                r = new ScanRange(r.target, resp.getString(n - 1), r.end)
+              }
+            }
+            more = n >= batchSize
+            if (more) r = share(r)
+          }
+          next = take()
+        }
+      } catch {
+        case t: Throwable =>
+          logger.warn(s"parallel scan failed: ${t.getMessage}")
+          failed = true
+          stop()
+      } finally {
+        out.put(End)
+      }
+  }
+
+  /**
+   * iter k-v pairs, key from (may not include) key, score in (scoreStart,scoreEnd]
+   *
+   * @param name       name
+   * @param key        key
+   * @param scoreStart min score
+   * @param scoreEnd   max score
+   * @param size       size
+   * @param step       step size
+   * @param pool       pool
+   * @param body       handle
+   */
+  def zscan(
+    name: String,
+    key: String = "",
+    scoreStart: Option[Long],
+    scoreEnd: Option[Long],
+    size: Int = 0,
+    step: Int = 10,
+    pool: SSDBRoute)(body: (String, Long) => Boolean): Boolean = {
+    pool.routeRead(name).execWithClient { r =>
+      var cKey = key
+      var cScore: Option[Long] = scoreStart
+      var count = 0
+      var eof = false
+      val rstep = if (step < 1) 100 else step
+      while (!eof && (size == 0 || count < size)) {
+        //println(s"key start:$cKey, score start : $cScore")
+        val resp = r.zscan(
+          name,
+          cKey,
+          cScore.map(long2Long).orNull,
+          scoreEnd.map(long2Long).orNull,
+          rstep)
+        val rsize = resp.pairCount()
+        if (rsize > 0) {
+          var i = 0
+          while (!eof && i < rsize && (size == 0 || count < size)) {
+            cKey = resp.keyString(i)
+            (try Some(resp.valueLong(i)) catch { case _: NumberFormatException => None }) match {
+              case Some(tScore) =>
+                cScore = Some(tScore)
+                val status = body(cKey, tScore)
+                if (!status) {
+                  eof = true
+                }
+              case None =>
+                // parse failed
+                logger.error(s"[SSDB] parse failed: ${resp.valueString(i)}")
+                eof = true
+            }
+            count += 1
+            i += 1
+          }
+        } else {
+          eof = true
+        }
+      }
+    }._1
+  }
+
+  /**
+   * because of it is reversed,
+   * start score is larger than end score
+   *
+   * @param name       name
+   * @param key        key
+   * @param scoreStart start score
+   * @param scoreEnd   end score
+   * @param size       size
+   * @param step       step size
+   * @param pool       pool
+   * @param body       handle
+   */
+  def zrscan(
+    name: String,
+    key: String = "",
+    scoreStart: Option[Long],
     scoreEnd: Option[Long],
     size: Int = 0,
     step: Int = 10,
-    pool: SSDBPool)(body: (String, Long) => Boolean): Boolean = {
-    pool.execWithClient { r =>
+    pool: SSDBRoute)(body: (String, Long) => Boolean): Boolean = {
+    pool.routeRead(name).execWithClient { r =>
       var cKey = key
       var cScore: Option[Long] = scoreStart
       var count = 0
@@ -707,20 +1164,18 @@ trait SSDBClient extends Awakable {
       val rstep = if (step < 1) 100 else step
       while (!eof && (size == 0 || count < size)) {
         //println(s"key start:$cKey, score start : $cScore")
-        val g = r.zrscan(
+        val resp = r.zrscan(
           name,
           cKey,
           cScore.map(long2Long).orNull,
           scoreEnd.map(long2Long).orNull,
-          rstep).items.entrySet()
-        val rsize = g.size()
+          rstep)
+        val rsize = resp.pairCount()
         if (rsize > 0) {
-          val it = g.iterator()
-          var kv: java.util.Map.Entry[Array[Byte], Array[Byte]] = null
-          while (!eof && it.hasNext && (size == 0 || count < size)) {
-            kv = it.next()
-            cKey = a2s(kv.getKey)
-            new String(kv.getValue).safeToLong match {
+          var i = 0
+          while (!eof && i < rsize && (size == 0 || count < size)) {
+            cKey = resp.keyString(i)
+            (try Some(resp.valueLong(i)) catch { case _: NumberFormatException => None }) match {
               case Some(tScore) =>
                 cScore = Some(tScore)
                 val status = body(cKey, tScore)
@@ -729,10 +1184,11 @@ trait SSDBClient extends Awakable {
                 }
               case None =>
                 // parse failed
-                logger.error(s"[SSDB] parse failed: ${a2s(kv.getValue)}")
+                logger.error(s"[SSDB] parse failed: ${resp.valueString(i)}")
                 eof = true
             }
             count += 1
+            i += 1
           }
         } else {
           eof = true
@@ -747,7 +1203,7 @@ trait SSDBClient extends Awakable {
    */
   protected def a2s(a: Object): String = a match {
     case v: Array[Byte] =>
-      new String(v)
+      new String(v, StandardCharsets.UTF_8)
     case _ => ""
   }
 
@@ -772,7 +1228,7 @@ trait SSDBClient extends Awakable {
   //               scoreMin: Long = Long.MinValue,
   //               scoreMax: Long = Long.MaxValue,
   //               size: Int = 0,
-  //               batchSize: Int = 10, data: Option[T] = None, pool: SSDBPool): Boolean = {
+  //               batchSize: Int = 10, data: Option[T] = None, pool: SSDBRoute): Boolean = {
   //    val sz = {
   //      val rsz = zsize(name, pool)
   //      if (size == 0) rsz
@@ -822,7 +1278,7 @@ trait SSDBClient extends Awakable {
   //    name: String,
   //    offset: Int = 0,
   //    size: Int = 0,
-  //    batchSize: Int = 10, data: Option[T] = None, pool: SSDBPool): Boolean = {
+  //    batchSize: Int = 10, data: Option[T] = None, pool: SSDBRoute): Boolean = {
   //    pool.execWithClient { r =>
   //      var count = 0
   //      var eof = false
@@ -867,7 +1323,7 @@ trait SSDBClient extends Awakable {
   //                scoreMin: Long = Long.MinValue,
   //                scoreMax: Long = Long.MaxValue,
   //                size: Int = 0,
-  //                batchSize: Int = 10, data: Option[T] = None, pool: SSDBPool): Boolean = {
+  //                batchSize: Int = 10, data: Option[T] = None, pool: SSDBRoute): Boolean = {
   //    val sz = {
   //      val rsz = zsize(name, pool)
   //      if (size == 0) rsz
@@ -903,122 +1359,754 @@ trait SSDBClient extends Awakable {
   /**
    * @see del
    */
-  def rm(key: String, pool: SSDBPool): Boolean = del(key = key, pool = pool)
+  def rm(key: String, pool: SSDBRoute): Boolean = del(key = key, pool = pool)
 
-  def delZSetByPrefix(prefix: String, pool: SSDBPool) {
-    var count = 0
-    zlistIter(prefix = prefix, pool = pool) { k =>
-      zclear(k, pool)
-      count += 1
-      if (count % 10000 == 0) {
-        println("remove count :" + count)
+  /**
+   * Clear all zsets whose names have the prefix, see parDelZSetByPrefix
+   */
+  def delZSetByPrefix(prefix: String, pool: SSDBRoute): Boolean =
+    parDelZSetByPrefix(prefix, parallelism = 1, pool = pool)
+
+  /**
+   * Clear all zsets whose names have the prefix on several connections at once. <br/>
+   * Names are listed batchSize at a time and the zsets of a batch are cleared in one pipelined round trip, by
+   * parallelism workers on sub-ranges of the names as in parDelRange.
+   *
+   * @param batchSize   zsets cleared per round trip
+   * @param maxRate     most zsets cleared per second, 0 for no limit
+   * @return false if failed
+   */
+  def parDelZSetByPrefix(prefix: String,
+    parallelism: Int = 4,
+    batchSize: Int = 100,
+    maxRate: Double = 0,
+    pool: SSDBRoute): Boolean =
+    // the cache keys of all zsets with the prefix, see zsetCacheKey
+    invalidatedPrefix(pool, "z\u0000" + prefix) {
+      delRanges(s"zsets $prefix", prefix, prefixPreProcess(prefix), endInclusive = false, parallelism, batchSize, maxRate, pool)(_.zlist(_, _, _)) { (r, names) =>
+        val p = r.pipeline()
+        names.foreach(p.zclear)
+        p.sync()
       }
-      true
     }
-    println(s"all removed with prefix : $prefix")
-  }
 
   def zlistIter(
     prefix: String = "",
     size: Int = 0,
     batchSize: Int = 10,
-    pool: SSDBPool)(handle: String => Boolean): Boolean = {
-    pool.execWithClient { r =>
-      var keyStart = prefix
-      val keyEnd = prefixPreProcess(prefix)
-      var count = 0
-      var eof = false
-      val rBatchSize = if (batchSize <= 0) 100 else batchSize
-      var persist: Boolean = true
-      while (!eof && (size == 0 || count < size)) {
-        //        println(s"zlist: $keyStart $keyEnd ")
-        val g = r.zlist(keyStart, keyEnd, rBatchSize).keys
-        val rsize = g.size()
-        if (rsize > 0) {
-          val it = g.iterator()
-          var key: String = null
-          while (persist && it.hasNext && (size == 0 || count < size)) {
-            key = a2s(it.next())
-            persist = handle(key)
-            count += 1
-          }
-          keyStart = key
-        } else {
-          eof = true
-        }
-      }
-    }
-  }._1
+    pool: SSDBRoute)(handle: String => Boolean): Boolean =
+    listIter(prefix, size, batchSize, reverse = false, pool)((r, keyStart, keyEnd, limit) => r.zlist(keyStart, keyEnd, limit))(handle)
 
   /**
    * Delete all keys in a zset.
    */
-  def zclear(name: String, pool: SSDBPool): Boolean =
-    pool.execWithClient(_.zclear(name))._1
+  def zclear(name: String, pool: SSDBRoute): Boolean =
+    invalidatedPrefix(pool, zsetCacheKey(name, ""))(pool.route(name).execWithClient(_.zclear(name))._1)
 
   /**
    * remove all keys, slow but leave process to others
+   * each batch of 1000 keys is removed with one multi_zdel
    * @param name name
    * @param pool pool
    * @return
    */
-  def zclearSlow(name: String, pool: SSDBPool): Boolean = {
-    zscan(name, "", None, None, step = 100, pool = pool) { (k, _) =>
-      zdel(name, k, pool)
-      true
-    }
-    zclear(name, pool)
+  def zclearSlow(name: String, pool: SSDBRoute): Boolean =
+    zclearSlow(name, 1000, 0, pool)
+
+  /**
+   * remove all keys a batch at a time, each batch with one multi_zdel
+   *
+   * @param batchSize keys per multi_zdel
+   * @param maxRate   most keys removed per second, 0 for no limit
+   */
+  def zclearSlow(name: String, batchSize: Int, maxRate: Double, pool: SSDBRoute): Boolean = {
+    val limiter = if (maxRate > 0) Some(RateLimiter.create(maxRate)) else None
+    invalidatedPrefix(pool, zsetCacheKey(name, ""))(pool.route(name).execWithClient { r =>
+      var eof = false
+      while (!eof) {
+        // removed keys are gone, so every batch starts from the head
+        val resp = r.zscan(name, "", null, null, batchSize)
+        val n = resp.pairCount()
+        if (n == 0) {
+          eof = true
+        } else {
+          limiter.foreach(_.acquire(n))
+          r.multi_zdel(name, (0 until n).map(resp.keyString): _*)
+        }
+      }
+    }._1)
   }
 
   def zrlistIter(
     prefix: String = "",
     size: Int = 0,
     batchSize: Int = 10,
-    pool: SSDBPool)(handle: String => Boolean): Boolean = {
-    pool.execWithClient { r =>
-      var keyStart = prefix
-      val keyEnd = prefixPreProcess(prefix)
-      var count = 0
-      var eof = false
-      val rBatchSize = if (batchSize <= 0) 100 else batchSize
-      var persist: Boolean = true
-      while (!eof && (size == 0 || count < size)) {
-        //        println(s"zlist: $keyStart $keyEnd ")
-        val g = r.zrlist(keyStart, keyEnd, rBatchSize).keys
-        val rsize = g.size()
-        if (rsize > 0) {
-          val it = g.iterator()
-          var key: String = null
-          while (persist && it.hasNext && (size == 0 || count < size)) {
-            key = a2s(it.next())
-            persist = handle(key)
-            count += 1
+    pool: SSDBRoute)(handle: String => Boolean): Boolean =
+    listIter(prefix, size, batchSize, reverse = true, pool)((r, keyStart, keyEnd, limit) => r.zrlist(keyStart, keyEnd, limit))(handle)
+
+  /**
+   * walk the names with the prefix in order, over all nodes of the route
+   */
+  private def listIter(prefix: String, size: Int, batchSize: Int, reverse: Boolean, pool: SSDBRoute)(fetch: (SSDB, String, String, Int) => Response)(handle: String => Boolean): Boolean = {
+    val keyEnd = prefixPreProcess(prefix)
+    val rBatchSize = if (batchSize <= 0) 100 else batchSize
+    var count = 0
+    SafeExecWithMessage {
+      mergeScan(pool, prefix, rBatchSize, reverse, pairs = false)((r, keyStart) => fetch(r, keyStart, keyEnd, rBatchSize)) { c =>
+        count += 1
+        handle(c.key) && (size == 0 || count < size)
+      }
+    }._1
+  }
+
+  /**
+   * Key-value pairs with the prefix in key order, over all nodes of the route.
+   * Like the other iterators below, the next batch of each node is requested while the current one is
+   * consumed, at most one batch ahead, so network and processing time overlap and a slow consumer holds
+   * the requests back. A failed request is thrown by hasNext / next.
+   * {{{
+   * SSDBClient.scanIterator("user:", pool = pool).filter(_._2.nonEmpty).take(100).foreach(println)
+   * }}}
+   *
+   * @param batchSize pairs per request
+   */
+  def scanIterator(prefix: String = "", batchSize: Int = 100, pool: SSDBRoute): Iterator[(String, String)] = {
+    val keyEnd = prefixPreProcess(prefix)
+    val rBatchSize = if (batchSize <= 0) 100 else batchSize
+    mergeIterators(pool.nodes.map { node =>
+      new PrefetchIterator[String, (String, String)](prefix)({ keyStart =>
+        val resp = node.routeRead(keyStart).withClient(_.scan(keyStart, keyEnd, rBatchSize))
+        val n = resp.pairCount()
+        ((0 until n).map(i => (resp.keyString(i), resp.valueString(i))), if (n < rBatchSize) None else Some(resp.keyString(n - 1)))
+      })
+    }, reverse = false)(_._1)
+  }
+
+  /**
+   * Key-value pairs of a hashmap after start in key order, prefetched like scanIterator
+   */
+  def hscanIterator(name: String, start: String = "", batchSize: Int = 1000, pool: SSDBRoute): Iterator[(String, String)] = {
+    val rBatchSize = if (batchSize <= 0) 1000 else batchSize
+    new PrefetchIterator[String, (String, String)](start)({ keyStart =>
+      val resp = pool.routeRead(name).withClient(_.hscan(name, keyStart, "", rBatchSize))
+      val n = resp.pairCount()
+      ((0 until n).map(i => (resp.keyString(i), resp.valueString(i))), if (n < rBatchSize) None else Some(resp.keyString(n - 1)))
+    })
+  }
+
+  /**
+   * Keys and scores of a zset after key, score in (scoreStart, scoreEnd], prefetched like scanIterator
+   */
+  def zscanIterator(name: String, key: String = "", scoreStart: Option[Long] = None, scoreEnd: Option[Long] = None, batchSize: Int = 1000, pool: SSDBRoute): Iterator[(String, Long)] = {
+    val rBatchSize = if (batchSize <= 0) 1000 else batchSize
+    new PrefetchIterator[(String, Option[Long]), (String, Long)]((key, scoreStart))({
+      case (cKey, cScore) =>
+        val resp = pool.routeRead(name).withClient(_.zscan(name, cKey, cScore.map(long2Long).orNull, scoreEnd.map(long2Long).orNull, rBatchSize))
+        val n = resp.pairCount()
+        val batch = (0 until n).map(i => (resp.keyString(i), resp.valueLong(i)))
+        (batch, if (n < rBatchSize) None else Some((batch.last._1, Some(batch.last._2))))
+    })
+  }
+
+  /**
+   * Names of the zsets with the prefix in order, over all nodes of the route, prefetched like scanIterator
+   */
+  def zlistIterator(prefix: String = "", batchSize: Int = 100, pool: SSDBRoute): Iterator[String] =
+    listIterator(prefix, batchSize, reverse = false, pool)((r, keyStart, keyEnd, limit) => r.zlist(keyStart, keyEnd, limit))
+
+  def zrlistIterator(prefix: String = "", batchSize: Int = 100, pool: SSDBRoute): Iterator[String] =
+    listIterator(prefix, batchSize, reverse = true, pool)((r, keyStart, keyEnd, limit) => r.zrlist(keyStart, keyEnd, limit))
+
+  private def listIterator(prefix: String, batchSize: Int, reverse: Boolean, pool: SSDBRoute)(fetch: (SSDB, String, String, Int) => Response): Iterator[String] = {
+    val keyEnd = prefixPreProcess(prefix)
+    val rBatchSize = if (batchSize <= 0) 100 else batchSize
+    mergeIterators(pool.nodes.map { node =>
+      new PrefetchIterator[String, String](prefix)({ keyStart =>
+        val resp = node.routeRead(keyStart).withClient(fetch(_, keyStart, keyEnd, rBatchSize))
+        val n = resp.size()
+        ((0 until n).map(resp.getString), if (n < rBatchSize) None else Some(resp.getString(n - 1)))
+      })
+    }, reverse)(identity)
+  }
+
+  /**
+   * Iterator over batches fetched one ahead: the first batch is requested at once, and each following batch
+   * when the consumer starts on the previous one, on another thread.
+   *
+   * @param first cursor of the first batch
+   * @param fetch request the batch at a cursor, returns it with the cursor of the next batch, None after the last
+   */
+  private class PrefetchIterator[C, A](first: C)(fetch: C => (IndexedSeq[A], Option[C])) extends Iterator[A] {
+    import ExecutionContext.Implicits.global
+
+    private var batch: IndexedSeq[A] = IndexedSeq()
+    private var i = 0
+    private var ahead: Option[Future[(IndexedSeq[A], Option[C])]] = Some(Future(blocking(fetch(first))))
+
+    override def hasNext: Boolean = {
+      while (i >= batch.length && ahead.isDefined) {
+        val (b, cursor) = Await.result(ahead.get, duration.Duration.Inf)
+        batch = b
+        i = 0
+        ahead = cursor.map(c => Future(blocking(fetch(c))))
+      }
+      i < batch.length
+    }
+
+    override def next(): A = {
+      if (!hasNext) throw new NoSuchElementException("next on empty iterator")
+      i += 1
+      batch(i - 1)
+    }
+  }
+
+  /**
+   * k-way merge of ordered iterators, keys compared as the server does (unsigned bytes of utf-8)
+   */
+  private def mergeIterators[A](its: Seq[Iterator[A]], reverse: Boolean)(key: A => String): Iterator[A] =
+    if (its.size == 1) {
+      its.head
+    } else {
+      new Iterator[A] {
+        private val byKey = new Ordering[BufferedIterator[A]] {
+          override def compare(x: BufferedIterator[A], y: BufferedIterator[A]): Int = {
+            val a = key(x.head)
+            val b = key(y.head)
+            // code point order is the order of utf-8 bytes
+            var i = 0
+            var j = 0
+            while (i < a.length && j < b.length) {
+              val ca = a.codePointAt(i)
+              val cb = b.codePointAt(j)
+              if (ca != cb) return ca - cb
+              i += Character.charCount(ca)
+              j += Character.charCount(cb)
+            }
+            (a.length - i) - (b.length - j)
           }
-          keyStart = key
+        }
+        private val heap = mutable.PriorityQueue[BufferedIterator[A]]()(if (reverse) byKey else byKey.reverse)
+        its.foreach { it =>
+          val b = it.buffered
+          if (b.hasNext) heap.enqueue(b)
+        }
+
+        override def hasNext: Boolean = heap.nonEmpty
+
+        override def next(): A = {
+          val b = heap.dequeue()
+          val a = b.next()
+          if (b.hasNext) heap.enqueue(b)
+          a
+        }
+      }
+    }
+
+  /**
+   * Get the values of many keys, keys not found are absent from the result.
+   * With a sharded route the keys are grouped by server and the groups are requested in parallel.
+   */
+  def multi_get(keys: Seq[String], pool: SSDBRoute): Map[String, String] =
+    SafeExecWithTrace {
+      perNode(keys)(identity, pool.routeRead) { (node, ks) =>
+        node.withClient { r =>
+          val resp = r.multi_get(ks: _*)
+          (0 until resp.pairCount()).map(i => resp.keyString(i) -> resp.valueString(i))
+        }
+      }.flatten.toMap
+    }.getOrElse(Map[String, String]())
+
+  /**
+   * Set many key-value pairs, grouped by server like multi_get.
+   */
+  def multi_set(kvs: Seq[(String, String)], pool: SSDBRoute): Boolean =
+    invalidated(pool, kvs.map(kv => kvCacheKey(kv._1)): _*)(SafeExecWithMessage {
+      perNode(kvs)(_._1, pool.route) { (node, group) =>
+        node.withClient(_.multi_set(group.flatMap(kv => Seq(kv._1, kv._2)): _*))
+      }
+    }._1)
+
+  /**
+   * Delete many keys, grouped by server like multi_get.
+   */
+  def multi_del(keys: Seq[String], pool: SSDBRoute): Boolean =
+    invalidated(pool, keys.map(kvCacheKey): _*)(SafeExecWithMessage {
+      perNode(keys)(identity, pool.route) { (node, ks) =>
+        node.withClient(_.multi_del(ks: _*))
+      }
+    }._1)
+
+  /**
+   * Get the values of many keys of a hashmap with one request, keys not found are absent from the result.
+   */
+  def multi_hget(name: String, keys: Seq[String], pool: SSDBRoute): Map[String, String] =
+    pool.routeRead(name).safeWithClient { r =>
+      val resp = r.multi_hget(name, keys: _*)
+      (0 until resp.pairCount()).map(i => resp.keyString(i) -> resp.valueString(i)).toMap
+    }.getOrElse(Map[String, String]())
+
+  def multi_hset(name: String, kvs: Seq[(String, String)], pool: SSDBRoute): Boolean =
+    invalidated(pool, kvs.map(kv => hashCacheKey(name, kv._1)): _*) {
+      pool.route(name).execWithClient(_.multi_hset(name, kvs.flatMap(kv => Seq(kv._1, kv._2)): _*))._1
+    }
+
+  def multi_hdel(name: String, keys: Seq[String], pool: SSDBRoute): Boolean =
+    invalidated(pool, keys.map(hashCacheKey(name, _)): _*) {
+      pool.route(name).execWithClient(_.multi_hdel(name, keys: _*))._1
+    }
+
+  /**
+   * All key-value pairs of a hashmap with one request, use hiter or hscanIterator for large hashmaps.
+   */
+  def hgetall(name: String, pool: SSDBRoute): Map[String, String] =
+    pool.routeRead(name).safeWithClient { r =>
+      val resp = r.hgetall(name)
+      (0 until resp.pairCount()).map(i => resp.keyString(i) -> resp.valueString(i)).toMap
+    }.getOrElse(Map[String, String]())
+
+  /**
+   * Get the scores of many keys of a zset with one request, as parallel arrays, keys not found are absent.
+   */
+  def multi_zget(name: String, keys: Seq[String], pool: SSDBRoute): Scores =
+    pool.routeRead(name).safeWithClient(_.multi_zget(name, keys: _*)).getOrElse(emptyScores)
+
+  def multi_zset(name: String, kvs: Seq[(String, Long)], pool: SSDBRoute): Boolean =
+    invalidated(pool, kvs.map(kv => zsetCacheKey(name, kv._1)): _*) {
+      pool.route(name).execWithClient(_.multi_zset(name, kvs.map(_._1).toArray, kvs.map(_._2).toArray))._1
+    }
+
+  def multi_zdel(name: String, keys: Seq[String], pool: SSDBRoute): Boolean =
+    invalidated(pool, keys.map(zsetCacheKey(name, _)): _*) {
+      pool.route(name).execWithClient(_.multi_zdel(name, keys: _*))._1
+    }
+
+  /**
+   * group the items by the server of their key, and run body on each group,
+   * in parallel if there are more than one
+   */
+  private def perNode[A, R](items: Seq[A])(key: A => String, target: String => SSDBPool)(body: (SSDBPool, Seq[A]) => R): Seq[R] = {
+    val groups = items.groupBy(a => target(key(a))).toSeq
+    if (groups.size <= 1) {
+      groups.map { case (node, group) => body(node, group) }
+    } else {
+      import ExecutionContext.Implicits.global
+      val fs = groups.map { case (node, group) => Future(blocking(body(node, group))) }
+      Await.result(Future.sequence(fs), duration.Duration.Inf)
+    }
+  }
+
+  // near cache keys of the kv, hashmap and zset types, \u0000 does not appear in names
+  private def kvCacheKey(key: String): String = "k\u0000" + key
+
+  private def hashCacheKey(name: String, key: String): String = "h\u0000" + name + "\u0000" + key
+
+  private def zsetCacheKey(name: String, key: String): String = "z\u0000" + name + "\u0000" + key
+
+  /**
+   * @param t response of ttl
+   * @return ms a value of the key may be cached, see nearCached
+   */
+  private def cacheTtl(t: Response): Long = {
+    val ttl = if (t.ok()) t.getLong(0) else 0L
+    // -1: no ttl, cached for the max ttl of the cache
+    if (ttl == -1L) 0L else if (ttl > 0) ttl * 1000 else -1L
+  }
+
+  /**
+   * read through the near cache of the route, if any
+   *
+   * @param load value and its ttl in ms: 0 for the max ttl of the cache, negative not to cache it
+   */
+  private def nearCached[T <: AnyRef](pool: SSDBRoute, cacheKey: String)(load: => Option[(T, Long)]): Option[T] =
+    pool.nearCache match {
+      case Some(cache) =>
+        val cached = cache.get(cacheKey)
+        if (cached != null) {
+          Some(cached.asInstanceOf[T])
         } else {
-          eof = true
+          // taken before loading, so a value overwritten meanwhile is not cached
+          val version = cache.version(cacheKey)
+          load.map {
+            case (v, ttl) =>
+              if (ttl >= 0) cache.put(cacheKey, v, ttl, version)
+              v
+          }
+        }
+      case None =>
+        load.map(_._1)
+    }
+
+  /**
+   * run a write, then drop the cached values it may have changed
+   */
+  private def invalidated[R](pool: SSDBRoute, cacheKeys: String*)(write: => R): R =
+    pool.nearCache match {
+      case Some(cache) =>
+        try write finally cacheKeys.foreach(cache.invalidate)
+      case None =>
+        write
+    }
+
+  private def invalidatedPrefix[R](pool: SSDBRoute, prefix: String)(write: => R): R =
+    pool.nearCache match {
+      case Some(cache) =>
+        try write finally cache.invalidatePrefix(prefix)
+      case None =>
+        write
+    }
+
+  /**
+   * Where operations are sent: a single server (SSDBPool), a master with replicas (ReplicatedSSDBPool)
+   * or many of them (ShardedSSDBPool).
+   * A write on a key, or on the name of a hashmap / zset / queue, goes to route(key) and a read to routeRead(key),
+   * operations over the whole key space (scan, zlistIter, ...) visit all nodes.
+   */
+  trait SSDBRoute {
+    /**
+     * @param key key, or name of a hashmap / zset / queue
+     * @return pool of the server which owns the key, for writes
+     */
+    def route(key: String): SSDBPool
+
+    /**
+     * @param key key, or name of a hashmap / zset / queue
+     * @return pool of a server which may serve reads of the key
+     */
+    def routeRead(key: String): SSDBPool = route(key)
+
+    /**
+     * @return one route per shard of the key space
+     */
+    def nodes: Seq[SSDBRoute]
+
+    /**
+     * @return cache of get / hget / zget in this process, see CachedSSDBPool
+     */
+    def nearCache: Option[NearCache] = None
+
+    /**
+     * @return batcher of concurrent get / hget, see CoalescingSSDBPool
+     */
+    def coalescing: Option[CoalescingSSDBPool] = None
+
+    def close(): Unit
+  }
+
+  /**
+   * Keep the values read by get, hget and zget in an in-process NearCache, so hot keys cost no
+   * round trip. Wrap the outermost route, e.g. CachedSSDBPool(ShardedSSDBPool(...)). <br/>
+   * A cached kv value expires with the ttl of its key (set by setx / expire), and every value after
+   * maxTtl at most. Writes through SSDBClient with this route (set, setx, expire, incr, del, hset, hdel, hclear,
+   * zset, zincr, zdel, zclear, multi_set, multi_del, delPrefix) drop the entries they change.
+   * Writes by other processes, by pipeline or by the java SSDB client are seen once the entry expires. <br/>
+   * Size it with cache.hits, cache.misses and cache.evictions.
+   *
+   * @param underlying route the reads go to on a miss
+   * @param maxSize    max number of cached values
+   * @param maxTtl     max time in ms a value is cached
+   */
+  case class CachedSSDBPool(underlying: SSDBRoute, maxSize: Int = 10000, maxTtl: Long = 60000) extends SSDBRoute {
+    val cache = new NearCache(maxSize, maxTtl)
+
+    override def route(key: String): SSDBPool = underlying.route(key)
+
+    override def routeRead(key: String): SSDBPool = underlying.routeRead(key)
+
+    override def nodes: Seq[SSDBRoute] = underlying.nodes
+
+    override val nearCache: Option[NearCache] = Some(cache)
+
+    override def coalescing: Option[CoalescingSSDBPool] = underlying.coalescing
+
+    override def close(): Unit = {
+      cache.clear()
+      underlying.close()
+    }
+
+    override def toString: String = s"[SSDB cached] $cache, $underlying"
+  }
+
+  /**
+   * Gather concurrent get and hget calls into one multi_get / multi_hget per server (and per hashmap for hget),
+   * so many reader threads share round trips and connections instead of borrowing one each. <br/>
+   * The first caller of a batch waits up to window us, or until maxBatch keys have joined, then sends the batch
+   * and hands every caller its own value. A lone call is delayed by the window, so this pays off for routes read
+   * by many threads at once. Combined with a near cache, wrap it: CachedSSDBPool(CoalescingSSDBPool(...)).
+   *
+   * @param underlying route the batches go to
+   * @param window     us the first caller of a batch waits for others to join
+   * @param maxBatch   number of keys which makes a batch be sent at once
+   */
+  case class CoalescingSSDBPool(underlying: SSDBRoute, window: Long = 200, maxBatch: Int = 128) extends SSDBRoute {
+    require(window >= 0 && maxBatch > 0, s"window: $window, maxBatch: $maxBatch")
+
+    // batches still open to new keys, by server and kind: g(et), t(get with ttl) or h(get) + name
+    private val open = mutable.HashMap[CoalescedBatchId, CoalescedBatch]()
+
+    def get(key: String): Option[String] = join(routeRead(key), "g", key).map(_._1)
+
+    /**
+     * @return value and the ms it may be cached, see nearCached
+     */
+    def getWithTtl(key: String): Option[(String, Long)] = join(routeRead(key), "t", key)
+
+    def hget(name: String, key: String): Option[String] = join(routeRead(name), "h" + name, key).map(_._1)
+
+    private def join(node: SSDBPool, kind: String, key: String): Option[(String, Long)] = {
+      val id = new CoalescedBatchId(node, kind)
+      var leader = false
+      val batch = open.synchronized {
+        val b = open.getOrElseUpdate(id, {
+          leader = true
+          new CoalescedBatch(node, kind)
+        })
+        b.keys += key
+        if (b.keys.size >= maxBatch) {
+          open.remove(id)
+          b.closed = true
+          if (!leader) LockSupport.unpark(b.leader)
+        }
+        b
+      }
+      if (leader) {
+        val deadline = System.nanoTime() + window * 1000
+        var left = deadline - System.nanoTime()
+        while (left > 0 && !batch.closed) {
+          LockSupport.parkNanos(this, left)
+          left = deadline - System.nanoTime()
+        }
+        open.synchronized {
+          if (!batch.closed) {
+            open.remove(id)
+            batch.closed = true
+          }
         }
+        batch.send()
       }
+      Await.result(batch.result.future, duration.Duration.Inf).get(key)
     }
-  }._1
+
+    override def route(key: String): SSDBPool = underlying.route(key)
+
+    override def routeRead(key: String): SSDBPool = underlying.routeRead(key)
+
+    override def nodes: Seq[SSDBRoute] = underlying.nodes
+
+    override def nearCache: Option[NearCache] = underlying.nearCache
+
+    override val coalescing: Option[CoalescingSSDBPool] = Some(this)
+
+    override def close(): Unit = underlying.close()
+
+    override def toString: String = s"[SSDB coalescing] window: ${window}us, maxBatch: $maxBatch, $underlying"
+  }
 
   /**
-   * Create a new <tt>GenericObjectPool</tt> using the specified values.
+   * keys of concurrent reads of one kind on one server, sent by the thread which opened the batch
+   */
+  // a server by identity, two pools with equal parameters are still two pools,
+  // and the case class hash of SSDBPool is too slow for the shared lock
+  private final class CoalescedBatchId(val node: SSDBPool, val kind: String) {
+    override def hashCode(): Int = System.identityHashCode(node) * 31 + kind.hashCode
+
+    override def equals(o: Any): Boolean = o match {
+      case id: CoalescedBatchId => (id.node eq node) && id.kind == kind
+      case _ => false
+    }
+  }
+
+  private class CoalescedBatch(node: SSDBPool, kind: String) {
+    val leader: Thread = Thread.currentThread()
+    // guarded by the open batches of CoalescingSSDBPool until sent
+    val keys = new ArrayBuffer[String]()
+    // removed from the open batches, set under their lock
+    @volatile var closed = false
+    // value and cache ttl by key, empty if the request failed
+    val result = Promise[Map[String, (String, Long)]]()
+
+    def send(): Unit =
+      result.success(SafeExecWithTrace(node.withClient { r =>
+        val ks = keys.distinct
+        kind.charAt(0) match {
+          case 'g' =>
+            pairs(r.multi_get(ks: _*))
+          case 't' =>
+            // ttl of each key in the same round trip
+            val p = r.pipeline().request("multi_get", ks: _*)
+            ks.foreach(p.ttl)
+            val resps = p.exec()
+            val ttls = ks.indices.map(i => ks(i) -> cacheTtl(resps.get(i + 1))).toMap
+            pairs(resps.get(0)).map { case (k, (v, _)) => (k, (v, ttls.getOrElse(k, -1L))) }
+          case _ =>
+            pairs(r.multi_hget(kind.substring(1), ks: _*))
+        }
+      }).getOrElse(Map()))
+
+    private def pairs(resp: Response): Map[String, (String, Long)] = {
+      if (!resp.ok() && !resp.not_found()) resp.exception()
+      (0 until resp.pairCount()).map(i => (resp.keyString(i), (resp.valueString(i), 0L))).toMap
+    }
+  }
+
+  /**
+   * A master and its replicas. Writes go to the master, reads go to the replica with the lowest
+   * moving average latency (see SSDBPool.latency). <br/>
+   * Every probeInterval-th read goes to the replicas in turn instead, so a replica which was slow
+   * or unreachable once is measured again after it recovers. Replicas whose circuit breaker is open
+   * (see SSDBPool.breaker) get no other reads, the master serves them if all are open.
+   *
+   * @param master         pool of the master
+   * @param replicas       pools of the replicas, reads go to the master if empty
+   * @param readYourWrites ms after a write during which reads of the same thread go to the master,
+   *                       so a thread sees its own writes before they are replicated. 0 to disable
+   * @param probeInterval  reads between two probes of the replicas in turn, 0 to disable
+   */
+  case class ReplicatedSSDBPool(master: SSDBPool, replicas: Seq[SSDBPool], readYourWrites: Long = 0, probeInterval: Int = 64) extends SSDBRoute {
+    private val lastWrite = new ThreadLocal[Array[Long]] {
+      override def initialValue(): Array[Long] = Array(0L)
+    }
+    private val reads = new AtomicLong()
+
+    override def route(key: String): SSDBPool = {
+      if (readYourWrites > 0) lastWrite.get()(0) = System.currentTimeMillis()
+      master
+    }
+
+    override def routeRead(key: String): SSDBPool = {
+      if (replicas.isEmpty || (readYourWrites > 0 && System.currentTimeMillis() - lastWrite.get()(0) < readYourWrites)) {
+        master
+      } else {
+        val n = reads.incrementAndGet()
+        if (probeInterval > 0 && n % probeInterval == 0) {
+          replicas(((n / probeInterval) % replicas.size).toInt)
+        } else {
+          // replicas given up by their breaker are probed in turn above only
+          val up = replicas.filterNot(_.breaker.isOpen)
+          if (up.isEmpty) master else up.minBy(_.latency)
+        }
+      }
+    }
+
+    override def nodes: Seq[SSDBRoute] = Seq(this)
+
+    override def close(): Unit = {
+      master.close()
+      replicas.foreach(_.close())
+    }
+
+    override def toString: String = s"[SSDB replicated] master: $master, replicas: ${replicas.mkString(", ")}"
+  }
+
+  /**
+   * Spread keys over many SSDB servers with a consistent hash ring, so adding or removing a server
+   * only moves the keys next to it on the ring. <br/>
+   * A key is routed by itself, and a hashmap / zset / queue by its name, so one hashmap stays on one server.
+   * scan, scanWith, zlistIter, ... merge the ordered results of all servers,
+   * multi_get, multi_set and multi_del send one request per server in parallel. <br/>
+   * A pipeline is bound to one server, use pipeline(sharded.route(key)).
+   *
+   * @param pools    one pool per server, or a ReplicatedSSDBPool per shard. A shard is placed on the ring by
+   *                 the address of its (master) server
+   * @param replicas virtual nodes of each server on the ring
+   */
+  case class ShardedSSDBPool(pools: Seq[SSDBRoute], replicas: Int = 160) extends SSDBRoute {
+    require(pools.nonEmpty, "no ssdb pool")
+
+    private val ring = {
+      val m = new java.util.TreeMap[Long, SSDBRoute]()
+      pools.foreach { p =>
+        val server = p.route("")
+        (0 until replicas).foreach(i => m.put(ringHash(s"${server.host}:${server.port}-$i"), p))
+      }
+      m
+    }
+
+    private def shard(key: String): SSDBRoute = {
+      val e = ring.ceilingEntry(ringHash(key))
+      if (e == null) ring.firstEntry().getValue else e.getValue
+    }
+
+    override def route(key: String): SSDBPool = shard(key).route(key)
+
+    override def routeRead(key: String): SSDBPool = shard(key).routeRead(key)
+
+    override def nodes: Seq[SSDBRoute] = pools
+
+    override def close(): Unit = pools.foreach(_.close())
+
+    override def toString: String = pools.mkString("[SSDB sharded] ", ", ", "")
+
+    // first 8 bytes of md5, stable across processes
+    private def ringHash(s: String): Long = {
+      val d = MessageDigest.getInstance("MD5").digest(s.getBytes(StandardCharsets.UTF_8))
+      var h = 0L
+      var i = 0
+      while (i < 8) {
+        h = (h << 8) | (d(i) & 0xff)
+        i += 1
+      }
+      h
+    }
+  }
+
+  /**
+   * Create a new pool of ssdb clients using the specified values, see com.argcv.valhalla.concurrent.ObjectPool.
    *
    * @param maxActive           the maximum number of objects that can be borrowed from me at one time (see org.apache.commons.pool.impl.GenericObjectPool#setMaxActive)
    * @param whenExhaustedAction the action to take when the pool is exhausted (see org.apache.commons.pool.impl.GenericObjectPool#getWhenExhaustedAction)
    * @param maxWait             the maximum amount of time to wait for an idle object when the pool is exhausted an and
    *                            <i>whenExhaustedAction</i> is org.apache.commons.pool.impl.GenericObjectPool#WHEN_EXHAUSTED_BLOCK (otherwise ignored)
    *                            (see org.apache.commons.pool.impl.GenericObjectPool#getMaxWait)
-   * @param host                host of ssdb server
-   * @param port                port of ssdb server
+   * @param host                host of ssdb server, or "unix:/path/to/ssdb.sock" for a server on this machine
+   *                            listening on a unix domain socket (needs Java 16 or later)
+   * @param port                port of ssdb server, ignored for a unix domain socket
    * @param timeout             timeout in ms of ssdb connect, 0 for default and will never timeout
+   * @param multiplex           number of sockets shared by all clients, 0 for one exclusive socket per client.
+   *                            when multiplexed, concurrent requests are pipelined on the shared sockets
+   *                            and the pooled clients are thin handles, see com.udpwork.ssdb.MuxLink
+   * @param minIdle             connections opened ahead and kept ready
+   * @param metrics             receiver of the latency and size of each request and of the borrow wait, e.g. a
+   *                            com.udpwork.ssdb.SSDBMetrics, which also gets the active and idle gauges of the pool
+   * @param healthCheckInterval ms between two pings of the idle connections in background, 0 for none. a connection
+   *                            which does not answer within min(timeout, 1000) ms is closed and a new one is opened,
+   *                            so a network blip is not paid for by a request waiting for the full timeout
+   * @param maxIdleTime         ms a connection may stay idle before it is closed, 0 to keep it
+   * @param breakerOpenTime     ms the server is given up once breakerFailureRate of the requests of the last 10 seconds
+   *                            failed on network errors, withClient then throws a CircuitOpenException at once instead
+   *                            of borrowing a client. a single request probes the server after that time. 0 to disable
+   * @param breakerFailureRate  rate of network errors (at least 20 requests) which opens the breaker
    */
-  case class SSDBPool(host: String, port: Int, timeout: Int = 10000, maxActive: Int = 1024, whenExhaustedAction: Byte = WHEN_EXHAUSTED_GROW, maxWait: Long = 10000) extends Awakable {
+  case class SSDBPool(host: String, port: Int, timeout: Int = 10000, maxActive: Int = 1024, whenExhaustedAction: Byte = WHEN_EXHAUSTED_GROW, maxWait: Long = 10000, multiplex: Int = 0, minIdle: Int = 0, metrics: MetricsSink = MetricsSink.NONE, healthCheckInterval: Long = 30000, maxIdleTime: Long = 0, breakerOpenTime: Long = 5000, breakerFailureRate: Double = 0.5) extends Awakable with SSDBRoute {
     // initial log on start
     logger.info(toString)
 
-    val pool = new GenericObjectPool(new SSDBConnectorFactory(host, port, timeout), maxActive, whenExhaustedAction, maxWait)
+    // shared sockets when multiplexed
+    private val mux: Option[MuxLink] =
+      if (multiplex > 0) {
+        val link = new MuxLink(host, port, timeout, multiplex)
+        link.setMetrics(metrics)
+        Some(link)
+      } else None
+
+    private val pingTimeout = if (timeout > 0) math.min(timeout, 1000) else 1000
+
+    val breaker = new CircuitBreaker(s"$host:$port", failureRate = breakerFailureRate, openTime = breakerOpenTime)
+
+    // shared by the clients, so that it outlives those destroyed after a failed relink
+    val reconnectBackoff = new ReconnectBackoff()
+
+    val pool = new ObjectPool(new SSDBConnectorFactory(host, port, timeout), maxActive, whenExhaustedAction, maxWait, minIdle,
+      healthCheckInterval, maxIdleTime)
+
+    metrics match {
+      case m: SSDBMetrics =>
+        m.gauges(new IntSupplier {
+          override def getAsInt: Int = pool.numActive
+        }, new IntSupplier {
+          override def getAsInt: Int = pool.numIdle
+        })
+      case _ =>
+    }
 
     /**
      * @param body handle on ssdb request
@@ -1041,42 +2129,74 @@ trait SSDBClient extends Awakable {
      * @return
      */
     def withClient[T](body: SSDB => T): T = {
-      var client: SSDB = null
+      if (!breaker.allow()) throw new CircuitOpenException(s"[SSDB] $host:$port is down, retry in ${breaker.retryIn}ms")
+      val start = System.nanoTime()
+      var netFailure = false
       try {
-        client = pool.borrowObject // a timeout exception may comes here
-        body(client)
+        val pooled = pool.borrow() // a timeout exception may comes here
+        if (metrics ne MetricsSink.NONE) metrics.borrow(System.nanoTime() - start)
+        // the client is a val of its own scope: with -optimise, a var set in the try is taken as null in the handler
+        val client = pooled.obj
+        try {
+          body(client)
+        } catch {
+          case e: NoSuchElementException =>
+            throw e
+          case e: Exception =>
+            client.labelAsInvalid()
+            throw e
+        } finally {
+          pool.release(pooled)
+        }
       } catch {
         case e: SocketTimeoutException =>
           logger.warn(s"[SSDB] [SocketTimeoutException], labeled as INVALID  ${e.getMessage} # $toString")
-          client.labelAsInvalid()
+          netFailure = true
           throw e
         case e: ConnectException =>
           logger.warn(s"[SSDB] [ConnectException], labeled as INVALID  ${e.getMessage} # $toString")
-          client.labelAsInvalid()
+          netFailure = true
           throw e
         case e: TimeoutException =>
           logger.warn(s"[SSDB] [TimeoutException], labeled as INVALID ${e.getMessage} # $toString")
-          client.labelAsInvalid()
+          netFailure = true
           throw e
         case e: NoSuchElementException =>
           logger.warn(s"[SSDB] [NoSuchElementException], labeled as INVALID ${e.getMessage} # $toString")
-          //client.labelAsInvalid()
           throw e
         case e: Exception =>
           e.printStackTrace()
           logger.error(s"[SSDB] [####Exception####], labeled as INVALID ${e.getMessage} # $toString")
-          client.labelAsInvalid()
+          // error responses are IOExceptions too, but the server is up
+          netFailure = e.isInstanceOf[SocketException] || e.isInstanceOf[EOFException]
           throw e
       } finally {
-        if (client != null)
-          pool.returnObject(client)
+        if (netFailure) breaker.failure() else breaker.success()
+        val ms = if (netFailure) math.max(timeout, 1000).toDouble else (System.nanoTime() - start) / 1000000.0
+        avgLatency = avgLatency * 0.9 + ms * 0.1 // races only drop a sample
       }
     }
 
+    override def route(key: String): SSDBPool = this
+
+    override def nodes: Seq[SSDBRoute] = Seq(this)
+
+    // moving average of the time of withClient in ms, network failures count as max(timeout, 1000),
+    // other failures (error statuses, errors of the caller, an exhausted pool) by their real time
+    @volatile private var avgLatency: Double = 0.0
+
+    /**
+     * @return moving average of the request latency in ms
+     */
+    def latency: Double = avgLatency
+
     override def toString: String = "[SSDB] " + host + ":" + String.valueOf(port)
 
     // close pool & free resources
-    def close(): Unit = pool.close()
+    def close(): Unit = {
+      pool.close()
+      mux.foreach(_.close())
+    }
 
     /**
      * @param host    host name
@@ -1090,13 +2210,30 @@ trait SSDBClient extends Awakable {
       // when we make an object it's already connected
       override def makeObject: SSDB = {
         //logger.info(s"[SSDB] $host:$port connected")
-        new SSDB(host, port, timeout)
+        mux match {
+          case Some(link) =>
+            val rc = new SSDB(link)
+            rc.setRelinkBackoff(reconnectBackoff)
+            rc
+          case None =>
+            // a new client connects, held back as relinks are while the server is failing
+            reconnectBackoff.check()
+            val rc = try new SSDB(host, port, timeout) catch {
+              case e: Exception =>
+                reconnectBackoff.failure()
+                throw e
+            }
+            reconnectBackoff.success()
+            rc.setRelinkBackoff(reconnectBackoff)
+            rc.setMetrics(metrics)
+            rc
+        }
       }
 
       // quit & disconnect
       override def destroyObject(rc: SSDB): Unit = {
         //logger.info(s"[SSDB] $host:$port destroied")
-        rc.close()
+        if (mux.isEmpty) rc.close() // shared sockets are closed with the pool
       }
 
       // noop: we want to have it connected
@@ -1117,15 +2254,18 @@ trait SSDBClient extends Awakable {
         }
       }
 
+      // called in background on idle clients only, see healthCheckInterval
       override def validateObject(rc: SSDB): Boolean = {
-        if (rc.isActive) {
-          true
-        } else {
-          logger.warn("[SSDB] labeled as 'invalid'")
+        if (!rc.isActive) {
+          logger.warn(s"[SSDB] $host:$port labeled as 'invalid'")
           false
+        } else if (!rc.ping(pingTimeout)) {
+          logger.warn(s"[SSDB] $host:$port no answer to ping in ${pingTimeout}ms")
+          rc.labelAsInvalid()
+          false
+        } else {
+          true
         }
-        //rc.isActive // this method is only check the connection method, instead of a "ping"
-        //rc.ping()
       }
     }
 
@@ -1139,13 +2279,27 @@ object SSDBClient extends SSDBClient {
     timeout: Int = 10000,
     maxActive: Int = 1024,
     whenExhaustedAction: Byte = WHEN_EXHAUSTED_GROW,
-    maxWait: Long = 10000): SSDBClient.SSDBPool = {
+    maxWait: Long = 10000,
+    multiplex: Int = 0,
+    minIdle: Int = 0,
+    metrics: MetricsSink = MetricsSink.NONE,
+    healthCheckInterval: Long = 30000,
+    maxIdleTime: Long = 0,
+    breakerOpenTime: Long = 5000,
+    breakerFailureRate: Double = 0.5): SSDBClient.SSDBPool = {
     SSDBClient.SSDBPool(
       host = host,
       port = port,
       timeout = timeout,
       maxActive = maxActive,
       whenExhaustedAction = whenExhaustedAction,
-      maxWait = maxWait)
+      maxWait = maxWait,
+      multiplex = multiplex,
+      minIdle = minIdle,
+      metrics = metrics,
+      healthCheckInterval = healthCheckInterval,
+      maxIdleTime = maxIdleTime,
+      breakerOpenTime = breakerOpenTime,
+      breakerFailureRate = breakerFailureRate)
   }
 }
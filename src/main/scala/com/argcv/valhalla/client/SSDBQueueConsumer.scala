@@ -0,0 +1,163 @@
+package com.argcv.valhalla.client
+
+import java.util.concurrent.atomic.AtomicLong
+import java.util.concurrent.locks.LockSupport
+import java.util.concurrent.{ ArrayBlockingQueue, Executors, TimeUnit }
+
+import com.argcv.valhalla.client.SSDBClient.SSDBRoute
+import com.argcv.valhalla.utils.Awakable
+
+/**
+ * @param popped    items popped from the queue
+ * @param handled   items handled, failed included
+ * @param failed    items whose handler threw
+ * @param pops      qpop requests
+ * @param emptyPops qpop requests which found the queue empty
+ * @param elapsed   ms since the consumer started
+ */
+case class ConsumeReport(popped: Long, handled: Long, failed: Long, pops: Long, emptyPops: Long, elapsed: Long) {
+  /**
+   * @return items handled per second
+   */
+  def rate: Double = if (elapsed <= 0) 0.0 else handled * 1000.0 / elapsed
+
+  override def toString: String = f"[SSDB consume] popped: $popped, handled: $handled, failed: $failed, pops: $pops, empty: $emptyPops, elapsed: ${elapsed}ms, rate: $rate%.1f/s"
+}
+
+/**
+ * Consume a queue with few round trips.
+ * A fetcher thread pops items in batches with qpop_front into a local buffer of bufferSize items,
+ * and workers threads call handle on them. The batch grows twice while the queue has more than
+ * a batch, up to maxBatch, and shrinks to what was there when it has less, so a busy queue costs
+ * one round trip per maxBatch items while several consumers of a short queue still share it. <br/>
+ * When the queue is empty the fetcher waits 1ms before the next pop, twice longer after each empty
+ * pop up to maxIdleWait, so an idle consumer does not flood the server. <br/>
+ * Progress is logged every reportInterval ms.
+ * {{{
+ * val consumer = new SSDBQueueConsumer("jobs", pool)(job => run(job))
+ * ...
+ * val report = consumer.close()
+ * }}}
+ * Items are removed from the queue when they are popped: those in the buffer are lost if the
+ * process dies, and an item whose handler throws is only counted and logged. Workers take items
+ * in queue order but may finish them in any order, use workers = 1 for a strict order.
+ *
+ * @param name           name of the queue
+ * @param pool           route of the queue
+ * @param workers        threads calling handle
+ * @param maxBatch       max items of a pop
+ * @param bufferSize     items popped but not handled yet
+ * @param maxIdleWait    max ms between two pops of an empty queue
+ * @param reportInterval ms between two progress logs, 0 for none
+ * @param handle         handler of an item
+ */
+class SSDBQueueConsumer(name: String,
+  pool: SSDBRoute,
+  workers: Int = 4,
+  maxBatch: Int = 1000,
+  bufferSize: Int = 10000,
+  maxIdleWait: Long = 1000,
+  reportInterval: Long = 10000)(handle: String => Unit) extends Awakable {
+  require(workers > 0 && maxBatch > 0 && bufferSize > 0 && maxIdleWait > 0,
+    s"workers: $workers, maxBatch: $maxBatch, bufferSize: $bufferSize, maxIdleWait: $maxIdleWait")
+
+  private val buffer = new ArrayBlockingQueue[String](bufferSize)
+  private val executor = Executors.newFixedThreadPool(workers)
+  private val popped = new AtomicLong()
+  private val handled = new AtomicLong()
+  private val failed = new AtomicLong()
+  private val pops = new AtomicLong()
+  private val emptyPops = new AtomicLong()
+  private val started = System.currentTimeMillis()
+  @volatile private var lastReport = started
+  @volatile private var stopping = false
+  @volatile private var fetching = true
+
+  private val fetcher = new Thread(new Runnable {
+    override def run(): Unit = fetch()
+  }, s"ssdb-consumer-$name")
+
+  /**
+   * stop popping, handle the items left in the buffer and wait for the workers
+   *
+   * @return the report of the consumer
+   */
+  def close(): ConsumeReport = {
+    stopping = true
+    LockSupport.unpark(fetcher)
+    fetcher.join()
+    executor.shutdown()
+    executor.awaitTermination(Long.MaxValue, TimeUnit.MILLISECONDS)
+    val report = progress
+    logger.info(report.toString)
+    report
+  }
+
+  def progress: ConsumeReport =
+    ConsumeReport(popped.get(), handled.get(), failed.get(), pops.get(), emptyPops.get(), System.currentTimeMillis() - started)
+
+  private def fetch(): Unit = {
+    var batch = 1
+    var idleWait = TimeUnit.MILLISECONDS.toNanos(1)
+    val maxIdleNanos = TimeUnit.MILLISECONDS.toNanos(maxIdleWait)
+    try {
+      while (!stopping) {
+        val room = buffer.remainingCapacity()
+        if (room == 0) {
+          // workers are behind, the buffer drains quickly
+          LockSupport.parkNanos(TimeUnit.MILLISECONDS.toNanos(1))
+        } else {
+          val n = math.max(1, math.min(batch, room))
+          // an error counts as an empty pop, and is retried after the idle wait
+          val items = SSDBClient.qpop_front(name, n, pool)
+          pops.incrementAndGet()
+          if (items.isEmpty) {
+            emptyPops.incrementAndGet()
+            batch = 1
+            LockSupport.parkNanos(idleWait)
+            idleWait = math.min(idleWait * 2, maxIdleNanos)
+          } else {
+            popped.addAndGet(items.size.toLong)
+            items.foreach(buffer.put)
+            batch = if (items.size >= n) math.min(batch * 2, maxBatch) else items.size
+            idleWait = TimeUnit.MILLISECONDS.toNanos(1)
+          }
+        }
+        report()
+      }
+    } finally {
+      fetching = false
+    }
+  }
+
+  private def work(): Unit = {
+    while (fetching || !buffer.isEmpty) {
+      val item = buffer.poll(100, TimeUnit.MILLISECONDS)
+      if (item != null) {
+        try {
+          handle(item)
+        } catch {
+          case e: Exception =>
+            failed.incrementAndGet()
+            logger.warn(s"[SSDB consume] handle of an item of $name failed: ${e.getMessage}")
+        }
+        handled.incrementAndGet()
+      }
+    }
+  }
+
+  private def report(): Unit = {
+    if (reportInterval > 0 && System.currentTimeMillis() - lastReport >= reportInterval) {
+      lastReport = System.currentTimeMillis()
+      logger.info(progress.toString)
+    }
+  }
+
+  fetcher.setDaemon(true)
+  fetcher.start()
+  (0 until workers).foreach { _ =>
+    executor.submit(new Runnable {
+      override def run(): Unit = work()
+    })
+  }
+}
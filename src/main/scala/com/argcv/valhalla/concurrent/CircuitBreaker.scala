@@ -0,0 +1,188 @@
+package com.argcv.valhalla.concurrent
+
+import java.io.IOException
+import java.util.concurrent.atomic.{ AtomicInteger, AtomicLongArray }
+
+/**
+ * A circuit breaker in front of an endpoint which may go down.
+ *
+ * While closed, the calls and failures of the last window ms are counted in 10 buckets. When at least minCalls were
+ * made and the failure rate reaches failureRate, the breaker opens and every call fails at once, without touching the
+ * endpoint. After openTime ms a single call is let through as a probe (half-open): if it succeeds the breaker closes,
+ * if it fails the breaker opens for openTime ms again. A probe which reports nothing within openTime ms is given up,
+ * and the next call probes again.
+ * {{{
+ * val breaker = new CircuitBreaker("127.0.0.1:8888")
+ * breaker.protect(conn.query(...)) { case _: IOException => true }
+ * }}}
+ * Recording is lock free.
+ *
+ * @param name        name of the endpoint, in the messages
+ * @param failureRate failures / calls which opens the breaker, in (0, 1]
+ * @param minCalls    calls in the window before the rate is considered
+ * @param openTime    ms the breaker stays open before a probe, 0 or negative to disable the breaker
+ * @param window      ms of the calls the rate is computed on
+ */
+class CircuitBreaker(name: String,
+  failureRate: Double = 0.5,
+  minCalls: Int = 20,
+  openTime: Long = 5000,
+  window: Long = 10000) {
+  require(failureRate > 0 && failureRate <= 1 && minCalls > 0 && window >= CircuitBreaker.BUCKETS,
+    s"failureRate: $failureRate, minCalls: $minCalls, window: $window")
+
+  import CircuitBreaker._
+
+  private val state = new AtomicInteger(CLOSED)
+  // since when open, or since when the probe was let through
+  @volatile private var since = 0L
+  private val bucketTime = window / BUCKETS
+  // per bucket: the epoch (time / bucketTime) it counts, calls and failures
+  private val epochs = new AtomicLongArray(BUCKETS)
+  private val calls = new AtomicLongArray(BUCKETS)
+  private val failures = new AtomicLongArray(BUCKETS)
+
+  def enabled: Boolean = openTime > 0
+
+  /**
+   * @return true if a call may be made now, the caller must then report it by success or failure
+   */
+  def allow(): Boolean =
+    !enabled || (state.get() match {
+      case CLOSED => true
+      case _ =>
+        // open or half-open: one probe per openTime
+        val s = since
+        System.currentTimeMillis() - s >= openTime && probe(s)
+    })
+
+  def success(): Unit =
+    if (enabled) {
+      if (state.get() != CLOSED) {
+        if (state.compareAndSet(HALF_OPEN, CLOSED)) clear()
+      } else {
+        record(failed = false)
+      }
+    }
+
+  def failure(): Unit =
+    if (enabled) {
+      state.get() match {
+        case CLOSED =>
+          record(failed = true)
+          if (tripped && state.compareAndSet(CLOSED, OPEN)) since = System.currentTimeMillis()
+        case HALF_OPEN =>
+          if (state.compareAndSet(HALF_OPEN, OPEN)) since = System.currentTimeMillis()
+        case _ =>
+      }
+    }
+
+  /**
+   * @param body      the call
+   * @param isFailure exceptions which count as failures of the endpoint, the others are thrown but count as successes
+   * @throws CircuitOpenException open, body is not called
+   */
+  def protect[T](body: => T)(isFailure: PartialFunction[Throwable, Boolean]): T = {
+    if (!allow()) throw new CircuitOpenException(s"[breaker] $name is down, retry in ${retryIn}ms")
+    try {
+      val ret = body
+      success()
+      ret
+    } catch {
+      case t: Throwable =>
+        if (isFailure.applyOrElse(t, (_: Throwable) => false)) failure() else success()
+        throw t
+    }
+  }
+
+  def isOpen: Boolean = enabled && state.get() == OPEN
+
+  def isClosed: Boolean = !enabled || state.get() == CLOSED
+
+  /**
+   * @return ms until the next probe, 0 if closed
+   */
+  def retryIn: Long =
+    if (isClosed) 0L
+    else math.max(0L, since + openTime - System.currentTimeMillis())
+
+  /**
+   * close the breaker and forget the calls counted
+   */
+  def reset(): Unit = {
+    state.set(CLOSED)
+    clear()
+  }
+
+  override def toString: String = {
+    val s = state.get() match {
+      case CLOSED => "closed"
+      case OPEN => "open"
+      case _ => "half-open"
+    }
+    s"[breaker] $name: $s"
+  }
+
+  // a single probe among the threads which saw the same since
+  private def probe(s: Long): Boolean = synchronized {
+    val st = state.get()
+    if (st != CLOSED && since == s && state.compareAndSet(st, HALF_OPEN)) {
+      since = System.currentTimeMillis()
+      true
+    } else {
+      false
+    }
+  }
+
+  private def record(failed: Boolean): Unit = {
+    val epoch = System.currentTimeMillis() / bucketTime
+    val i = (epoch % BUCKETS).toInt
+    val e = epochs.get(i)
+    if (e != epoch && epochs.compareAndSet(i, e, epoch)) {
+      // a new round of this bucket, races only drop a few counts
+      calls.set(i, 0)
+      failures.set(i, 0)
+    }
+    calls.incrementAndGet(i)
+    if (failed) failures.incrementAndGet(i)
+  }
+
+  private def tripped: Boolean = {
+    val oldest = System.currentTimeMillis() / bucketTime - BUCKETS
+    var n = 0L
+    var f = 0L
+    var i = 0
+    while (i < BUCKETS) {
+      if (epochs.get(i) > oldest) {
+        n += calls.get(i)
+        f += failures.get(i)
+      }
+      i += 1
+    }
+    n >= minCalls && f >= n * failureRate
+  }
+
+  private def clear(): Unit = {
+    var i = 0
+    while (i < BUCKETS) {
+      epochs.set(i, 0)
+      calls.set(i, 0)
+      failures.set(i, 0)
+      i += 1
+    }
+  }
+}
+
+object CircuitBreaker {
+  private val CLOSED = 0
+  private val OPEN = 1
+  private val HALF_OPEN = 2
+  private val BUCKETS = 10
+}
+
+/**
+ * thrown instead of calling an endpoint whose circuit breaker is open, without a stack trace as it is thrown often
+ */
+class CircuitOpenException(message: String) extends IOException(message) {
+  override def fillInStackTrace(): Throwable = this
+}
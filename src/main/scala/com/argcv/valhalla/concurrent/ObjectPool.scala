@@ -0,0 +1,311 @@
+package com.argcv.valhalla.concurrent
+
+import java.util.concurrent.atomic.{ AtomicBoolean, AtomicInteger }
+import java.util.concurrent.{ ConcurrentLinkedDeque, Executors, ScheduledExecutorService, ThreadFactory, TimeUnit }
+
+import com.argcv.valhalla.utils.Awakable
+import org.apache.commons.pool.PoolableObjectFactory
+import org.apache.commons.pool.impl.GenericObjectPool._
+
+/**
+ * A pool of connections (or any objects made by a PoolableObjectFactory) without a lock on the borrow / return path.
+ *
+ * Idle objects are kept in a lock-free stack, the most recently returned first, so the objects in use stay few
+ * and warm. A thread first tries the object it returned last, claimed by a compare-and-set on the object itself,
+ * so a thread which borrows again and again does not even touch the shared stack. Only a borrower which has to
+ * wait for an object takes a lock. <br/>
+ * minIdle objects are created ahead in background, and the idle objects are validated in background every
+ * validationInterval ms, so borrowers skip the validation. An idle object which fails validation is destroyed and
+ * replaced by a new one, and an object idle for longer than maxIdleTime is destroyed (and replaced if needed to keep
+ * minIdle). An object is activated when borrowed and passivated when returned, as with commons-pool.
+ * {{{
+ * val pool = new ObjectPool(factory, maxActive = 64, whenExhaustedAction = WHEN_EXHAUSTED_BLOCK, maxWait = 1000)
+ * pool.withObject(conn => conn.query(...))
+ * }}}
+ *
+ * @param factory             makes, activates, validates and destroys the objects
+ * @param maxActive           max number of objects, negative for no limit
+ * @param whenExhaustedAction what borrow does when maxActive objects are borrowed: WHEN_EXHAUSTED_GROW makes
+ *                            one more (destroyed when returned), WHEN_EXHAUSTED_BLOCK waits and WHEN_EXHAUSTED_FAIL
+ *                            throws NoSuchElementException
+ * @param maxWait             ms to wait when blocked, 0 or negative to wait for ever
+ * @param minIdle             idle objects kept ready
+ * @param validationInterval  ms between two validations of the idle objects, 0 for none
+ * @param maxIdleTime         ms an object may stay idle before it is destroyed, 0 to keep it, checked every
+ *                            validationInterval ms
+ */
+class ObjectPool[T](factory: PoolableObjectFactory[T],
+  maxActive: Int,
+  whenExhaustedAction: Byte = WHEN_EXHAUSTED_BLOCK,
+  maxWait: Long = 0,
+  minIdle: Int = 0,
+  validationInterval: Long = 30000,
+  maxIdleTime: Long = 0) extends Awakable {
+
+  import ObjectPool._
+
+  private val idle = new ConcurrentLinkedDeque[Pooled[T]]()
+  private val last = new ThreadLocal[Pooled[T]]
+  // objects alive, borrowed or idle
+  private val total = new AtomicInteger()
+  private val active = new AtomicInteger()
+  // borrowers blocked on waitLock
+  private val waiters = new AtomicInteger()
+  private val waitLock = new Object
+  @volatile private var closed = false
+
+  private val maintainer: Option[ScheduledExecutorService] =
+    if (minIdle > 0 || validationInterval > 0) {
+      val s = Executors.newSingleThreadScheduledExecutor(daemonThreads)
+      if (minIdle > 0) s.execute(new Runnable {
+        override def run(): Unit = fill()
+      })
+      if (validationInterval > 0) s.scheduleWithFixedDelay(new Runnable {
+        override def run(): Unit = {
+          replace(validateIdle())
+          fill()
+        }
+      }, validationInterval, validationInterval, TimeUnit.MILLISECONDS)
+      Some(s)
+    } else {
+      None
+    }
+
+  /**
+   * @return an activated object, to be given back by release
+   * @throws NoSuchElementException exhausted, or timed out waiting
+   */
+  def borrow(): Pooled[T] = {
+    val deadline = System.currentTimeMillis() + maxWait
+    var p: Pooled[T] = null
+    while (p == null) {
+      if (closed) throw new IllegalStateException("pool closed")
+      p = claim()
+      if (p == null) {
+        p = create(force = false)
+        if (p == null) {
+          whenExhaustedAction match {
+            case WHEN_EXHAUSTED_GROW =>
+              p = create(force = true)
+            case WHEN_EXHAUSTED_FAIL =>
+              throw new NoSuchElementException("Pool exhausted")
+            case _ =>
+              await(deadline)
+          }
+        }
+      }
+    }
+    try {
+      factory.activateObject(p.obj)
+    } catch {
+      case e: Exception =>
+        destroy(p)
+        throw e
+    }
+    active.incrementAndGet()
+    p
+  }
+
+  /**
+   * give back an object taken by borrow
+   */
+  def release(p: Pooled[T]): Unit = {
+    active.decrementAndGet()
+    if (closed || (maxActive >= 0 && total.get() > maxActive)) {
+      // grown beyond maxActive
+      destroy(p)
+    } else {
+      try {
+        factory.passivateObject(p.obj)
+        p.lastUsed = System.currentTimeMillis()
+        p.state.set(IDLE)
+        last.set(p)
+        if (p.queued.compareAndSet(false, true)) idle.offerFirst(p)
+        signal()
+      } catch {
+        case _: Exception => destroy(p)
+      }
+    }
+  }
+
+  def withObject[R](body: T => R): R = {
+    val p = borrow()
+    try body(p.obj)
+    finally release(p)
+  }
+
+  /**
+   * @return objects borrowed
+   */
+  def numActive: Int = active.get()
+
+  def numIdle: Int = math.max(0, total.get() - active.get())
+
+  def numTotal: Int = total.get()
+
+  /**
+   * destroy the idle objects, and the borrowed ones when they are returned
+   */
+  def close(): Unit = {
+    closed = true
+    maintainer.foreach(_.shutdownNow())
+    var p = idle.pollFirst()
+    while (p != null) {
+      if (p.state.compareAndSet(IDLE, IN_USE)) destroy(p)
+      p = idle.pollFirst()
+    }
+    waitLock.synchronized(waitLock.notifyAll())
+  }
+
+  // the object this thread returned last, or the most recent idle one
+  private def claim(): Pooled[T] = {
+    val mine = last.get()
+    if (mine != null && mine.state.compareAndSet(IDLE, IN_USE)) {
+      mine
+    } else {
+      var p = idle.pollFirst()
+      // objects claimed meanwhile by their last thread are dropped, and queued again when returned
+      while (p != null) {
+        p.queued.set(false)
+        if (p.state.compareAndSet(IDLE, IN_USE)) return p
+        p = idle.pollFirst()
+      }
+      null
+    }
+  }
+
+  // a new object in use, or null if maxActive objects are alive and not forced
+  private def create(force: Boolean): Pooled[T] = {
+    var reserved = force
+    if (force) {
+      total.incrementAndGet()
+    } else {
+      var n = total.get()
+      while (!reserved && (maxActive < 0 || n < maxActive)) {
+        reserved = total.compareAndSet(n, n + 1)
+        n = total.get()
+      }
+    }
+    if (!reserved) {
+      null
+    } else {
+      try {
+        new Pooled(factory.makeObject())
+      } catch {
+        case e: Exception =>
+          total.decrementAndGet()
+          signal()
+          throw e
+      }
+    }
+  }
+
+  private def destroy(p: Pooled[T]): Unit = {
+    p.state.set(REMOVED)
+    total.decrementAndGet()
+    try factory.destroyObject(p.obj) catch {
+      case e: Exception => logger.warn(s"[pool] destroy failed: ${e.getMessage}")
+    }
+    signal()
+  }
+
+  private def signal(): Unit =
+    if (waiters.get() > 0) waitLock.synchronized(waitLock.notifyAll())
+
+  private def await(deadline: Long): Unit = {
+    waiters.incrementAndGet()
+    try {
+      waitLock.synchronized {
+        // checked again under the lock, release and destroy signal under it
+        if (idle.isEmpty && !closed && (maxActive >= 0 && total.get() >= maxActive)) {
+          if (maxWait > 0) {
+            val left = deadline - System.currentTimeMillis()
+            if (left <= 0) throw new NoSuchElementException("Timeout waiting for idle object")
+            waitLock.wait(left)
+          } else {
+            waitLock.wait()
+          }
+        }
+      }
+    } finally {
+      waiters.decrementAndGet()
+    }
+  }
+
+  // destroy the idle objects which are invalid or idle too long, returns the number of invalid ones
+  private def validateIdle(): Int = {
+    var invalid = 0
+    val now = System.currentTimeMillis()
+    val it = idle.iterator()
+    while (it.hasNext && !closed) {
+      val p = it.next()
+      if (p.state.compareAndSet(IDLE, IN_USE)) {
+        val expired = maxIdleTime > 0 && now - p.lastUsed > maxIdleTime
+        val valid = !expired && (try factory.validateObject(p.obj) catch {
+          case _: Exception => false
+        })
+        if (valid) {
+          p.state.set(IDLE)
+        } else {
+          if (!expired) invalid += 1
+          if (idle.remove(p)) p.queued.set(false)
+          destroy(p)
+        }
+      }
+    }
+    invalid
+  }
+
+  // open n objects in place of those found invalid, so the next borrowers do not pay for the connect
+  private def replace(n: Int): Unit =
+    try {
+      var i = 0
+      while (i < n && !closed) {
+        val p = create(force = false)
+        if (p != null) {
+          active.incrementAndGet()
+          release(p)
+        }
+        i += 1
+      }
+    } catch {
+      case e: Exception => logger.warn(s"[pool] replace failed: ${e.getMessage}")
+    }
+
+  private def fill(): Unit =
+    try {
+      while (!closed && numIdle < minIdle && (maxActive < 0 || total.get() < maxActive)) {
+        val p = create(force = false)
+        if (p != null) {
+          active.incrementAndGet()
+          release(p)
+        }
+      }
+    } catch {
+      case e: Exception => logger.warn(s"[pool] prefill failed: ${e.getMessage}")
+    }
+}
+
+object ObjectPool {
+  private val IDLE = 0
+  private val IN_USE = 1
+  private val REMOVED = 2
+
+  /**
+   * an object of the pool, with its state
+   */
+  final class Pooled[T] private[ObjectPool] (val obj: T) {
+    private[ObjectPool] val state = new AtomicInteger(IN_USE)
+    // in the idle stack
+    private[ObjectPool] val queued = new AtomicBoolean(false)
+    @volatile var lastUsed: Long = System.currentTimeMillis()
+  }
+
+  private val daemonThreads = new ThreadFactory {
+    override def newThread(r: Runnable): Thread = {
+      val t = new Thread(r, "object-pool-maintainer")
+      t.setDaemon(true)
+      t
+    }
+  }
+}
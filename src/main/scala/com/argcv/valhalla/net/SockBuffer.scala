@@ -4,12 +4,13 @@ import java.net.Socket
 
 import com.argcv.valhalla.exception.ExceptionHelper.SafeExecWithTrace
 import com.argcv.valhalla.net.DataSerializer.IntSerializer
+import com.udpwork.ssdb.UnixSocket
 
 import scala.tools.nsc.interpreter.OutputStream
 
 /**
- * @param host    host "127.0.0.1" etc.
- * @param port    port "80" etc.
+ * @param host    host "127.0.0.1" etc., or "unix:/path/to/server.sock" for a unix domain socket
+ * @param port    port "80" etc., ignored for a unix domain socket
  * @param timeout timeout in ms, 0 for never timeout
  */
 
@@ -131,11 +132,8 @@ case class SockBuffer(host: String, port: Int, timeout: Int = 0) {
    * @return socket with timeout
    */
   private def init() = {
-    val so = new Socket(host, port)
-    if (timeout > 0)
-      so.setSoTimeout(timeout)
-    so.setTcpNoDelay(true)
-    so
+    // tcp, or a unix domain socket for a host of "unix:/path/to/server.sock"
+    UnixSocket.connect(host, port, timeout)
   }
 
   /**
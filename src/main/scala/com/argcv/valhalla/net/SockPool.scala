@@ -1,34 +1,37 @@
 package com.argcv.valhalla.net
 
+import com.argcv.valhalla.concurrent.ObjectPool
 import org.apache.commons.pool.PoolableObjectFactory
-import org.apache.commons.pool.impl.GenericObjectPool
 import org.apache.commons.pool.impl.GenericObjectPool.WHEN_EXHAUSTED_BLOCK
 
 /**
- * Create a new <tt>SockPool</tt> using the specified values.
+ * Create a new <tt>SockPool</tt> using the specified values, see com.argcv.valhalla.concurrent.ObjectPool.
  * @param maxActive the maximum number of objects that can be borrowed from me at one time (see org.apache.commons.pool.impl.GenericObjectPool#setMaxActive)
  * @param whenExhaustedAction the action to take when the pool is exhausted (see org.apache.commons.pool.impl.GenericObjectPool#getWhenExhaustedAction)
  * @param maxWait the maximum amount of time to wait for an idle object when the pool is exhausted an and
  *                <i>whenExhaustedAction</i> is org.apache.commons.pool.impl.GenericObjectPool#WHEN_EXHAUSTED_BLOCK (otherwise ignored)
  *                (see org.apache.commons.pool.impl.GenericObjectPool#getMaxWait)
- * @param host host of socket server
- * @param port port of socket server
+ * @param host host of socket server, or "unix:/path/to/server.sock" for a unix domain socket (needs Java 16 or later)
+ * @param port port of socket server, ignored for a unix domain socket
  * @param timeout timeout in ms of socket connect, 0 for default and will never timeout
+ * @param minIdle sockets opened ahead and kept ready
+ * @param validationInterval ms between two validations of the idle sockets in background, 0 for none as before
  */
-case class SockPool(host: String, port: Int, timeout: Int = 0, maxActive: Int = 32, whenExhaustedAction: Byte = WHEN_EXHAUSTED_BLOCK, maxWait: Long = 0) {
+case class SockPool(host: String, port: Int, timeout: Int = 0, maxActive: Int = 32, whenExhaustedAction: Byte = WHEN_EXHAUSTED_BLOCK, maxWait: Long = 0, minIdle: Int = 0, validationInterval: Long = 0) {
 
-  val pool = {
-    val p = new GenericObjectPool(new SockObjectFactory(host, port, timeout), maxActive, whenExhaustedAction, maxWait)
-    //println("[connected to socket] " + p.getMaxActive + " # " + p.getMaxIdle + "#" + p.getWhenExhaustedAction + "#vs.#" + WHEN_EXHAUSTED_BLOCK + " # " + p.getMaxWait + " info: " + toString())
-    p
-  }
+  val pool = new ObjectPool(new SockObjectFactory(host, port, timeout), maxActive, whenExhaustedAction, maxWait, minIdle,
+    validationInterval)
 
-  var counter = 0
+  /**
+   * @return number of open sockets
+   */
+  def counter: Int = pool.numTotal
 
   override def toString = "[SockBufSockBuffer] " + host + ":" + String.valueOf(port)
 
   def withClient[T](body: SockBuffer => T): T = {
-    val client = pool.borrowObject
+    val pooled = pool.borrow()
+    val client = pooled.obj
     try {
       body(client)
     } catch {
@@ -36,7 +39,7 @@ case class SockPool(host: String, port: Int, timeout: Int = 0, maxActive: Int =
         client.activate()
         throw t
     } finally {
-      pool.returnObject(client)
+      pool.release(pooled)
     }
   }
 
@@ -53,20 +56,10 @@ case class SockPool(host: String, port: Int, timeout: Int = 0, maxActive: Int =
     extends PoolableObjectFactory[SockBuffer] {
 
     // when we make an object it's already connected
-    override def makeObject: SockBuffer = {
-      pool.synchronized {
-        counter += 1
-        println(s"new object , count : $counter")
-      }
-      SockBuffer(host, port, timeout)
-    }
+    override def makeObject: SockBuffer = SockBuffer(host, port, timeout)
 
     // quit & disconnect
     override def destroyObject(rc: SockBuffer): Unit = {
-      pool.synchronized {
-        counter -= 1
-        println(s"remove object , count : $counter")
-      }
       rc.close()
     }
 
@@ -81,7 +74,6 @@ case class SockPool(host: String, port: Int, timeout: Int = 0, maxActive: Int =
     }
 
     override def validateObject(rc: SockBuffer): Boolean = {
-      println(s"valid status: " + (!rc.isClosed && rc.isConnected))
       !rc.isClosed && rc.isConnected
     }
 
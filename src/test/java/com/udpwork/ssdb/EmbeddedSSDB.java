@@ -0,0 +1,971 @@
+package com.udpwork.ssdb;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.channels.Channels;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.TreeSet;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * In-process stand-in of an SSDB server, for tests and benchmarks of the client without a real
+ * SSDB. Example:
+ * <p>
+ * <pre>
+ * EmbeddedSSDB server = new EmbeddedSSDB();
+ * SSDB ssdb = new SSDB(&quot;127.0.0.1&quot;, server.getPort());
+ * ...
+ * server.close();
+ * </pre>
+ * <p>
+ * It speaks the SSDB wire protocol on a loopback port, with a thread per connection, and keeps
+ * the data in memory sorted maps: keys, hashes, sorted sets and queues with the commands of
+ * {@link SSDB}, and expiry of keys, which as in SSDB is kept when a key is set again. Keys are
+ * ordered by their bytes as in SSDB. Pipelined requests are answered in one write.
+ * <p>
+ * A slower server can be simulated: {@link #setLatency(long, TimeUnit)} adds a delay to every
+ * round trip, and {@link #setThroughput(int)} limits the requests handled per second over all
+ * connections.
+ * <p>
+ * {@link #listenUnix(String)} serves the same data on a unix domain socket as well, on Java 16
+ * or later, see {@link UnixSocket}.
+ */
+public class EmbeddedSSDB implements Closeable {
+    private static final List<byte[]> NONE = Collections.emptyList();
+
+    private final ServerSocket ss;
+    private final Set<Closeable> connections = ConcurrentHashMap.newKeySet();
+    private volatile ServerSocketChannel unix;
+    private volatile String unixPath;
+    private final AtomicLong requests = new AtomicLong();
+    private volatile long latencyNanos = 0;
+    private volatile long intervalNanos = 0;
+    /**
+     * time before which no request is handled, when the throughput is limited
+     */
+    private final AtomicLong nextSlot = new AtomicLong();
+
+    /* data, guarded by this. keys are bytes as ISO-8859-1 strings, which sort like the bytes */
+    private final TreeMap<String, byte[]> kv = new TreeMap<>();
+    private final Map<String, Long> expires = new HashMap<>();
+    private final TreeMap<String, TreeMap<String, byte[]>> hashes = new TreeMap<>();
+    private final TreeMap<String, SortedSet> zsets = new TreeMap<>();
+    private final TreeMap<String, List<byte[]>> queues = new TreeMap<>();
+
+    /**
+     * listen on a free port of the loopback interface
+     *
+     * @throws IOException bind failed
+     */
+    public EmbeddedSSDB() throws IOException {
+        this(0);
+    }
+
+    /**
+     * @param port port on the loopback interface, 0 for any free port
+     * @throws IOException bind failed
+     */
+    public EmbeddedSSDB(int port) throws IOException {
+        ss = new ServerSocket(port, 128, InetAddress.getLoopbackAddress());
+        Thread acceptor = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                accept();
+            }
+        }, "embedded-ssdb-" + getPort());
+        acceptor.setDaemon(true);
+        acceptor.start();
+    }
+
+    public String getHost() {
+        return ss.getInetAddress().getHostAddress();
+    }
+
+    public int getPort() {
+        return ss.getLocalPort();
+    }
+
+    /**
+     * Serve on a unix domain socket too, until close.
+     *
+     * @param path path of the socket to create, it must not exist
+     * @return host to connect to, <code>unix:</code> followed by path
+     * @throws IOException                   bind failed
+     * @throws UnsupportedOperationException the runtime is older than Java 16
+     */
+    public synchronized String listenUnix(String path) throws IOException {
+        if (unix != null) {
+            throw new IllegalStateException("already listening on " + unixPath);
+        }
+        final ServerSocketChannel ch = UnixSocket.bind(path);
+        unix = ch;
+        unixPath = path;
+        Thread acceptor = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                acceptUnix(ch);
+            }
+        }, "embedded-ssdb-" + path);
+        acceptor.setDaemon(true);
+        acceptor.start();
+        return UnixSocket.SCHEME + path;
+    }
+
+    /**
+     * @param latency delay added to every round trip, before the responses are sent, 0 for none
+     * @param unit    unit of latency
+     */
+    public void setLatency(long latency, TimeUnit unit) {
+        this.latencyNanos = unit.toNanos(Math.max(latency, 0));
+    }
+
+    /**
+     * @param requestsPerSecond most requests handled per second over all connections, 0 for no limit
+     */
+    public void setThroughput(int requestsPerSecond) {
+        this.intervalNanos = requestsPerSecond > 0 ? TimeUnit.SECONDS.toNanos(1) / requestsPerSecond : 0;
+    }
+
+    /**
+     * @return requests handled since start
+     */
+    public long requests() {
+        return requests.get();
+    }
+
+    /**
+     * @param key key
+     * @return seconds to live of key, -1 if it has no ttl or does not exist
+     */
+    public synchronized long ttl(String key) {
+        return secondsToLive(str(key.getBytes(StandardCharsets.UTF_8)));
+    }
+
+    /**
+     * drop all data
+     */
+    public synchronized void clear() {
+        kv.clear();
+        expires.clear();
+        hashes.clear();
+        zsets.clear();
+        queues.clear();
+    }
+
+    /**
+     * stop listening and close all connections
+     */
+    @Override
+    public void close() throws IOException {
+        ss.close();
+        ServerSocketChannel ch = unix;
+        if (ch != null) {
+            ch.close();
+            Files.deleteIfExists(Paths.get(unixPath));
+        }
+        for (Closeable c : connections) {
+            try {
+                c.close();
+            } catch (IOException e) {
+                // closed anyway
+            }
+        }
+    }
+
+    private void accept() {
+        try {
+            while (true) {
+                Socket s = ss.accept();
+                s.setTcpNoDelay(true);
+                start(s, s.getInputStream(), s.getOutputStream());
+            }
+        } catch (IOException e) {
+            // closed
+        }
+    }
+
+    private void acceptUnix(ServerSocketChannel ch) {
+        try {
+            while (true) {
+                SocketChannel c = ch.accept();
+                start(c, Channels.newInputStream(c), Channels.newOutputStream(c));
+            }
+        } catch (IOException e) {
+            // closed
+        }
+    }
+
+    private void start(final Closeable c, final InputStream is, final OutputStream os) {
+        connections.add(c);
+        Thread t = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                serve(c, is, os);
+            }
+        }, "embedded-ssdb-conn");
+        t.setDaemon(true);
+        t.start();
+    }
+
+    private void serve(Closeable c, InputStream is, OutputStream os) {
+        MemoryStream input = new MemoryStream();
+        ResponseParser parser = new ResponseParser();
+        CommandEncoder out = new CommandEncoder();
+        try {
+            while (true) {
+                // a request has the same framing as a response, the command in place of status
+                Response req = parser.parse(input);
+                if (req != null) {
+                    pace();
+                    handle(req, out);
+                    continue;
+                }
+                MemoryStream buf = out.buffer();
+                if (buf.size > 0) {
+                    // every request received so far is answered, send them in one write
+                    sleep(latencyNanos);
+                    os.write(buf.buf, buf.data, buf.size);
+                    os.flush();
+                    out.clear();
+                }
+                input.nice();
+                if (input.read(is, 8192) < 0) {
+                    return;
+                }
+            }
+        } catch (IOException e) {
+            // closed or malformed request, drop the connection
+        } finally {
+            connections.remove(c);
+            try {
+                c.close();
+            } catch (IOException e) {
+                // closed anyway
+            }
+        }
+    }
+
+    private void pace() {
+        requests.incrementAndGet();
+        long interval = intervalNanos;
+        if (interval > 0) {
+            long now = System.nanoTime();
+            long slot;
+            long next;
+            do {
+                next = nextSlot.get();
+                slot = next - now > 0 ? next : now;
+            } while (!nextSlot.compareAndSet(next, slot + interval));
+            sleep(slot - now);
+        }
+    }
+
+    private static void sleep(long nanos) {
+        long deadline = System.nanoTime() + nanos;
+        while (nanos > 0) {
+            LockSupport.parkNanos(nanos);
+            nanos = deadline - System.nanoTime();
+        }
+    }
+
+    private void handle(Response req, CommandEncoder out) {
+        byte[][] a = new byte[req.size()][];
+        for (int i = 0; i < a.length; i++) {
+            a[i] = req.get(i);
+        }
+        try {
+            synchronized (this) {
+                execute(req.status, a, out);
+            }
+        } catch (ArrayIndexOutOfBoundsException e) {
+            out.encode("client_error", "wrong number of arguments");
+        } catch (NumberFormatException e) {
+            out.encode("client_error", "not an integer: " + e.getMessage());
+        }
+    }
+
+    private void execute(String cmd, byte[][] a, CommandEncoder out) {
+        switch (cmd) {
+            case "ping":
+                ok(out);
+                break;
+            case "dbsize":
+                expireAll();
+                ok(out, kv.size());
+                break;
+            case "flushdb":
+                clear();
+                ok(out);
+                break;
+
+            /* key value */
+            case "get": {
+                byte[] v = alive(str(a[0]));
+                if (v == null) {
+                    notFound(out);
+                } else {
+                    ok(out, v);
+                }
+                break;
+            }
+            case "set":
+                kv.put(str(a[0]), a[1]);
+                ok(out, 1);
+                break;
+            case "setx":
+                kv.put(str(a[0]), a[1]);
+                expire(str(a[0]), num(a[2]));
+                ok(out, 1);
+                break;
+            case "setnx":
+                if (alive(str(a[0])) != null) {
+                    ok(out, 0);
+                } else {
+                    kv.put(str(a[0]), a[1]);
+                    ok(out, 1);
+                }
+                break;
+            case "getset": {
+                byte[] v = alive(str(a[0]));
+                kv.put(str(a[0]), a[1]);
+                if (v == null) {
+                    notFound(out);
+                } else {
+                    ok(out, v);
+                }
+                break;
+            }
+            case "expire":
+                if (alive(str(a[0])) != null) {
+                    expire(str(a[0]), num(a[1]));
+                    ok(out, 1);
+                } else {
+                    ok(out, 0);
+                }
+                break;
+            case "ttl":
+                ok(out, secondsToLive(str(a[0])));
+                break;
+            case "exists":
+                ok(out, alive(str(a[0])) != null ? 1 : 0);
+                break;
+            case "del":
+                kv.remove(str(a[0]));
+                expires.remove(str(a[0]));
+                ok(out, 1);
+                break;
+            case "incr": {
+                byte[] v = alive(str(a[0]));
+                long n = (v == null ? 0 : num(v)) + (a.length > 1 ? num(a[1]) : 1);
+                kv.put(str(a[0]), bytes(n));
+                ok(out, n);
+                break;
+            }
+            case "multi_get": {
+                List<byte[]> ret = new ArrayList<>();
+                for (byte[] k : a) {
+                    byte[] v = alive(str(k));
+                    if (v != null) {
+                        ret.add(k);
+                        ret.add(v);
+                    }
+                }
+                ok(out, ret);
+                break;
+            }
+            case "multi_set":
+                for (int i = 0; i + 1 < a.length; i += 2) {
+                    kv.put(str(a[i]), a[i + 1]);
+                }
+                ok(out, a.length / 2);
+                break;
+            case "multi_del":
+                for (byte[] k : a) {
+                    kv.remove(str(k));
+                    expires.remove(str(k));
+                }
+                ok(out, a.length);
+                break;
+            case "scan":
+            case "rscan":
+            case "keys":
+            case "rkeys":
+                expireAll();
+                ok(out, range(kv, a[0], a[1], a[2], cmd.startsWith("r"), !cmd.endsWith("keys")));
+                break;
+
+            /* hash */
+            case "hset": {
+                TreeMap<String, byte[]> h = hashes.get(str(a[0]));
+                if (h == null) {
+                    h = new TreeMap<>();
+                    hashes.put(str(a[0]), h);
+                }
+                ok(out, h.put(str(a[1]), a[2]) == null ? 1 : 0);
+                break;
+            }
+            case "hget": {
+                byte[] v = hash(a[0]).get(str(a[1]));
+                if (v == null) {
+                    notFound(out);
+                } else {
+                    ok(out, v);
+                }
+                break;
+            }
+            case "hdel": {
+                TreeMap<String, byte[]> h = hash(a[0]);
+                ok(out, h.remove(str(a[1])) != null ? 1 : 0);
+                dropEmpty(hashes, a[0], h);
+                break;
+            }
+            case "hincr": {
+                TreeMap<String, byte[]> h = hashes.get(str(a[0]));
+                if (h == null) {
+                    h = new TreeMap<>();
+                    hashes.put(str(a[0]), h);
+                }
+                byte[] v = h.get(str(a[1]));
+                long n = (v == null ? 0 : num(v)) + (a.length > 2 ? num(a[2]) : 1);
+                h.put(str(a[1]), bytes(n));
+                ok(out, n);
+                break;
+            }
+            case "hexists":
+                ok(out, hash(a[0]).containsKey(str(a[1])) ? 1 : 0);
+                break;
+            case "hsize":
+                ok(out, hash(a[0]).size());
+                break;
+            case "hclear": {
+                TreeMap<String, byte[]> h = hashes.remove(str(a[0]));
+                ok(out, h == null ? 0 : h.size());
+                break;
+            }
+            case "hgetall":
+                ok(out, range(hash(a[0]), new byte[0], new byte[0], null, false, true));
+                break;
+            case "hscan":
+            case "hrscan":
+            case "hkeys":
+                ok(out, range(hash(a[0]), a[1], a[2], a[3], cmd.equals("hrscan"), !cmd.equals("hkeys")));
+                break;
+            case "hlist":
+            case "hrlist":
+                ok(out, range(hashes, a[0], a[1], a[2], cmd.equals("hrlist"), false));
+                break;
+            case "multi_hget": {
+                TreeMap<String, byte[]> h = hash(a[0]);
+                List<byte[]> ret = new ArrayList<>();
+                for (int i = 1; i < a.length; i++) {
+                    byte[] v = h.get(str(a[i]));
+                    if (v != null) {
+                        ret.add(a[i]);
+                        ret.add(v);
+                    }
+                }
+                ok(out, ret);
+                break;
+            }
+            case "multi_hset": {
+                TreeMap<String, byte[]> h = hashes.get(str(a[0]));
+                if (h == null) {
+                    h = new TreeMap<>();
+                    hashes.put(str(a[0]), h);
+                }
+                for (int i = 1; i + 1 < a.length; i += 2) {
+                    h.put(str(a[i]), a[i + 1]);
+                }
+                ok(out, (a.length - 1) / 2);
+                break;
+            }
+            case "multi_hdel": {
+                TreeMap<String, byte[]> h = hash(a[0]);
+                int n = 0;
+                for (int i = 1; i < a.length; i++) {
+                    if (h.remove(str(a[i])) != null) {
+                        n++;
+                    }
+                }
+                dropEmpty(hashes, a[0], h);
+                ok(out, n);
+                break;
+            }
+
+            /* sorted set */
+            case "zset": {
+                SortedSet z = zsets.get(str(a[0]));
+                if (z == null) {
+                    z = new SortedSet();
+                    zsets.put(str(a[0]), z);
+                }
+                ok(out, z.put(str(a[1]), num(a[2])) ? 1 : 0);
+                break;
+            }
+            case "zget": {
+                Long score = zset(a[0]).scores.get(str(a[1]));
+                if (score == null) {
+                    notFound(out);
+                } else {
+                    ok(out, score);
+                }
+                break;
+            }
+            case "zdel": {
+                SortedSet z = zset(a[0]);
+                ok(out, z.remove(str(a[1])) ? 1 : 0);
+                dropEmpty(zsets, a[0], z);
+                break;
+            }
+            case "zincr": {
+                SortedSet z = zsets.get(str(a[0]));
+                if (z == null) {
+                    z = new SortedSet();
+                    zsets.put(str(a[0]), z);
+                }
+                Long score = z.scores.get(str(a[1]));
+                long n = (score == null ? 0 : score) + (a.length > 2 ? num(a[2]) : 1);
+                z.put(str(a[1]), n);
+                ok(out, n);
+                break;
+            }
+            case "zexists":
+                ok(out, zset(a[0]).scores.containsKey(str(a[1])) ? 1 : 0);
+                break;
+            case "zsize":
+                ok(out, zset(a[0]).scores.size());
+                break;
+            case "zclear": {
+                SortedSet z = zsets.remove(str(a[0]));
+                ok(out, z == null ? 0 : z.scores.size());
+                break;
+            }
+            case "zrange":
+            case "zrrange": {
+                List<byte[]> ret = new ArrayList<>();
+                Iterator<Item> it = zset(a[0]).iterator(cmd.equals("zrrange"));
+                long offset = num(a[1]);
+                long limit = num(a[2]);
+                for (long i = 0; it.hasNext() && i < offset + limit; i++) {
+                    Item item = it.next();
+                    if (i >= offset) {
+                        ret.add(bytes(item.key));
+                        ret.add(bytes(item.score));
+                    }
+                }
+                ok(out, ret);
+                break;
+            }
+            case "zscan":
+            case "zrscan":
+            case "zkeys":
+                ok(out, zscan(zset(a[0]), a[1], a[2], a[3], num(a[4]), cmd.equals("zrscan"), !cmd.equals("zkeys")));
+                break;
+            case "zcount": {
+                long n = 0;
+                for (Long score : zset(a[0]).scores.values()) {
+                    if ((a[1].length == 0 || score >= num(a[1])) && (a[2].length == 0 || score <= num(a[2]))) {
+                        n++;
+                    }
+                }
+                ok(out, n);
+                break;
+            }
+            case "zlist":
+            case "zrlist":
+                ok(out, range(zsets, a[0], a[1], a[2], cmd.equals("zrlist"), false));
+                break;
+            case "multi_zget": {
+                SortedSet z = zset(a[0]);
+                List<byte[]> ret = new ArrayList<>();
+                for (int i = 1; i < a.length; i++) {
+                    Long score = z.scores.get(str(a[i]));
+                    if (score != null) {
+                        ret.add(a[i]);
+                        ret.add(bytes(score));
+                    }
+                }
+                ok(out, ret);
+                break;
+            }
+            case "multi_zset": {
+                SortedSet z = zsets.get(str(a[0]));
+                if (z == null) {
+                    z = new SortedSet();
+                    zsets.put(str(a[0]), z);
+                }
+                for (int i = 1; i + 1 < a.length; i += 2) {
+                    z.put(str(a[i]), num(a[i + 1]));
+                }
+                ok(out, (a.length - 1) / 2);
+                break;
+            }
+            case "multi_zdel": {
+                SortedSet z = zset(a[0]);
+                int n = 0;
+                for (int i = 1; i < a.length; i++) {
+                    if (z.remove(str(a[i]))) {
+                        n++;
+                    }
+                }
+                dropEmpty(zsets, a[0], z);
+                ok(out, n);
+                break;
+            }
+
+            /* queue */
+            case "qpush":
+            case "qpush_back":
+            case "qpush_front": {
+                List<byte[]> q = queues.get(str(a[0]));
+                if (q == null) {
+                    q = new ArrayList<>();
+                    queues.put(str(a[0]), q);
+                }
+                for (int i = 1; i < a.length; i++) {
+                    if (cmd.equals("qpush_front")) {
+                        q.add(0, a[i]);
+                    } else {
+                        q.add(a[i]);
+                    }
+                }
+                ok(out, q.size());
+                break;
+            }
+            case "qpop":
+            case "qpop_front":
+            case "qpop_back":
+            case "qtrim_front":
+            case "qtrim_back": {
+                List<byte[]> q = queue(a[0]);
+                long size = a.length > 1 ? num(a[1]) : 1;
+                boolean single = size == 1;
+                boolean back = cmd.endsWith("back");
+                List<byte[]> ret = new ArrayList<>();
+                while (size-- > 0 && !q.isEmpty()) {
+                    ret.add(q.remove(back ? q.size() - 1 : 0));
+                }
+                dropEmpty(queues, a[0], q);
+                if (cmd.startsWith("qtrim")) {
+                    ok(out, ret.size());
+                } else if (single && ret.isEmpty()) {
+                    // as ssdb, a single pop of an empty queue is not found
+                    notFound(out);
+                } else {
+                    ok(out, ret);
+                }
+                break;
+            }
+            case "qfront":
+            case "qback":
+            case "qget": {
+                List<byte[]> q = queue(a[0]);
+                long i = cmd.equals("qget") ? num(a[1]) : cmd.equals("qfront") ? 0 : -1;
+                if (i < 0) {
+                    i += q.size();
+                }
+                if (i < 0 || i >= q.size()) {
+                    notFound(out);
+                } else {
+                    ok(out, q.get((int) i));
+                }
+                break;
+            }
+            case "qset": {
+                List<byte[]> q = queue(a[0]);
+                long i = num(a[1]);
+                if (i < 0) {
+                    i += q.size();
+                }
+                if (i < 0 || i >= q.size()) {
+                    out.encode("error", "index out of range");
+                } else {
+                    q.set((int) i, a[2]);
+                    ok(out, 1);
+                }
+                break;
+            }
+            case "qsize":
+                ok(out, queue(a[0]).size());
+                break;
+            case "qclear": {
+                List<byte[]> q = queues.remove(str(a[0]));
+                ok(out, q == null ? 0 : q.size());
+                break;
+            }
+            case "qrange":
+            case "qslice": {
+                List<byte[]> q = queue(a[0]);
+                long begin = num(a[1]);
+                if (begin < 0) {
+                    begin += q.size();
+                }
+                long end;
+                if (cmd.equals("qrange")) {
+                    end = begin + num(a[2]) - 1;
+                } else {
+                    end = num(a[2]);
+                    if (end < 0) {
+                        end += q.size();
+                    }
+                }
+                List<byte[]> ret = new ArrayList<>();
+                for (long i = Math.max(begin, 0); i <= end && i < q.size(); i++) {
+                    ret.add(q.get((int) i));
+                }
+                ok(out, ret);
+                break;
+            }
+            case "qlist":
+            case "qrlist":
+                ok(out, range(queues, a[0], a[1], a[2], cmd.equals("qrlist"), false));
+                break;
+            default:
+                out.encode("client_error", "Unknown Command: " + cmd);
+        }
+    }
+
+    /* helpers, called with the lock held */
+
+    private byte[] alive(String k) {
+        Long deadline = expires.get(k);
+        if (deadline != null && deadline <= System.currentTimeMillis()) {
+            kv.remove(k);
+            expires.remove(k);
+        }
+        return kv.get(k);
+    }
+
+    private void expire(String k, long ttl) {
+        expires.put(k, System.currentTimeMillis() + ttl * 1000);
+    }
+
+    private long secondsToLive(String k) {
+        Long deadline = alive(k) != null ? expires.get(k) : null;
+        if (deadline == null) {
+            return -1;
+        }
+        return Math.max((deadline - System.currentTimeMillis() + 999) / 1000, 0);
+    }
+
+    private void expireAll() {
+        long now = System.currentTimeMillis();
+        Iterator<Map.Entry<String, Long>> it = expires.entrySet().iterator();
+        while (it.hasNext()) {
+            Map.Entry<String, Long> e = it.next();
+            if (e.getValue() <= now) {
+                kv.remove(e.getKey());
+                it.remove();
+            }
+        }
+    }
+
+    private TreeMap<String, byte[]> hash(byte[] name) {
+        TreeMap<String, byte[]> h = hashes.get(str(name));
+        return h == null ? new TreeMap<String, byte[]>() : h;
+    }
+
+    private SortedSet zset(byte[] name) {
+        SortedSet z = zsets.get(str(name));
+        return z == null ? new SortedSet() : z;
+    }
+
+    private List<byte[]> queue(byte[] name) {
+        List<byte[]> q = queues.get(str(name));
+        return q == null ? new ArrayList<byte[]>() : q;
+    }
+
+    private static void dropEmpty(Map<String, ?> m, byte[] name, Object o) {
+        boolean empty = o instanceof SortedSet ? ((SortedSet) o).scores.isEmpty()
+                : o instanceof Map ? ((Map<?, ?>) o).isEmpty() : ((List<?>) o).isEmpty();
+        if (empty) {
+            m.remove(str(name));
+        }
+    }
+
+    /**
+     * keys in (start, end], or [end, start) in reverse, of a sorted map. Empty start and end are unbounded.
+     *
+     * @param limit  max number of keys, null for all
+     * @param values with the value after each key
+     */
+    private static List<byte[]> range(NavigableMap<String, ?> m, byte[] start, byte[] end, byte[] limit,
+                                      boolean reverse, boolean values) {
+        NavigableMap<String, ?> sub = m;
+        if (start.length > 0 && end.length > 0) {
+            // an empty range, as in SSDB, the sub maps would throw
+            int c = str(start).compareTo(str(end));
+            if (reverse ? c <= 0 : c >= 0) {
+                return new ArrayList<>();
+            }
+        }
+        if (!reverse) {
+            if (start.length > 0) {
+                sub = sub.tailMap(str(start), false);
+            }
+            if (end.length > 0) {
+                sub = sub.headMap(str(end), true);
+            }
+        } else {
+            if (start.length > 0) {
+                sub = sub.headMap(str(start), false);
+            }
+            if (end.length > 0) {
+                sub = sub.tailMap(str(end), true);
+            }
+            sub = sub.descendingMap();
+        }
+        long n = limit == null ? Long.MAX_VALUE : num(limit);
+        List<byte[]> ret = new ArrayList<>();
+        for (Map.Entry<String, ?> e : sub.entrySet()) {
+            if (n-- <= 0) {
+                break;
+            }
+            ret.add(bytes(e.getKey()));
+            if (values) {
+                ret.add((byte[]) e.getValue());
+            }
+        }
+        return ret;
+    }
+
+    /**
+     * items after (score_start, key_start) up to score_end, in order of score then key
+     */
+    private static List<byte[]> zscan(SortedSet z, byte[] keyStart, byte[] scoreStart, byte[] scoreEnd,
+                                      long limit, boolean reverse, boolean scores) {
+        String key = str(keyStart);
+        List<byte[]> ret = new ArrayList<>();
+        Iterator<Item> it = z.iterator(reverse);
+        while (it.hasNext() && limit > 0) {
+            Item item = it.next();
+            if (scoreStart.length > 0) {
+                long s = num(scoreStart);
+                int c = Long.compare(item.score, s);
+                if (reverse) {
+                    c = -c;
+                }
+                if (c < 0 || c == 0 && !key.isEmpty() && (reverse ? item.key.compareTo(key) >= 0 : item.key.compareTo(key) <= 0)) {
+                    continue;
+                }
+            }
+            if (scoreEnd.length > 0) {
+                long e = num(scoreEnd);
+                if (reverse ? item.score < e : item.score > e) {
+                    break;
+                }
+            }
+            ret.add(bytes(item.key));
+            if (scores) {
+                ret.add(bytes(item.score));
+            }
+            limit--;
+        }
+        return ret;
+    }
+
+    private static String str(byte[] bs) {
+        return new String(bs, StandardCharsets.ISO_8859_1);
+    }
+
+    private static byte[] bytes(String s) {
+        return s.getBytes(StandardCharsets.ISO_8859_1);
+    }
+
+    private static byte[] bytes(long n) {
+        return Long.toString(n).getBytes(StandardCharsets.ISO_8859_1);
+    }
+
+    private static long num(byte[] bs) {
+        return Long.parseLong(str(bs).trim());
+    }
+
+    private static void ok(CommandEncoder out) {
+        out.encode("ok", NONE);
+    }
+
+    private static void ok(CommandEncoder out, long n) {
+        out.encode("ok", (Object) n);
+    }
+
+    private static void ok(CommandEncoder out, byte[] v) {
+        out.encode("ok", Collections.singletonList(v));
+    }
+
+    private static void ok(CommandEncoder out, List<byte[]> fields) {
+        out.encode("ok", fields);
+    }
+
+    private static void notFound(CommandEncoder out) {
+        out.encode("not_found", NONE);
+    }
+
+    private static final class Item implements Comparable<Item> {
+        final String key;
+        final long score;
+
+        Item(String key, long score) {
+            this.key = key;
+            this.score = score;
+        }
+
+        @Override
+        public int compareTo(Item o) {
+            int c = Long.compare(score, o.score);
+            return c != 0 ? c : key.compareTo(o.key);
+        }
+    }
+
+    /**
+     * scores by key, and the items ordered by score then key
+     */
+    private static final class SortedSet {
+        final Map<String, Long> scores = new HashMap<>();
+        final TreeSet<Item> items = new TreeSet<>();
+
+        /**
+         * @return true if key is new
+         */
+        boolean put(String key, long score) {
+            Long old = scores.put(key, score);
+            if (old != null) {
+                items.remove(new Item(key, old));
+            }
+            items.add(new Item(key, score));
+            return old == null;
+        }
+
+        boolean remove(String key) {
+            Long old = scores.remove(key);
+            if (old != null) {
+                items.remove(new Item(key, old));
+            }
+            return old != null;
+        }
+
+        Iterator<Item> iterator(boolean reverse) {
+            return reverse ? items.descendingIterator() : items.iterator();
+        }
+    }
+}
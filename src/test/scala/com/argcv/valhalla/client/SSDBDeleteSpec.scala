@@ -0,0 +1,74 @@
+package com.argcv.valhalla.client
+
+import com.argcv.valhalla.client.SSDBClient._
+import com.udpwork.ssdb.EmbeddedSSDB
+import org.scalatest._
+
+/**
+ * test case of the range deletes of [[com.argcv.valhalla.client.SSDBClient]], on an embedded server
+ */
+class SSDBDeleteSpec extends FlatSpec with Matchers with BeforeAndAfterAll with BeforeAndAfterEach {
+  private val server = new EmbeddedSSDB
+  private lazy val pool = SSDBPool(server.getHost, server.getPort, maxActive = 8)
+
+  // dense enough for many batches in every sub-range
+  private val inside = (0 until 500).map(i => f"p:$i%03d") ++ Seq("p:a", "p:zz", "p:\u00ff", "p:\uffff")
+  // "p9" < "p:" < "p;", the end of the prefix
+  private val outside = Seq("o", "p", "p9", "p9~", "p;", "p;a", "q")
+
+  override def afterAll(): Unit = {
+    pool.close()
+    server.close()
+  }
+
+  override def beforeEach(): Unit = {
+    server.clear()
+    multi_set((inside ++ outside :+ "p:").map(_ -> "x"), pool) should be(true)
+  }
+
+  private def keys: Set[String] = scanIterator("", 100, pool).map(_._1).toSet
+
+  "delPrefix" should "delete exactly the keys after the prefix" in {
+    delPrefix("p:", pool) should be(true)
+    keys should be((outside :+ "p:").toSet)
+  }
+
+  "parDelPrefix" should "delete exactly the keys after the prefix with parallel workers" in {
+    Seq(2, 4, 8).foreach { parallelism =>
+      beforeEach()
+      parDelPrefix("p:", parallelism = parallelism, batchSize = 7, pool = pool) should be(true)
+      keys should be((outside :+ "p:").toSet)
+    }
+  }
+
+  it should "keep the end of the prefix when it is the only key beyond" in {
+    server.clear()
+    multi_set(Seq("p:1", "p;").map(_ -> "x"), pool) should be(true)
+    parDelPrefix("p:", parallelism = 4, batchSize = 1, pool = pool) should be(true)
+    keys should be(Set("p;"))
+  }
+
+  it should "delete under a rate limit" in {
+    val start = System.currentTimeMillis()
+    parDelPrefix("p:", parallelism = 4, batchSize = 50, maxRate = 1000, pool = pool) should be(true)
+    keys should be((outside :+ "p:").toSet)
+    // 504 keys at 1000/s, the first permits are free
+    System.currentTimeMillis() - start should be >= 300L
+  }
+
+  "parDelRange" should "delete exactly the keys in (start, end]" in {
+    Seq(1, 4).foreach { parallelism =>
+      beforeEach()
+      parDelRange("p:100", "p:399", parallelism = parallelism, batchSize = 7, pool = pool) should be(true)
+      val deleted = (101 to 399).map(i => f"p:$i%03d").toSet
+      keys should be((inside ++ outside :+ "p:").toSet -- deleted)
+    }
+  }
+
+  it should "delete from -inf and to +inf with empty bounds" in {
+    parDelRange("", "p9~", parallelism = 4, batchSize = 7, pool = pool) should be(true)
+    keys should be((inside :+ "p:").toSet ++ Seq("p;", "p;a", "q"))
+    parDelRange("p:zz", "", parallelism = 4, batchSize = 7, pool = pool) should be(true)
+    keys should be((inside :+ "p:").toSet -- Seq("p:\u00ff", "p:\uffff"))
+  }
+}
@@ -0,0 +1,109 @@
+package com.argcv.valhalla.client
+
+import java.util.concurrent.ConcurrentHashMap
+import java.util.concurrent.atomic.AtomicInteger
+
+import com.argcv.valhalla.client.SSDBClient._
+import com.udpwork.ssdb.EmbeddedSSDB
+import org.scalatest._
+
+import scala.collection.JavaConverters._
+import scala.collection.mutable
+
+/**
+ * test case of [[com.argcv.valhalla.client.SSDBQueueConsumer]], fed by [[com.argcv.valhalla.client.SSDBBulkLoader]],
+ * on an embedded server
+ */
+class SSDBQueueConsumerSpec extends FlatSpec with Matchers with BeforeAndAfterAll {
+  private val server = new EmbeddedSSDB
+  private lazy val pool = SSDBPool(server.getHost, server.getPort, maxActive = 8)
+
+  override def afterAll(): Unit = {
+    pool.close()
+    server.close()
+  }
+
+  private def push(name: String, items: Seq[String]): Unit =
+    items.grouped(1000).foreach(qpush_back(name, _, pool) should be(true))
+
+  // true once cond holds, false if it did not within ms
+  private def waitFor(ms: Long)(cond: => Boolean): Boolean = {
+    val deadline = System.currentTimeMillis() + ms
+    while (!cond && System.currentTimeMillis() < deadline) Thread.sleep(5)
+    cond
+  }
+
+  "SSDBQueueConsumer" should "handle every item exactly once while it is being produced" in {
+    val items = (0 until 20000).map(i => s"item-$i")
+    val seen = new ConcurrentHashMap[String, AtomicInteger]()
+    val consumer = new SSDBQueueConsumer("once", pool, workers = 4, maxBatch = 100, maxIdleWait = 10)({ item =>
+      seen.putIfAbsent(item, new AtomicInteger())
+      seen.get(item).incrementAndGet()
+    })
+    val producer = new SSDBBulkLoader(pool, parallelism = 2, batchSize = 100, linger = 5)
+    items.foreach(producer.qpush("once", _))
+    producer.close().records should be(items.size.toLong)
+    waitFor(10000)(consumer.progress.handled == items.size.toLong) should be(true)
+    val report = consumer.close()
+    report.popped should be(items.size.toLong)
+    report.handled should be(items.size.toLong)
+    report.failed should be(0L)
+    seen.keySet().asScala should be(items.toSet)
+    seen.values().asScala.forall(_.get() == 1) should be(true)
+    qsize("once", pool) should be(0L)
+  }
+
+  it should "handle the items of a single producer in order with one writer and one worker" in {
+    val items = (0 until 5000).map(i => s"item-$i")
+    val handled = mutable.ArrayBuffer[String]()
+    val consumer = new SSDBQueueConsumer("order", pool, workers = 1, maxBatch = 100, maxIdleWait = 10)(handled += _)
+    val producer = new SSDBBulkLoader(pool, parallelism = 1, batchSize = 37, linger = 1)
+    items.foreach(producer.qpush("order", _))
+    producer.close()
+    waitFor(10000)(consumer.progress.handled == items.size.toLong) should be(true)
+    consumer.close()
+    handled should be(items)
+  }
+
+  it should "grow its batches on a full queue" in {
+    val items = (0 until 20000).map(i => s"item-$i")
+    push("full", items)
+    val requests = server.requests()
+    val consumer = new SSDBQueueConsumer("full", pool, workers = 4, maxBatch = 1000, maxIdleWait = 10)(_ => ())
+    waitFor(10000)(consumer.progress.handled == items.size.toLong) should be(true)
+    val report = consumer.close()
+    report.popped should be(items.size.toLong)
+    // 1 + 2 + ... + 512 then 1000 at a time: 10 + 19 pops, when every pop found the buffer empty enough
+    (report.pops - report.emptyPops) should be < 60L
+    server.requests() - requests should be < 200L
+  }
+
+  it should "handle the items left in the buffer on close" in {
+    val items = (0 until 500).map(i => s"item-$i")
+    push("drain", items)
+    val handled = new AtomicInteger()
+    val consumer = new SSDBQueueConsumer("drain", pool, workers = 1, maxBatch = 1000, bufferSize = 1000)({ _ =>
+      Thread.sleep(1)
+      handled.incrementAndGet()
+    })
+    waitFor(10000)(consumer.progress.popped == items.size.toLong) should be(true)
+    // popped at once, handled a ms each
+    handled.get() should be < items.size
+    val report = consumer.close()
+    handled.get() should be(items.size)
+    report.handled should be(items.size.toLong)
+    qsize("drain", pool) should be(0L)
+  }
+
+  it should "count the items whose handler throws as failed" in {
+    val items = (0 until 1000).map(_.toString)
+    push("failing", items)
+    val consumer = new SSDBQueueConsumer("failing", pool, workers = 4, maxIdleWait = 10)({ item =>
+      if (item.toInt % 10 == 0) throw new IllegalArgumentException(s"bad item $item")
+    })
+    waitFor(10000)(consumer.progress.handled == items.size.toLong) should be(true)
+    val report = consumer.close()
+    report.handled should be(items.size.toLong)
+    report.failed should be(100L)
+  }
+}
@@ -0,0 +1,60 @@
+package com.argcv.valhalla.client
+
+import java.util.concurrent.atomic.AtomicInteger
+
+import com.argcv.valhalla.client.SSDBClient._
+import com.udpwork.ssdb.{ EmbeddedSSDB, MetricsSink }
+import org.scalatest._
+
+/**
+ * round trips of the compound operations of [[com.argcv.valhalla.client.SSDBClient]],
+ * counted by a MetricsSink on an embedded server
+ */
+class SSDBRoundTripSpec extends FlatSpec with Matchers with BeforeAndAfterAll {
+  private val server = new EmbeddedSSDB
+  private val trips = new AtomicInteger()
+  private val sink = new MetricsSink {
+    override def command(cmd: String, nanos: Long, requestBytes: Int, responseBytes: Int, failed: Boolean): Unit =
+      trips.incrementAndGet()
+
+    override def reconnect(): Unit = {}
+
+    override def borrow(waitNanos: Long): Unit = {}
+  }
+  private lazy val pool = SSDBPool(server.getHost, server.getPort, maxActive = 1, metrics = sink)
+
+  override def afterAll(): Unit = {
+    pool.close()
+    server.close()
+  }
+
+  private def roundTrips[T](body: => T): (T, Int) = {
+    trips.set(0)
+    val ret = body
+    (ret, trips.get())
+  }
+
+  "setx" should "set the value and ttl in one round trip" in {
+    roundTrips(setx("a", "1", 100, pool)) should be((true, 1))
+    server.ttl("a") should be(100L)
+  }
+
+  "setnx" should "overwrite an existing key in one round trip and keep its ttl" in {
+    roundTrips(setnx("a", "2", 5, pool)) should be((true, 1))
+    get("a", pool) should be(Some("2"))
+    server.ttl("a") should be(100L)
+  }
+
+  it should "set the ttl of a created key with one more round trip" in {
+    roundTrips(setnx("b", "1", 5, pool)) should be((true, 2))
+    server.ttl("b") should be(5L)
+  }
+
+  "zrange and zrrange" should "read the range in one round trip" in {
+    zset("z", "x", 1, pool)
+    zset("z", "y", 2, pool)
+    roundTrips(zrange("z", 0, 10, pool)) should be((List(("x", 1L), ("y", 2L)), 1))
+    roundTrips(zrrange("z", 0, 10, pool)) should be((List(("y", 2L), ("x", 1L)), 1))
+    roundTrips(zrange("none", 0, 10, pool)) should be((List(), 1))
+  }
+}
@@ -0,0 +1,128 @@
+package com.argcv.valhalla.concurrent
+
+import java.io.IOException
+import java.util.concurrent.atomic.AtomicInteger
+import java.util.concurrent.{ CountDownLatch, Executors, TimeUnit }
+
+import org.scalatest._
+
+/**
+ * test case of [[com.argcv.valhalla.concurrent.CircuitBreaker]]
+ */
+class CircuitBreakerSpec extends FlatSpec with Matchers {
+
+  private def open(breaker: CircuitBreaker, n: Int): Unit =
+    (0 until n).foreach { _ =>
+      breaker.allow()
+      breaker.failure()
+    }
+
+  "CircuitBreaker" should "not open before minCalls, whatever the failures" in {
+    val breaker = new CircuitBreaker("t", failureRate = 0.5, minCalls = 10, openTime = 1000)
+    open(breaker, 9)
+    breaker.isClosed should be(true)
+    breaker.allow() should be(true)
+    breaker.failure()
+    breaker.isOpen should be(true)
+  }
+
+  it should "open when the failures reach failureRate of the calls" in {
+    val breaker = new CircuitBreaker("t", failureRate = 0.5, minCalls = 10, openTime = 1000)
+    (0 until 6).foreach(_ => breaker.success())
+    open(breaker, 5)
+    // 5 failures of 11 calls
+    breaker.isClosed should be(true)
+    breaker.failure()
+    // 6 of 12
+    breaker.isOpen should be(true)
+    breaker.allow() should be(false)
+    breaker.retryIn should (be > 0L and be <= 1000L)
+  }
+
+  it should "let a single probe through after openTime" in {
+    val breaker = new CircuitBreaker("t", minCalls = 1, openTime = 100)
+    open(breaker, 1)
+    breaker.allow() should be(false)
+    Thread.sleep(150)
+    val threads = 16
+    val pool = Executors.newFixedThreadPool(threads)
+    val start = new CountDownLatch(1)
+    val allowed = new AtomicInteger()
+    (0 until threads).foreach { _ =>
+      pool.submit(new Runnable {
+        override def run(): Unit = {
+          start.await()
+          (0 until 100).foreach(_ => if (breaker.allow()) allowed.incrementAndGet())
+        }
+      })
+    }
+    start.countDown()
+    pool.shutdown()
+    pool.awaitTermination(10, TimeUnit.SECONDS) should be(true)
+    allowed.get() should be(1)
+  }
+
+  it should "close when the probe succeeds, with the calls counted before forgotten" in {
+    val breaker = new CircuitBreaker("t", failureRate = 0.5, minCalls = 2, openTime = 100)
+    open(breaker, 2)
+    Thread.sleep(150)
+    breaker.allow() should be(true)
+    breaker.success()
+    breaker.isClosed should be(true)
+    breaker.retryIn should be(0L)
+    // the failures which opened it are not counted again
+    open(breaker, 1)
+    breaker.isClosed should be(true)
+    breaker.allow() should be(true)
+  }
+
+  it should "open again for openTime when the probe fails" in {
+    val breaker = new CircuitBreaker("t", minCalls = 1, openTime = 100)
+    open(breaker, 1)
+    Thread.sleep(150)
+    breaker.allow() should be(true)
+    breaker.failure()
+    breaker.isOpen should be(true)
+    breaker.allow() should be(false)
+    breaker.retryIn should be > 0L
+    Thread.sleep(150)
+    breaker.allow() should be(true)
+  }
+
+  it should "probe again when a probe reports nothing within openTime" in {
+    val breaker = new CircuitBreaker("t", minCalls = 1, openTime = 100)
+    open(breaker, 1)
+    Thread.sleep(150)
+    breaker.allow() should be(true)
+    breaker.allow() should be(false)
+    Thread.sleep(150)
+    breaker.allow() should be(true)
+  }
+
+  it should "fail protected calls at once while open" in {
+    val breaker = new CircuitBreaker("t", minCalls = 1, openTime = 1000)
+    val calls = new AtomicInteger()
+    an[IOException] should be thrownBy breaker.protect[Unit] {
+      calls.incrementAndGet()
+      throw new IOException("down")
+    } { case _: IOException => true }
+    breaker.isOpen should be(true)
+    a[CircuitOpenException] should be thrownBy breaker.protect(calls.incrementAndGet()) { case _ => true }
+    calls.get() should be(1)
+  }
+
+  it should "count exceptions which are not failures as successes" in {
+    val breaker = new CircuitBreaker("t", minCalls = 1, openTime = 1000)
+    an[IllegalArgumentException] should be thrownBy breaker.protect[Unit] {
+      throw new IllegalArgumentException("bad input")
+    } { case _: IOException => true }
+    breaker.isClosed should be(true)
+  }
+
+  it should "never open with openTime 0" in {
+    val breaker = new CircuitBreaker("t", minCalls = 1, openTime = 0)
+    open(breaker, 100)
+    breaker.isClosed should be(true)
+    breaker.allow() should be(true)
+  }
+}
@@ -0,0 +1,135 @@
+package com.argcv.valhalla.concurrent
+
+import java.util.concurrent.atomic.{ AtomicBoolean, AtomicInteger }
+
+import org.apache.commons.pool.PoolableObjectFactory
+import org.apache.commons.pool.impl.GenericObjectPool._
+import org.scalatest._
+
+/**
+ * test case of [[com.argcv.valhalla.concurrent.ObjectPool]]
+ */
+class ObjectPoolSpec extends FlatSpec with Matchers {
+
+  class Obj(val id: Int) {
+    val inUse = new AtomicBoolean(false)
+    @volatile var valid = true
+  }
+
+  class Factory extends PoolableObjectFactory[Obj] {
+    val made = new AtomicInteger()
+    val destroyed = new AtomicInteger()
+
+    override def makeObject(): Obj = new Obj(made.incrementAndGet())
+
+    override def destroyObject(o: Obj): Unit = destroyed.incrementAndGet()
+
+    override def validateObject(o: Obj): Boolean = o.valid
+
+    override def activateObject(o: Obj): Unit = {}
+
+    override def passivateObject(o: Obj): Unit = {}
+  }
+
+  // true once cond holds, false if it did not within ms
+  private def waitFor(ms: Long)(cond: => Boolean): Boolean = {
+    val deadline = System.currentTimeMillis() + ms
+    while (!cond && System.currentTimeMillis() < deadline) Thread.sleep(5)
+    cond
+  }
+
+  "ObjectPool" should "never lend more than maxActive objects, nor one object twice" in {
+    val factory = new Factory
+    val pool = new ObjectPool(factory, maxActive = 8, whenExhaustedAction = WHEN_EXHAUSTED_BLOCK, validationInterval = 0)
+    val inUse = new AtomicInteger()
+    val maxInUse = new AtomicInteger()
+    val errors = new AtomicInteger()
+    val threads = (0 until 32).map { _ =>
+      new Thread(new Runnable {
+        override def run(): Unit = (0 until 2000).foreach { i =>
+          val p = pool.borrow()
+          if (!p.obj.inUse.compareAndSet(false, true)) errors.incrementAndGet()
+          val n = inUse.incrementAndGet()
+          maxInUse.accumulateAndGet(n, new java.util.function.IntBinaryOperator {
+            override def applyAsInt(a: Int, b: Int): Int = math.max(a, b)
+          })
+          if (pool.numTotal > 8) errors.incrementAndGet()
+          if (i % 100 == 0) Thread.`yield`()
+          inUse.decrementAndGet()
+          p.obj.inUse.set(false)
+          pool.release(p)
+        }
+      })
+    }
+    threads.foreach(_.start())
+    threads.foreach(_.join())
+    errors.get() should be(0)
+    maxInUse.get() should be <= 8
+    factory.made.get() should be <= 8
+    pool.numActive should be(0)
+    pool.close()
+    factory.destroyed.get() should be(factory.made.get())
+  }
+
+  it should "block a borrow on an exhausted pool for maxWait, then fail" in {
+    val pool = new ObjectPool(new Factory, maxActive = 1, whenExhaustedAction = WHEN_EXHAUSTED_BLOCK, maxWait = 200,
+      validationInterval = 0)
+    val held = pool.borrow()
+    val start = System.currentTimeMillis()
+    a[NoSuchElementException] should be thrownBy pool.borrow()
+    System.currentTimeMillis() - start should be >= 190L
+    pool.release(held)
+    pool.close()
+  }
+
+  it should "hand a returned object to a blocked borrower" in {
+    val pool = new ObjectPool(new Factory, maxActive = 1, whenExhaustedAction = WHEN_EXHAUSTED_BLOCK, maxWait = 5000,
+      validationInterval = 0)
+    val held = pool.borrow()
+    new Thread(new Runnable {
+      override def run(): Unit = {
+        Thread.sleep(100)
+        pool.release(held)
+      }
+    }).start()
+    val start = System.currentTimeMillis()
+    val p = pool.borrow()
+    p.obj should be theSameInstanceAs held.obj
+    System.currentTimeMillis() - start should be < 2000L
+    pool.release(p)
+    pool.close()
+  }
+
+  it should "fail at once on an exhausted pool with WHEN_EXHAUSTED_FAIL" in {
+    val pool = new ObjectPool(new Factory, maxActive = 1, whenExhaustedAction = WHEN_EXHAUSTED_FAIL, validationInterval = 0)
+    val held = pool.borrow()
+    a[NoSuchElementException] should be thrownBy pool.borrow()
+    pool.release(held)
+    pool.close()
+  }
+
+  it should "destroy invalid idle objects and replace them" in {
+    val factory = new Factory
+    val pool = new ObjectPool(factory, maxActive = 3, validationInterval = 50)
+    val ps = (0 until 3).map(_ => pool.borrow())
+    ps.foreach(pool.release)
+    ps.take(2).foreach(_.obj.valid = false)
+    waitFor(2000)(factory.destroyed.get() == 2 && pool.numTotal == 3) should be(true)
+    factory.made.get() should be(5)
+    val again = (0 until 3).map(_ => pool.borrow())
+    again.forall(_.obj.valid) should be(true)
+    again.foreach(pool.release)
+    pool.close()
+  }
+
+  it should "keep minIdle objects ready" in {
+    val factory = new Factory
+    val pool = new ObjectPool(factory, maxActive = 10, minIdle = 3, validationInterval = 50)
+    waitFor(2000)(pool.numIdle == 3) should be(true)
+    val held = (0 until 3).map(_ => pool.borrow())
+    waitFor(2000)(pool.numIdle == 3) should be(true)
+    pool.numTotal should be(6)
+    held.foreach(pool.release)
+    pool.close()
+  }
+}
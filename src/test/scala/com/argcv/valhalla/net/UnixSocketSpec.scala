@@ -0,0 +1,69 @@
+package com.argcv.valhalla.net
+
+import java.net.SocketTimeoutException
+import java.nio.file.Files
+import java.util.concurrent.TimeUnit
+
+import com.udpwork.ssdb.{ EmbeddedSSDB, SSDB }
+import org.scalatest._
+
+/**
+ * round trips of [[com.udpwork.ssdb.Link]] and [[com.argcv.valhalla.net.SockBuffer]] over a unix domain socket
+ * of an embedded server, canceled before Java 16
+ */
+class UnixSocketSpec extends FlatSpec with Matchers with BeforeAndAfterAll {
+  private val supported = scala.util.Try(Class.forName("java.net.UnixDomainSocketAddress")).isSuccess
+  private val server = new EmbeddedSSDB
+  private lazy val dir = Files.createTempDirectory("valhalla")
+  private lazy val host = server.listenUnix(dir.resolve("ssdb.sock").toString)
+
+  override def afterAll(): Unit = {
+    server.close()
+    if (supported) Files.deleteIfExists(dir)
+  }
+
+  "Link" should "round trip requests over a unix domain socket" in {
+    assume(supported, "unix domain sockets need Java 16 or later")
+    val ssdb = new SSDB(host, 0, 1000)
+    try {
+      ssdb.set("a", "1")
+      new String(ssdb.get("a"), "UTF-8") should be("1")
+      // larger than the socket buffers, written and read in many steps
+      val big = "x" * (4 << 20)
+      ssdb.set("big", big)
+      new String(ssdb.get("big"), "UTF-8") should be(big)
+    } finally {
+      ssdb.close()
+    }
+  }
+
+  it should "time out a read after the timeout" in {
+    assume(supported, "unix domain sockets need Java 16 or later")
+    val ssdb = new SSDB(host, 0, 100)
+    server.setLatency(500, TimeUnit.MILLISECONDS)
+    try {
+      val start = System.nanoTime()
+      a[SocketTimeoutException] should be thrownBy ssdb.get("a")
+      (System.nanoTime() - start) should be >= TimeUnit.MILLISECONDS.toNanos(100)
+    } finally {
+      server.setLatency(0, TimeUnit.MILLISECONDS)
+      ssdb.close()
+    }
+  }
+
+  "SockBuffer" should "round trip bytes over a unix domain socket" in {
+    assume(supported, "unix domain sockets need Java 16 or later")
+    val sb = SockBuffer(host, 0, 1000)
+    try {
+      sb.send("3\nget\n1\na\n\n") should be(true)
+      val expected = "2\nok\n1\n1\n\n"
+      var resp = ""
+      while (resp.length < expected.length) {
+        resp += sb.recvAsString(64).get
+      }
+      resp should be(expected)
+    } finally {
+      sb.close()
+    }
+  }
+}
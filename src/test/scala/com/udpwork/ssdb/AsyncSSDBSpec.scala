@@ -0,0 +1,69 @@
+package com.udpwork.ssdb
+
+import java.io.IOException
+import java.net.SocketTimeoutException
+import java.util.concurrent.{ ConcurrentLinkedQueue, ExecutionException, TimeUnit }
+
+import org.scalatest._
+
+import scala.collection.JavaConverters._
+
+/**
+ * test case of [[com.udpwork.ssdb.AsyncSSDB]] on an embedded server
+ */
+class AsyncSSDBSpec extends FlatSpec with Matchers {
+
+  private def failure(f: java.util.concurrent.CompletableFuture[_]): Throwable =
+    intercept[ExecutionException](f.get(5, TimeUnit.SECONDS)).getCause
+
+  "AsyncSSDB" should "complete pipelined futures in request order" in {
+    val server = new EmbeddedSSDB
+    val ssdb = new AsyncSSDB(server.getHost, server.getPort, 5000)
+    try {
+      val done = new ConcurrentLinkedQueue[java.lang.Long]()
+      val futures = (1 to 200).map { _ =>
+        ssdb.incr("n", 1).thenApply[java.lang.Long](new java.util.function.Function[java.lang.Long, java.lang.Long] {
+          override def apply(v: java.lang.Long): java.lang.Long = {
+            done.add(v)
+            v
+          }
+        })
+      }
+      futures.map(_.get(5, TimeUnit.SECONDS).longValue) should be((1 to 200).map(_.toLong))
+      done.asScala.map(_.longValue).toList should be((1 to 200).map(_.toLong).toList)
+    } finally {
+      ssdb.close()
+      server.close()
+    }
+  }
+
+  it should "fail all pending futures on a timeout" in {
+    val server = new EmbeddedSSDB
+    server.setLatency(1000, TimeUnit.MILLISECONDS)
+    val ssdb = new AsyncSSDB(server.getHost, server.getPort, 100)
+    try {
+      val start = System.nanoTime()
+      val futures = (0 until 10).map(i => ssdb.get("k" + i))
+      futures.foreach(f => failure(f) shouldBe a[SocketTimeoutException])
+      TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start) should be < 1000L
+    } finally {
+      ssdb.close()
+      server.close()
+    }
+  }
+
+  it should "fail pending futures when the server closes instead of hanging" in {
+    val server = new EmbeddedSSDB
+    val ssdb = new AsyncSSDB(server.getHost, server.getPort, 0)
+    try {
+      ssdb.set("a", "1").get(5, TimeUnit.SECONDS)
+      server.setLatency(500, TimeUnit.MILLISECONDS)
+      val futures = (0 until 10).map(_ => ssdb.get("a"))
+      server.close()
+      futures.foreach(f => failure(f) shouldBe an[IOException])
+      failure(ssdb.get("a")) shouldBe an[IOException]
+    } finally {
+      ssdb.close()
+    }
+  }
+}
@@ -0,0 +1,106 @@
+package com.udpwork.ssdb
+
+import java.io.IOException
+import java.nio.charset.StandardCharsets
+
+import org.scalatest._
+
+import scala.collection.JavaConverters._
+import scala.collection.mutable.ArrayBuffer
+import scala.util.Random
+
+/**
+ * test case of [[com.udpwork.ssdb.ResponseParser]], fed in pieces as a socket would
+ */
+class ResponseParserSpec extends FlatSpec with Matchers {
+
+  private def bytes(s: String): Array[Byte] = s.getBytes(StandardCharsets.ISO_8859_1)
+
+  private def frame(fields: String*): String = fields.map(f => s"${f.length}\n$f\n").mkString + "\n"
+
+  private def fields(r: Response): List[String] = r.raw.asScala.map(new String(_, StandardCharsets.ISO_8859_1)).toList
+
+  /**
+   * feed the stream in pieces of the given sizes, compacting the input before each piece as Link does
+   *
+   * @return the complete responses, and how many times the input was compacted under a half parsed response
+   */
+  private def feed(stream: Array[Byte], pieces: Iterator[Int]): (List[Response], Int) = {
+    val parser = new ResponseParser
+    val input = new MemoryStream(64)
+    val out = ArrayBuffer[Response]()
+    var compactions = 0
+    var off = 0
+    while (off < stream.length) {
+      val n = math.min(pieces.next(), stream.length - off)
+      val before = input.data
+      input.nice()
+      if (input.size > 0 && before > 0 && input.data == 0) compactions += 1
+      input.write(stream, off, n)
+      off += n
+      var r = parser.parse(input)
+      while (r != null) {
+        out += r
+        r = parser.parse(input)
+      }
+    }
+    (out.toList, compactions)
+  }
+
+  private val responses = List(
+    List("ok", "1"),
+    List("ok"),
+    List("ok", "k1", "v1", "k2", "", "k3", "x" * 300),
+    List("not_found"),
+    List("ok", "a" * 1000, "b"),
+    List("error", "bad request"))
+  private val stream = bytes(responses.map(r => frame(r: _*)).mkString)
+
+  "ResponseParser" should "parse responses fed one byte at a time" in {
+    val (rs, _) = feed(stream, Iterator.continually(1))
+    rs.map(fields) should be(responses)
+  }
+
+  it should "parse responses fed in random pieces, compacted while half parsed" in {
+    val random = new Random(42)
+    var compactions = 0
+    (0 until 200).foreach { _ =>
+      val (rs, c) = feed(stream, Iterator.continually(1 + random.nextInt(80)))
+      rs.map(fields) should be(responses)
+      compactions += c
+    }
+    compactions should be > 0
+  }
+
+  it should "copy status and a single value, and slice a frame of more fields" in {
+    val (rs, _) = feed(stream, Iterator.continually(stream.length))
+    rs.head.raw shouldBe a[java.util.ArrayList[_]]
+    rs(2).raw should not be a[java.util.ArrayList[_]]
+    rs(2).buildMap()
+    new String(rs(2).items.get(rs(2).keys.get(2)), StandardCharsets.ISO_8859_1) should be("x" * 300)
+  }
+
+  it should "skip empty leading lines and accept \\r\\n ends of length lines" in {
+    val (rs, _) = feed(bytes("\n\r\n\n2\r\nok\n1\r\n1\n\r\n"), Iterator.continually(1))
+    rs.map(fields) should be(List(List("ok", "1")))
+  }
+
+  it should "reject a length which overflows an int" in {
+    Seq("2147483648", "4294967297", "99999999999999999999").foreach { len =>
+      an[IOException] should be thrownBy feed(bytes(s"2\nok\n$len\nx\n\n"), Iterator.continually(3))
+    }
+    val (rs, _) = feed(bytes("2\nok\n2147483647\n"), Iterator.continually(1))
+    rs should be(Nil)
+  }
+
+  it should "reject a body not followed by \\n" in {
+    an[IOException] should be thrownBy feed(bytes("2\nok\n3\nabcd\n\n"), Iterator.continually(1))
+    an[IOException] should be thrownBy feed(bytes("2\nok\n3\nabcd\n\n"), Iterator.continually(100))
+  }
+
+  it should "reject a \\r which does not end a length line" in {
+    an[IOException] should be thrownBy feed(bytes("2\nok\n1\r2\nx\n\n"), Iterator.continually(1))
+    an[IOException] should be thrownBy feed(bytes("2\r\rok\n\n"), Iterator.continually(1))
+    an[IOException] should be thrownBy feed(bytes("2\nok\n1x\nx\n\n"), Iterator.continually(1))
+  }
+}
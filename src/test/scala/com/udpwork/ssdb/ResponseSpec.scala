@@ -0,0 +1,55 @@
+package com.udpwork.ssdb
+
+import java.nio.charset.StandardCharsets
+
+import org.scalatest._
+
+import scala.collection.JavaConverters._
+
+/**
+ * test case of the keys and items views of [[com.udpwork.ssdb.Response]]
+ */
+class ResponseSpec extends FlatSpec with Matchers {
+
+  private def response(fields: String*): Response = {
+    val s = fields.map(f => s"${f.length}\n$f\n").mkString + "\n"
+    new ResponseParser().parse(new MemoryStream(s.getBytes(StandardCharsets.ISO_8859_1)))
+  }
+
+  private def str(bs: Array[Byte]): String = new String(bs, StandardCharsets.ISO_8859_1)
+
+  "Response.items" should "look up every key of keys" in {
+    val r = response(Seq("ok") ++ (0 until 1000).flatMap(i => Seq("k" + i, "v" + i)): _*)
+    r.buildMap()
+    r.keys.asScala.map(k => str(r.items.get(k))) should be((0 until 1000).map("v" + _))
+    r.items.containsKey("k1".getBytes(StandardCharsets.ISO_8859_1)) should be(false)
+  }
+
+  it should "be modifiable as a map of its own" in {
+    val r = response("ok", "k1", "v1", "k2", "v2")
+    r.buildMap()
+    val k1 = r.keys.get(0)
+    val k3 = "k3".getBytes(StandardCharsets.ISO_8859_1)
+    r.items.put(k3, "v3".getBytes(StandardCharsets.ISO_8859_1))
+    r.items.remove(k1)
+    r.items.asScala.map { case (k, v) => (str(k), str(v)) }.toList should be(List("k2" -> "v2", "k3" -> "v3"))
+    r.keys.asScala.map(str).toList should be(List("k1", "k2"))
+    str(r.value(0)) should be("v1")
+  }
+
+  it should "write entry values through" in {
+    val r = response("ok", "k1", "v1", "k2", "v2")
+    r.buildMap()
+    r.items.entrySet().asScala.foreach(e => e.setValue(e.getValue ++ "!".getBytes(StandardCharsets.ISO_8859_1)))
+    r.keys.asScala.map(k => str(r.items.get(k))).toList should be(List("v1!", "v2!"))
+  }
+
+  "Response.keys" should "be modifiable as a list of its own" in {
+    val r = response("ok", "a", "b", "c")
+    r.buildList()
+    r.keys.add("d".getBytes(StandardCharsets.ISO_8859_1))
+    r.keys.remove(0)
+    r.keys.asScala.map(str).toList should be(List("b", "c", "d"))
+    r.size() should be(3)
+  }
+}